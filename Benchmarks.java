@@ -0,0 +1,283 @@
+package infection;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.function.IntSupplier;
+
+/**
+ * Benchmark harness for clustering and every infection algorithm.
+ *
+ * Every benchmark runs a number of warmup operations, then times each
+ * measured operation on its own and reports throughput, latency percentiles,
+ * bytes allocated per operation by the calling thread, and the garbage
+ * collections that ran during the measurement. Populations come from a
+ * fixed seed, so runs are comparable across releases.
+ *
+ * Run with key=value arguments, each taking a comma separated list:
+ *
+ *   java infection.Benchmarks users=100000,1000000 maxClassSize=30
+ *        studentRatio=4 warmup=5 iterations=20 seed=1
+ *
+ * @author David Bell
+ */
+public class Benchmarks {
+
+    private static volatile int sink; // Keeps results from being optimized away
+
+    /**
+     * Utility class
+     */
+    private Benchmarks() {
+    }
+
+    /**
+     * Run every benchmark for every combination of the parameters
+     *
+     * @param args key=value parameters
+     */
+    public static void main(String[] args) {
+
+        int[] users = { 100000 };
+        int[] maxClassSizes = { 30 };
+        int[] studentRatios = { 4 };
+        int warmup = 5;
+        int iterations = 20;
+        long seed = 1;
+
+        for (String arg : args) {
+
+            String[] pair = arg.split("=", 2);
+
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Expected key=value: " + arg);
+            }
+
+            switch (pair[0]) {
+                case "users":
+                    users = parseList(pair[1]);
+                    break;
+                case "maxClassSize":
+                    maxClassSizes = parseList(pair[1]);
+                    break;
+                case "studentRatio":
+                    studentRatios = parseList(pair[1]);
+                    break;
+                case "warmup":
+                    warmup = Integer.parseInt(pair[1]);
+                    break;
+                case "iterations":
+                    iterations = Integer.parseInt(pair[1]);
+
+                    if (iterations <= 0) {
+                        throw new IllegalArgumentException(
+                                "Need at least one iteration: " + arg);
+                    }
+                    break;
+                case "seed":
+                    seed = Long.parseLong(pair[1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown parameter: " + pair[0]);
+            }
+        }
+
+        for (int numUsers : users) {
+            for (int maxClassSize : maxClassSizes) {
+                for (int studentRatio : studentRatios) {
+                    run(numUsers, maxClassSize, studentRatio, warmup, iterations, seed);
+                }
+            }
+        }
+    }
+
+    /**
+     * Run every benchmark on one population
+     *
+     * @param numUsers number of users in the population
+     * @param maxClassSize maximum number of students a user can have
+     * @param studentRatio change the student-coach ratio
+     * @param warmup number of unmeasured operations per benchmark
+     * @param iterations number of measured operations per benchmark
+     * @param seed seed of the population and of every random choice
+     */
+    public static void run(
+            int numUsers, int maxClassSize, int studentRatio,
+            int warmup, int iterations, long seed) {
+
+        System.out.println("------------------------------------------------");
+        System.out.println("  Users: " + numUsers + ", max class size: " + maxClassSize
+                + ", student ratio: " + studentRatio);
+        System.out.println("------------------------------------------------");
+        System.out.println(String.format("  %-26s %10s %9s %9s %9s %9s %12s %4s %7s",
+                "benchmark", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms",
+                "alloc B/op", "gcs", "gc ms"));
+
+        User[] users = Main.getRandomUserBase(numUsers, 1, maxClassSize, studentRatio, seed);
+        Infection infection = new Infection(users);
+        SplittableRandom random = new SplittableRandom(seed);
+        int targetPop = Math.max(1, numUsers / 100);
+
+        int[] members = new int[numUsers];
+
+        measure("traverseCluster", warmup, iterations, ()
+                -> infection.traverseCluster(random.nextInt(numUsers), members));
+
+        measure("total_infection", warmup, iterations, ()
+                -> infection.total_infection(1, random));
+
+        measure("limited_infection", warmup, iterations, ()
+                -> infection.limited_infection(targetPop, 2));
+
+        measure("tiered_infection", warmup, iterations, ()
+                -> infection.tiered_infection(new int[] { 3, 4, 5, 6 }).length);
+
+        // These relabel the users, so the infection's index no longer matches
+        // their labels; they run after every benchmark that reads the index
+        measure("buildAllClusters", warmup, iterations, ()
+                -> Clusters.buildAllClusters(users).size());
+
+        boolean[] closedSet = new boolean[numUsers];
+
+        measure("buildCluster", warmup, iterations, () -> {
+
+            int rootID = random.nextInt(numUsers);
+            ArrayList<Integer> cluster = infection.buildCluster(rootID, closedSet, 0);
+
+            // Unmark the members so the next call starts from an empty closed set
+            for (int vertexID : cluster) {
+                closedSet[vertexID] = false;
+            }
+
+            return cluster.size();
+        });
+
+        measure("buildAllClustersRandomly", warmup, iterations, ()
+                -> infection.buildAllClustersRandomly(random).size());
+
+        System.out.println("------------------------------------------------");
+        System.out.println();
+    }
+
+    /**
+     * Time one benchmark and print a row of results
+     *
+     * @param name benchmark name
+     * @param warmup number of unmeasured operations
+     * @param iterations number of measured operations
+     * @param operation operation to time, returning any result
+     */
+    private static void measure(
+            String name, int warmup, int iterations, IntSupplier operation) {
+
+        for (int i = 0; i < warmup; i++) {
+            sink += operation.getAsInt();
+        }
+
+        long[] nanos = new long[iterations];
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+        long allocatedBefore = allocatedBytes();
+        long total = 0;
+
+        for (int i = 0; i < iterations; i++) {
+
+            long start = System.nanoTime();
+            sink += operation.getAsInt();
+            nanos[i] = System.nanoTime() - start;
+            total += nanos[i];
+        }
+
+        long allocated = allocatedBefore < 0 ? -1 : allocatedBytes() - allocatedBefore;
+        gcCount = gcCount() - gcCount;
+        gcTime = gcTime() - gcTime;
+
+        Arrays.sort(nanos);
+
+        System.out.println(String.format("  %-26s %10.1f %9.3f %9.3f %9.3f %9.3f %12d %4d %7d",
+                name,
+                iterations * 1e9 / Math.max(1, total),
+                percentile(nanos, 0.50) / 1e6,
+                percentile(nanos, 0.90) / 1e6,
+                percentile(nanos, 0.99) / 1e6,
+                nanos[iterations - 1] / 1e6,
+                allocated < 0 ? -1 : allocated / iterations,
+                gcCount,
+                gcTime));
+    }
+
+    /**
+     * Get a percentile of sorted samples
+     *
+     * @param sorted samples in ascending order
+     * @param fraction percentile as a fraction, 0 to 1
+     * @return the smallest sample at or above the percentile
+     */
+    private static long percentile(long[] sorted, double fraction) {
+
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Get the bytes allocated by the calling thread so far
+     * @return bytes, or -1 if the JVM does not track them
+     */
+    private static long allocatedBytes() {
+
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+
+        com.sun.management.ThreadMXBean threads
+                = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            return -1;
+        }
+
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Get the number of garbage collections so far
+     * @return
+     */
+    private static long gcCount() {
+
+        long count = 0;
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+
+        return count;
+    }
+
+    /**
+     * Get the time spent in garbage collection so far
+     * @return milliseconds
+     */
+    private static long gcTime() {
+
+        long time = 0;
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+
+        return time;
+    }
+
+    /**
+     * Parse a comma separated list of ints
+     * @param list
+     * @return
+     */
+    private static int[] parseList(String list) {
+        return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+}
@@ -0,0 +1,475 @@
+package infection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Compact index of the clusters of a graph, stored entirely in int arrays.
+ *
+ * Every cluster's members are a contiguous slice of the members array, and
+ * a label column maps every vertex ID to its cluster label, so lookups never
+ * box or allocate. Each slice may have spare capacity so clusters can grow
+ * in place when they merge; slices that outgrow their capacity move to the
+ * end of the array, and the array is compacted once half of it is unused.
+ *
+ * Labels freed by merges are reused by splits, so labels in use are always
+ * below labelLimit() but are not necessarily contiguous.
+ *
+ * @author David Bell
+ */
+public class ClusterIndex {
+
+    private final int[] labels; // Cluster label of every vertex
+    private int[] members; // Members of every cluster, one slice per cluster
+    private int membersEnd; // Used length of the members array
+    private int unusedSlots; // Slots in the members array no slice owns
+    private int[] starts; // Start of every cluster's slice
+    private int[] sizes; // Size of every cluster, 0 if the label is unused
+    private int[] capacities; // Capacity of every cluster's slice
+    private int labelLimit; // Every label in use is less than this
+    private int numClusters; // Number of clusters
+    private int[] freeLabels; // Unused labels below labelLimit
+    private int numFreeLabels; // Number of labels in freeLabels
+    private boolean contiguous; // Every slice is an ascending run of vertex IDs
+
+    /**
+     * Constructor. The slices must be packed in label order.
+     *
+     * @param labels cluster label of every vertex
+     * @param members members of every cluster, one slice per cluster
+     * @param starts start of every cluster's slice
+     * @param sizes size of every cluster
+     */
+    private ClusterIndex(int[] labels, int[] members, int[] starts, int[] sizes) {
+
+        this.labels = labels;
+        this.members = members;
+        this.starts = starts;
+        this.sizes = sizes;
+        this.capacities = Arrays.copyOf(sizes, sizes.length);
+        this.membersEnd = labels.length;
+        this.labelLimit = sizes.length;
+        this.numClusters = sizes.length;
+        this.freeLabels = new int[4];
+        this.contiguous = true;
+
+        for (int label = 0; label < sizes.length && contiguous; label++) {
+            for (int i = 1; i < sizes[label] && contiguous; i++) {
+                contiguous = members[starts[label] + i] == members[starts[label]] + i;
+            }
+        }
+    }
+
+    /**
+     * Build an index from the cluster label of every vertex with a counting
+     * sort. Members of each cluster are stored in vertex ID order.
+     *
+     * @param labels cluster label of every vertex, numbered from 0 with no
+     * gaps; the array becomes part of the index
+     * @return index of the clusters
+     */
+    public static ClusterIndex fromLabels(int[] labels) {
+
+        int numClusters = 0;
+
+        for (int label : labels) {
+            numClusters = Math.max(numClusters, label + 1);
+        }
+
+        int[] sizes = new int[numClusters];
+
+        for (int label : labels) {
+            sizes[label]++;
+        }
+
+        int[] starts = new int[numClusters];
+
+        for (int label = 1; label < numClusters; label++) {
+            starts[label] = starts[label - 1] + sizes[label - 1];
+        }
+
+        int[] next = Arrays.copyOf(starts, numClusters);
+        int[] members = new int[labels.length];
+
+        for (int vertexID = 0; vertexID < labels.length; vertexID++) {
+            members[next[labels[vertexID]]++] = vertexID;
+        }
+
+        return new ClusterIndex(labels, members, starts, sizes);
+    }
+
+    /**
+     * Build an index from a table of clusters, keeping each cluster's member
+     * order.
+     *
+     * @param clusters HashMap with <getClusterLabel,verticesInCluster>
+     * key-value pair, labeled from 0 with no gaps
+     * @param numVertices number of vertices in the graph
+     * @return index of the clusters
+     */
+    public static ClusterIndex fromPopulations(
+            HashMap<Integer, ArrayList<Integer>> clusters, int numVertices) {
+
+        int numClusters = clusters.size();
+        int[] labels = new int[numVertices];
+        int[] members = new int[numVertices];
+        int[] starts = new int[numClusters];
+        int[] sizes = new int[numClusters];
+        int next = 0;
+
+        for (int label = 0; label < numClusters; label++) {
+
+            starts[label] = next;
+
+            for (int vertexID : clusters.get(label)) {
+                labels[vertexID] = label;
+                members[next++] = vertexID;
+            }
+
+            sizes[label] = next - starts[label];
+        }
+
+        return new ClusterIndex(labels, members, starts, sizes);
+    }
+
+    /**
+     * Build an index from slices that are already packed in label order.
+     * The arrays become part of the index.
+     *
+     * @param labels cluster label of every vertex
+     * @param members members of every cluster, one slice per cluster
+     * @param starts start of every cluster's slice
+     * @param sizes size of every cluster
+     * @return index of the clusters
+     */
+    static ClusterIndex fromSlices(int[] labels, int[] members, int[] starts, int[] sizes) {
+        return new ClusterIndex(labels, members, starts, sizes);
+    }
+
+    /**
+     * Get the number of vertices in the index
+     * @return
+     */
+    public int numVertices() {
+        return labels.length;
+    }
+
+    /**
+     * Get the number of clusters
+     * @return
+     */
+    public int numClusters() {
+        return numClusters;
+    }
+
+    /**
+     * Get the upper bound of the labels in use
+     * @return every label in use is less than this
+     */
+    public int labelLimit() {
+        return labelLimit;
+    }
+
+    /**
+     * Check whether a label belongs to a cluster
+     * @param label
+     * @return
+     */
+    public boolean isLabel(int label) {
+        return label >= 0 && label < labelLimit && sizes[label] > 0;
+    }
+
+    /**
+     * Get the cluster label of a vertex
+     * @param vertexID
+     * @return
+     */
+    public int clusterOf(int vertexID) {
+        return labels[vertexID];
+    }
+
+    /**
+     * Get the size of a cluster
+     * @param label
+     * @return size of the cluster or 0 if the label is not in use
+     */
+    public int size(int label) {
+        return sizes[label];
+    }
+
+    /**
+     * Check whether every cluster is a contiguous range of vertex IDs, which
+     * holds for a graph in cluster-contiguous order until the first merge or
+     * split. Cluster k is then the IDs members()[start(k)] to
+     * members()[start(k)] + size(k) - 1.
+     *
+     * @return
+     */
+    public boolean isContiguous() {
+        return contiguous;
+    }
+
+    /**
+     * Get the start of a cluster's slice of the members array
+     * @param label
+     * @return
+     */
+    public int start(int label) {
+        return starts[label];
+    }
+
+    /**
+     * Get the members array. Cluster k's members are
+     * members()[start(k)] to members()[start(k) + size(k) - 1]. The array is
+     * replaced when the index grows or is compacted.
+     *
+     * @return
+     */
+    int[] members() {
+        return members;
+    }
+
+    /**
+     * Get the label column, mapping every vertex ID to its cluster label
+     * @return
+     */
+    int[] labels() {
+        return labels;
+    }
+
+    /**
+     * Copy a cluster's members into a new array
+     * @param label
+     * @return
+     */
+    public int[] copyOfCluster(int label) {
+        return Arrays.copyOfRange(members, starts[label], starts[label] + sizes[label]);
+    }
+
+    /**
+     * Copy a cluster's members into a buffer, without allocating
+     * @param label
+     * @param buffer output; size(label) ints must fit
+     * @return number of members copied
+     */
+    public int copyOfCluster(int label, int[] buffer) {
+
+        System.arraycopy(members, starts[label], buffer, 0, sizes[label]);
+
+        return sizes[label];
+    }
+
+    /**
+     * Merge two clusters. The members of the smaller cluster are appended to
+     * the larger one and relabeled, so the cost is proportional to the size
+     * of the smaller cluster.
+     *
+     * @param labelA
+     * @param labelB
+     * @return label of the merged cluster
+     */
+    public int merge(int labelA, int labelB) {
+
+        if (labelA == labelB) {
+            return labelA;
+        }
+
+        // Always merge the smaller cluster into the larger one
+        if (sizes[labelA] < sizes[labelB]) {
+            int swap = labelA;
+            labelA = labelB;
+            labelB = swap;
+        }
+
+        int sizeA = sizes[labelA];
+        int sizeB = sizes[labelB];
+
+        if (sizeA + sizeB > capacities[labelA]) {
+            relocate(labelA, Math.max(sizeA + sizeB, capacities[labelA] * 2));
+        }
+
+        int from = starts[labelB];
+        int to = starts[labelA] + sizeA;
+
+        for (int i = 0; i < sizeB; i++) {
+            int vertexID = members[from + i];
+            members[to + i] = vertexID;
+            labels[vertexID] = labelA;
+        }
+
+        sizes[labelA] = sizeA + sizeB;
+        releaseLabel(labelB);
+        contiguous = false;
+
+        return labelA;
+    }
+
+    /**
+     * Split some of a cluster's members off into a new cluster. The cost is
+     * proportional to the size of the original cluster.
+     *
+     * @param label cluster that is split
+     * @param separated members that move to the new cluster
+     * @param count number of members to read from separated
+     * @return label of the new cluster
+     */
+    public int split(int label, int[] separated, int count) {
+
+        int newLabel = acquireLabel(count);
+
+        // Relabel the separated members, then squeeze them out of the slice
+        for (int i = 0; i < count; i++) {
+            labels[separated[i]] = newLabel;
+        }
+
+        int start = starts[label];
+        int kept = start;
+
+        for (int i = start; i < start + sizes[label]; i++) {
+            if (labels[members[i]] == label) {
+                members[kept++] = members[i];
+            }
+        }
+
+        sizes[label] = kept - start;
+
+        System.arraycopy(separated, 0, members, starts[newLabel], count);
+        sizes[newLabel] = count;
+        contiguous = false;
+
+        return newLabel;
+    }
+
+    /**
+     * Approximate heap footprint of this index in bytes
+     * @return
+     */
+    public long memoryBytes() {
+
+        long bytes = 16 + 6 * 4 + 6 * 4 + 1; // Object header and fields
+
+        for (int[] array : new int[][] {
+                labels, members, starts, sizes, capacities, freeLabels }) {
+            bytes += 16 + 4L * array.length;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Get a label for a new cluster and give it an empty slice at the end of
+     * the members array.
+     *
+     * @param capacity capacity of the new slice
+     * @return the new label
+     */
+    private int acquireLabel(int capacity) {
+
+        int label;
+
+        if (numFreeLabels > 0) {
+            label = freeLabels[--numFreeLabels];
+        } else {
+
+            if (labelLimit == sizes.length) {
+                int length = Math.max(4, labelLimit * 2);
+                starts = Arrays.copyOf(starts, length);
+                sizes = Arrays.copyOf(sizes, length);
+                capacities = Arrays.copyOf(capacities, length);
+            }
+
+            label = labelLimit++;
+        }
+
+        numClusters++;
+        starts[label] = reserve(capacity);
+        sizes[label] = 0;
+        capacities[label] = capacity;
+
+        return label;
+    }
+
+    /**
+     * Mark a cluster's label as unused and give up its slice
+     * @param label
+     */
+    private void releaseLabel(int label) {
+
+        unusedSlots += capacities[label];
+        sizes[label] = 0;
+        capacities[label] = 0;
+        numClusters--;
+
+        if (numFreeLabels == freeLabels.length) {
+            freeLabels = Arrays.copyOf(freeLabels, numFreeLabels * 2);
+        }
+
+        freeLabels[numFreeLabels++] = label;
+    }
+
+    /**
+     * Move a cluster's slice to the end of the members array
+     * @param label
+     * @param capacity capacity of the new slice
+     */
+    private void relocate(int label, int capacity) {
+
+        // Reserving may compact the array, which moves the old slice too
+        int newStart = reserve(capacity);
+
+        System.arraycopy(members, starts[label], members, newStart, sizes[label]);
+        unusedSlots += capacities[label];
+
+        starts[label] = newStart;
+        capacities[label] = capacity;
+    }
+
+    /**
+     * Reserve slots at the end of the members array, compacting or growing
+     * the array as needed.
+     *
+     * @param count number of slots
+     * @return start of the reserved slots
+     */
+    private int reserve(int count) {
+
+        if (membersEnd + count > members.length) {
+
+            if (unusedSlots > membersEnd / 2) {
+                compact();
+            }
+
+            if (membersEnd + count > members.length) {
+                int length = Math.max(membersEnd + count, members.length + members.length / 2);
+                members = Arrays.copyOf(members, length);
+            }
+        }
+
+        int start = membersEnd;
+        membersEnd += count;
+
+        return start;
+    }
+
+    /**
+     * Pack every slice in label order, dropping all spare capacity
+     */
+    private void compact() {
+
+        int[] packed = new int[members.length];
+        int next = 0;
+
+        for (int label = 0; label < labelLimit; label++) {
+
+            System.arraycopy(members, starts[label], packed, next, sizes[label]);
+            starts[label] = next;
+            capacities[label] = sizes[label];
+            next += sizes[label];
+        }
+
+        members = packed;
+        membersEnd = next;
+        unusedSlots = 0;
+    }
+}
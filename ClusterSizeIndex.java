@@ -0,0 +1,636 @@
+package infection;
+
+import java.util.Arrays;
+
+/**
+ * Order statistics over the sizes of a set of clusters.
+ *
+ * Every distinct size gets a slot, and the slots are kept in ascending order
+ * of size, so memory grows with the number of distinct sizes rather than
+ * with the size of the largest cluster. Each slot holds a bucket of labels,
+ * a doubly linked list, so a cluster moves between buckets in constant time.
+ * A Fenwick tree over the number of clusters in every slot answers rank
+ * queries in O(log D) for D distinct sizes: how many clusters are at most a
+ * size, and what size the cluster of a given rank has. The k largest
+ * clusters, the clusters in a size range and the smallest cluster of at
+ * least a size are then found without sorting.
+ *
+ * A new size takes over an empty neighbouring slot when there is one, which
+ * is the common case of a cluster growing past its old size; otherwise the
+ * slots shift and the tree is rebuilt in O(D). Empty slots are dropped once
+ * they outnumber the slots in use.
+ *
+ * Buckets list their clusters in label order when the index is built, and
+ * clusters that change size go to the back of their new bucket.
+ *
+ * @author David Bell
+ */
+public class ClusterSizeIndex {
+
+    private static final int DIRECT_SIZES = 1 << 12; // Sizes counted without sorting when building
+
+    private int[] sizes; // Size of every slot, ascending
+    private int[] counts; // Number of clusters in every slot
+    private int[] tree; // Fenwick tree over counts, 1-based by slot
+    private int[] heads; // First label of every slot's bucket, -1 if empty
+    private int[] tails; // Last label of every slot's bucket, -1 if empty
+    private int numSlots; // Number of slots in use, including empty ones
+    private int numEmptySlots; // Slots in use that hold no clusters
+    private int[] next; // Next label in the same bucket, -1 at the end
+    private int[] previous; // Previous label in the same bucket, -1 at the start
+    private int numClusters; // Number of clusters in the index
+
+    /**
+     * Constructor. Indexes every cluster of a cluster index.
+     *
+     * @param index clusters to index
+     */
+    public ClusterSizeIndex(ClusterIndex index) {
+
+        // Count small sizes directly and sort only the rare large ones
+        int[] small = new int[DIRECT_SIZES];
+        int[] large = new int[16];
+        int numLarge = 0;
+
+        for (int label = 0; label < index.labelLimit(); label++) {
+
+            int size = index.size(label);
+
+            if (size == 0) {
+                continue;
+            }
+
+            if (size < DIRECT_SIZES) {
+                small[size]++;
+            } else {
+
+                if (numLarge == large.length) {
+                    large = Arrays.copyOf(large, numLarge * 2);
+                }
+
+                large[numLarge++] = size;
+            }
+
+            numClusters++;
+        }
+
+        Arrays.sort(large, 0, numLarge);
+
+        // One slot per distinct size; small[] becomes the slot of each small size
+        int capacity = 16;
+        sizes = new int[capacity];
+        counts = new int[capacity];
+
+        for (int size = 1; size < DIRECT_SIZES; size++) {
+
+            if (small[size] == 0) {
+                continue;
+            }
+
+            ensureCapacity(numSlots + 1);
+            sizes[numSlots] = size;
+            counts[numSlots] = small[size];
+            small[size] = numSlots++;
+        }
+
+        for (int i = 0; i < numLarge; i++) {
+
+            if (i > 0 && large[i] == large[i - 1]) {
+                counts[numSlots - 1]++;
+                continue;
+            }
+
+            ensureCapacity(numSlots + 1);
+            sizes[numSlots] = large[i];
+            counts[numSlots++] = 1;
+        }
+
+        heads = new int[sizes.length];
+        tails = new int[sizes.length];
+        next = new int[Math.max(4, index.labelLimit())];
+        previous = new int[next.length];
+
+        Arrays.fill(heads, -1);
+        Arrays.fill(tails, -1);
+
+        for (int label = 0; label < index.labelLimit(); label++) {
+
+            int size = index.size(label);
+
+            if (size > 0) {
+                link(label, size < DIRECT_SIZES ? small[size] : slotOf(size));
+            }
+        }
+
+        buildTree();
+    }
+
+    /**
+     * Get the number of clusters
+     * @return
+     */
+    public int numClusters() {
+        return numClusters;
+    }
+
+    /**
+     * Get the number of distinct sizes
+     * @return
+     */
+    public int numSizes() {
+        return numSlots - numEmptySlots;
+    }
+
+    /**
+     * Get the number of clusters of a size
+     * @param size
+     * @return
+     */
+    public int count(int size) {
+
+        int slot = slotOf(size);
+
+        return slot >= 0 ? counts[slot] : 0;
+    }
+
+    /**
+     * Count the clusters with a size in a range
+     * @param minSize smallest size, inclusive
+     * @param maxSize largest size, inclusive
+     * @return
+     */
+    public int countInRange(int minSize, int maxSize) {
+
+        if (maxSize < minSize) {
+            return 0;
+        }
+
+        return rank(maxSize) - rank(minSize - 1);
+    }
+
+    /**
+     * Get the size of the largest cluster
+     * @return largest size, or 0 if there are no clusters
+     */
+    public int maxSize() {
+        return numClusters > 0 ? select(numClusters - 1) : 0;
+    }
+
+    /**
+     * Get the size of the smallest cluster
+     * @return smallest size, or 0 if there are no clusters
+     */
+    public int minSize() {
+        return numClusters > 0 ? select(0) : 0;
+    }
+
+    /**
+     * Count the clusters no larger than a size
+     * @param size
+     * @return
+     */
+    public int rank(int size) {
+
+        int total = 0;
+
+        for (int i = slotsUpTo(size); i > 0; i -= i & -i) {
+            total += tree[i];
+        }
+
+        return total;
+    }
+
+    /**
+     * Get the size of the cluster of a given rank, counting from the
+     * smallest cluster
+     *
+     * @param rank number of clusters smaller than or tied with the cluster,
+     * from 0 to numClusters() - 1
+     * @return size of the cluster
+     */
+    public int select(int rank) {
+
+        if (rank < 0 || rank >= numClusters) {
+            throw new IndexOutOfBoundsException("No cluster of rank " + rank);
+        }
+
+        // Walk down the tree, skipping every subtree with too few clusters
+        int slot = 0;
+
+        for (int step = Integer.highestOneBit(numSlots); step > 0; step >>= 1) {
+
+            int mid = slot + step;
+
+            if (mid <= numSlots && tree[mid] <= rank) {
+                slot = mid;
+                rank -= tree[mid];
+            }
+        }
+
+        return sizes[slot];
+    }
+
+    /**
+     * Get the smallest size above a size that has clusters
+     * @param size
+     * @return next size, or 0 if no cluster is larger
+     */
+    public int nextSize(int size) {
+
+        int rank = rank(size);
+
+        return rank < numClusters ? select(rank) : 0;
+    }
+
+    /**
+     * Get the largest size below a size that has clusters
+     * @param size
+     * @return previous size, or 0 if no cluster is smaller
+     */
+    public int previousSize(int size) {
+
+        int rank = rank(size - 1);
+
+        return rank > 0 ? select(rank - 1) : 0;
+    }
+
+    /**
+     * Get the distinct sizes up to a limit
+     * @param maxSize largest size to list
+     * @return every size of at most maxSize that has clusters, ascending
+     */
+    public int[] distinctSizes(int maxSize) {
+
+        int end = slotsUpTo(maxSize);
+        int[] distinct = new int[end];
+        int count = 0;
+
+        for (int slot = 0; slot < end; slot++) {
+            if (counts[slot] > 0) {
+                distinct[count++] = sizes[slot];
+            }
+        }
+
+        return Arrays.copyOf(distinct, count);
+    }
+
+    /**
+     * Get the first cluster in a size's bucket
+     * @param size
+     * @return label, or -1 if there are no clusters of the size
+     */
+    public int firstOfSize(int size) {
+
+        int slot = slotOf(size);
+
+        return slot >= 0 ? heads[slot] : -1;
+    }
+
+    /**
+     * Get the cluster after another in its size's bucket
+     * @param label cluster in the bucket
+     * @return label, or -1 if the cluster is the last of the bucket
+     */
+    public int nextOfSize(int label) {
+        return next[label];
+    }
+
+    /**
+     * Get the smallest cluster of at least a size
+     * @param minSize
+     * @return label, or -1 if every cluster is smaller
+     */
+    public int ceiling(int minSize) {
+
+        int size = nextSize(minSize - 1);
+
+        return size > 0 ? firstOfSize(size) : -1;
+    }
+
+    /**
+     * Get the largest clusters, from largest to smallest
+     * @param k number of clusters
+     * @return labels of the min(k, numClusters()) largest clusters
+     */
+    public int[] largest(int k) {
+
+        int[] labels = new int[Math.max(0, Math.min(k, numClusters))];
+        int count = 0;
+
+        for (int slot = numSlots; --slot >= 0 && count < labels.length;) {
+            for (int label = heads[slot]; label >= 0 && count < labels.length;
+                    label = next[label]) {
+                labels[count++] = label;
+            }
+        }
+
+        return labels;
+    }
+
+    /**
+     * Get the clusters with a size in a range, from smallest to largest
+     * @param minSize smallest size, inclusive
+     * @param maxSize largest size, inclusive
+     * @return labels of the clusters
+     */
+    public int[] inRange(int minSize, int maxSize) {
+
+        int[] labels = new int[countInRange(minSize, maxSize)];
+        int count = 0;
+
+        for (int slot = slotsUpTo(minSize - 1); count < labels.length; slot++) {
+            for (int label = heads[slot]; label >= 0; label = next[label]) {
+                labels[count++] = label;
+            }
+        }
+
+        return labels;
+    }
+
+    /**
+     * Count the clusters of every size up to a limit
+     * @param maxSize largest size to count
+     * @return number of clusters of every size, indexed by size up to
+     * min(maxSize, maxSize())
+     */
+    public int[] histogram(int maxSize) {
+
+        int[] histogram = new int[Math.max(0, Math.min(maxSize, maxSize())) + 1];
+
+        for (int slot = 0, end = slotsUpTo(maxSize); slot < end; slot++) {
+            if (counts[slot] > 0) {
+                histogram[sizes[slot]] = counts[slot];
+            }
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Count the clusters of every size
+     * @return number of clusters of every size, indexed by size
+     */
+    public int[] histogram() {
+        return histogram(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Add a cluster
+     * @param label
+     * @param size
+     */
+    public void add(int label, int size) {
+
+        if (label >= next.length) {
+            int length = Math.max(label + 1, next.length * 2);
+            next = Arrays.copyOf(next, length);
+            previous = Arrays.copyOf(previous, length);
+        }
+
+        int slot = slotFor(size);
+
+        if (counts[slot]++ == 0) {
+            numEmptySlots--;
+        }
+
+        link(label, slot);
+        numClusters++;
+        adjust(slot, 1);
+    }
+
+    /**
+     * Remove a cluster
+     * @param label
+     * @param size current size of the cluster
+     */
+    public void remove(int label, int size) {
+
+        int slot = slotOf(size);
+
+        // Unlink the cluster from its bucket
+        if (previous[label] >= 0) {
+            next[previous[label]] = next[label];
+        } else {
+            heads[slot] = next[label];
+        }
+
+        if (next[label] >= 0) {
+            previous[next[label]] = previous[label];
+        } else {
+            tails[slot] = previous[label];
+        }
+
+        numClusters--;
+        adjust(slot, -1);
+
+        if (--counts[slot] == 0) {
+
+            numEmptySlots++;
+
+            if (numEmptySlots > 16 && numEmptySlots * 2 > numSlots) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Move a cluster that changed size to its new bucket
+     * @param label
+     * @param oldSize
+     * @param newSize
+     */
+    public void resize(int label, int oldSize, int newSize) {
+
+        if (oldSize != newSize) {
+            remove(label, oldSize);
+            add(label, newSize);
+        }
+    }
+
+    /**
+     * Approximate heap footprint of this index in bytes
+     * @return
+     */
+    public long memoryBytes() {
+
+        long bytes = 16 + 8 * 4 + 3 * 4; // Object header and fields
+
+        for (int[] array : new int[][] { sizes, counts, tree, heads, tails, next, previous }) {
+            bytes += 16 + 4L * array.length;
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Find the slot of a size
+     * @param size
+     * @return slot, or -1 if no slot has the size
+     */
+    private int slotOf(int size) {
+
+        int slot = Arrays.binarySearch(sizes, 0, numSlots, size);
+
+        return slot >= 0 ? slot : -1;
+    }
+
+    /**
+     * Count the slots of at most a size
+     * @param size
+     * @return
+     */
+    private int slotsUpTo(int size) {
+
+        int slot = Arrays.binarySearch(sizes, 0, numSlots, size);
+
+        return slot >= 0 ? slot + 1 : -slot - 1;
+    }
+
+    /**
+     * Find the slot of a size, making one if no slot has the size
+     * @param size
+     * @return slot
+     */
+    private int slotFor(int size) {
+
+        int slot = Arrays.binarySearch(sizes, 0, numSlots, size);
+
+        if (slot >= 0) {
+            return slot;
+        }
+
+        slot = -slot - 1;
+
+        // An empty neighbour can take the size without breaking the order
+        if (slot > 0 && counts[slot - 1] == 0) {
+            sizes[slot - 1] = size;
+            return slot - 1;
+        }
+
+        if (slot < numSlots && counts[slot] == 0) {
+            sizes[slot] = size;
+            return slot;
+        }
+
+        // Shift the larger slots up to make room
+        ensureCapacity(numSlots + 1);
+
+        int moved = numSlots - slot;
+        System.arraycopy(sizes, slot, sizes, slot + 1, moved);
+        System.arraycopy(counts, slot, counts, slot + 1, moved);
+        System.arraycopy(heads, slot, heads, slot + 1, moved);
+        System.arraycopy(tails, slot, tails, slot + 1, moved);
+
+        sizes[slot] = size;
+        counts[slot] = 0;
+        heads[slot] = -1;
+        tails[slot] = -1;
+        numSlots++;
+        numEmptySlots++;
+
+        buildTree();
+
+        return slot;
+    }
+
+    /**
+     * Append a cluster to the back of a slot's bucket
+     * @param label
+     * @param slot
+     */
+    private void link(int label, int slot) {
+
+        int tail = tails[slot];
+
+        previous[label] = tail;
+        next[label] = -1;
+
+        if (tail >= 0) {
+            next[tail] = label;
+        } else {
+            heads[slot] = label;
+        }
+
+        tails[slot] = label;
+    }
+
+    /**
+     * Add to the number of clusters of a slot in the tree
+     * @param slot
+     * @param delta
+     */
+    private void adjust(int slot, int delta) {
+
+        for (int i = slot + 1; i <= numSlots; i += i & -i) {
+            tree[i] += delta;
+        }
+    }
+
+    /**
+     * Build the tree from the counts in linear time
+     */
+    private void buildTree() {
+
+        if (tree == null || tree.length < sizes.length + 1) {
+            tree = new int[sizes.length + 1];
+        }
+
+        System.arraycopy(counts, 0, tree, 1, numSlots);
+
+        for (int i = 1; i <= numSlots; i++) {
+
+            int parent = i + (i & -i);
+
+            if (parent <= numSlots) {
+                tree[parent] += tree[i];
+            }
+        }
+    }
+
+    /**
+     * Drop every empty slot
+     */
+    private void compact() {
+
+        int kept = 0;
+
+        for (int slot = 0; slot < numSlots; slot++) {
+
+            if (counts[slot] == 0) {
+                continue;
+            }
+
+            sizes[kept] = sizes[slot];
+            counts[kept] = counts[slot];
+            heads[kept] = heads[slot];
+            tails[kept] = tails[slot];
+            kept++;
+        }
+
+        numSlots = kept;
+        numEmptySlots = 0;
+
+        buildTree();
+    }
+
+    /**
+     * Make sure the slot arrays hold a number of slots
+     * @param capacity
+     */
+    private void ensureCapacity(int capacity) {
+
+        if (capacity <= sizes.length) {
+            return;
+        }
+
+        int length = Math.max(capacity, sizes.length * 2);
+        sizes = Arrays.copyOf(sizes, length);
+        counts = Arrays.copyOf(counts, length);
+
+        // The constructor makes the bucket arrays after the sizes are known
+        if (heads != null) {
+            heads = Arrays.copyOf(heads, length);
+            tails = Arrays.copyOf(tails, length);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package infection;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot of a clustering, so a process can load the clusters of an
+ * unchanged graph instead of clustering it again.
+ *
+ * A snapshot is tied to its graph by a checksum of the graph's edges. The
+ * file is little-endian ints:
+ *
+ *   header   8 ints: magic, format version, numVertices, numClusters,
+ *            graph checksum (2 ints), 2 reserved
+ *   labels   numVertices ints, cluster label of every vertex
+ *   sizes    numClusters ints, size of every cluster
+ *   members  numVertices ints, members of every cluster in label order
+ *   trailer  CRC-32 of everything above (2 ints)
+ *
+ * Labels are packed when the snapshot is written, so clusters freed by
+ * merges leave no gaps. The size histogram and the slice offsets follow from
+ * the sizes and are not stored.
+ *
+ * @author David Bell
+ */
+public class ClusterSnapshot {
+
+    private static final int MAGIC = 0x534e4349; // "ICNS" in file byte order
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_INTS = 8;
+    private static final int TRAILER_INTS = 2;
+
+    /**
+     * Utility class
+     */
+    private ClusterSnapshot() {
+    }
+
+    /**
+     * Checksum of the edges of a graph. Each vertex's neighbors are combined
+     * in any order, so vertices and a compact graph with the same edges have
+     * the same checksum.
+     *
+     * @param vertices array containing all vertices in the graph
+     * @return checksum of the graph
+     */
+    public static long checksum(ClusterVertex[] vertices) {
+
+        long sum = mix(vertices.length);
+
+        for (ClusterVertex vertex : vertices) {
+            for (ClusterVertex neighbor : vertex.edges()) {
+                sum += mix(((long) vertex.id() << 32) | neighbor.id());
+            }
+        }
+
+        return sum;
+    }
+
+    /**
+     * Checksum of the edges of a compact graph
+     *
+     * @param graph compact graph containing all vertices
+     * @return checksum of the graph
+     */
+    public static long checksum(CompactGraph graph) {
+
+        long sum = mix(graph.numVertices());
+
+        for (int v = 0; v < graph.numVertices(); v++) {
+
+            int degree = graph.degree(v);
+
+            for (int i = 0; i < degree; i++) {
+                sum += mix(((long) v << 32) | graph.neighbor(v, i));
+            }
+        }
+
+        return sum;
+    }
+
+    /**
+     * Write a clustering to a snapshot file, replacing the file if it exists.
+     *
+     * @param path file to write
+     * @param index clusters to write
+     * @param graphChecksum checksum of the clustered graph
+     * @throws IOException if the file cannot be written
+     */
+    public static void save(Path path, ClusterIndex index, long graphChecksum)
+            throws IOException {
+
+        // Pack the labels in use into 0 to numClusters - 1, keeping their order
+        int[] packed = new int[index.labelLimit()];
+        int numClusters = 0;
+
+        for (int label = 0; label < index.labelLimit(); label++) {
+            packed[label] = index.size(label) > 0 ? numClusters++ : -1;
+        }
+
+        try (FileChannel out = FileChannel.open(path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+
+            IntFileWriter writer = new IntFileWriter(out);
+
+            writer.put(MAGIC);
+            writer.put(FORMAT_VERSION);
+            writer.put(index.numVertices());
+            writer.put(numClusters);
+            writer.putLong(graphChecksum);
+            writer.put(0);
+            writer.put(0);
+
+            for (int vertexID = 0; vertexID < index.numVertices(); vertexID++) {
+                writer.put(packed[index.clusterOf(vertexID)]);
+            }
+
+            for (int label = 0; label < index.labelLimit(); label++) {
+                if (index.size(label) > 0) {
+                    writer.put(index.size(label));
+                }
+            }
+
+            for (int label = 0; label < index.labelLimit(); label++) {
+                int start = index.start(label);
+                writer.put(index.members(), start, start + index.size(label));
+            }
+
+            writer.flush();
+
+            // The trailer is not part of its own checksum
+            long crc = writer.checksum();
+            writer.putLong(crc);
+            writer.flush();
+        }
+    }
+
+    /**
+     * Load a clustering from a snapshot file if it belongs to the graph.
+     *
+     * @param path file to read
+     * @param graphChecksum checksum of the graph being clustered
+     * @param numVertices number of vertices in the graph
+     * @return the clusters, or null if there is no readable and consistent
+     * snapshot of this graph at the path
+     */
+    public static ClusterIndex load(Path path, long graphChecksum, int numVertices) {
+
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+
+            long fileSize = channel.size();
+
+            if (fileSize < 4 * (HEADER_INTS + TRAILER_INTS) || fileSize > Integer.MAX_VALUE) {
+                return null;
+            }
+
+            MappedByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            IntBuffer ints = file.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+
+            int numClusters = ints.get(3);
+            long checksum = (ints.get(4) & 0xFFFFFFFFL) | ((long) ints.get(5) << 32);
+
+            if (ints.get(0) != MAGIC
+                    || ints.get(1) != FORMAT_VERSION
+                    || ints.get(2) != numVertices
+                    || checksum != graphChecksum
+                    || numClusters < 0
+                    || fileSize != 4L * (HEADER_INTS + 2L * numVertices
+                            + numClusters + TRAILER_INTS)) {
+                return null;
+            }
+
+            // Verify the contents before trusting any of them
+            int bodyInts = (int) (fileSize / 4) - TRAILER_INTS;
+            CRC32 crc = new CRC32();
+            file.limit(4 * bodyInts);
+            crc.update(file);
+
+            long stored = (ints.get(bodyInts) & 0xFFFFFFFFL)
+                    | ((long) ints.get(bodyInts + 1) << 32);
+
+            if (crc.getValue() != stored) {
+                return null;
+            }
+
+            int[] labels = new int[numVertices];
+            int[] sizes = new int[numClusters];
+            int[] members = new int[numVertices];
+
+            ints.position(HEADER_INTS);
+            ints.get(labels);
+            ints.get(sizes);
+            ints.get(members);
+
+            // Every cluster's slice must list exactly the vertices labelled
+            // with it, so members is a permutation and every label is in range
+            int[] starts = new int[numClusters];
+            boolean[] listed = new boolean[numVertices];
+            int end = 0;
+
+            for (int label = 0; label < numClusters; label++) {
+
+                if (sizes[label] < 0 || sizes[label] > numVertices - end) {
+                    return null;
+                }
+
+                starts[label] = end;
+                end += sizes[label];
+
+                for (int i = starts[label]; i < end; i++) {
+
+                    int vertexID = members[i];
+
+                    if (vertexID < 0 || vertexID >= numVertices
+                            || listed[vertexID] || labels[vertexID] != label) {
+                        return null;
+                    }
+
+                    listed[vertexID] = true;
+                }
+            }
+
+            if (end != numVertices) {
+                return null;
+            }
+
+            return ClusterIndex.fromSlices(labels, members, starts, sizes);
+
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Scramble the bits of a long (the SplitMix64 finalizer)
+     * @param value
+     * @return
+     */
+    private static long mix(long value) {
+
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,35 @@
+package infection;
+
+/**
+ * Algorithms Clusters can use to label the connected vertices of a graph.
+ * Every method yields the same labels: clusters are numbered in order of
+ * their smallest vertex ID.
+ *
+ * @author David Bell
+ */
+public enum ClusteringMethod {
+
+    /**
+     * Breadth-first search from every unclustered vertex with a reused
+     * Traversal
+     */
+    TRAVERSAL,
+
+    /**
+     * Same as TRAVERSAL, named after the original depth first search
+     *
+     * @deprecated use TRAVERSAL
+     */
+    @Deprecated
+    DEPTH_FIRST,
+
+    /**
+     * Disjoint-set forest over int arrays, built in one pass over the edges
+     */
+    UNION_FIND,
+
+    /**
+     * Lock-free union-find over the edges on the common fork-join pool
+     */
+    PARALLEL
+}
@@ -3,7 +3,7 @@ package infection;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Stack;
+import java.util.SplittableRandom;
 
 /**
  * Class for finding clusters of ClusterVertex vertices
@@ -18,16 +18,70 @@ public class Clusters {
     protected final ClusterVertex[] vertices;
     
     /**
-     * HashMap containing <getClusterLabel,clusterPopulation> key-value pair. 
-     * Maps a cluster's label to its vertices.
+     * Compact copy of the graph traversed by vertex ID, or null when the
+     * clusters are built by following the vertices' edge lists.
      */
-    protected final HashMap<Integer,ArrayList<Integer>> clusterPopulations;
-
+    protected final CompactGraph graph;
+    
+    /**
+     * Index mapping cluster labels to their vertices and vertices to their
+     * cluster labels.
+     */
+    protected ClusterIndex clusterIndex;
+    
+    /**
+     * Sizes of the clusters in the cluster index, kept up to date by
+     * insertEdge and deleteEdge.
+     */
+    protected ClusterSizeIndex sizeIndex;
+    
+    /**
+     * Algorithm the clusters are labelled with, again by rebuild
+     */
+    private final ClusteringMethod method;
+    
+    /**
+     * True if the graph changed without the cluster index being updated.
+     */
+    private boolean stale;
+    
+    /**
+     * Traversal reused by traverseCluster and deleteEdge, created on first use
+     */
+    private Traversal traversal;
+    
+    /**
+     * Buffer deleteEdge collects the separated vertices in, created on first use
+     */
+    private int[] separatedIDs;
+    
+    /**
+     * Clusters split into units of a bounded size by partitionClusters, or
+     * null if the clusters have not been partitioned
+     */
+    private ClusterIndex unitIndex;
+    
     /**
-     * HashMap containing <vertexID,getClusterLabel> key-value pair. 
-     * Maps vertices to their respective clusters.
+     * Sizes of the units, or null if the clusters have not been partitioned
      */
-    protected final HashMap<Integer,Integer> clusterLookup;
+    private ClusterSizeIndex unitSizeIndex;
+    
+    /**
+     * Coach relations between units of the same cluster
+     */
+    private long unitCutEdges;
+    
+    /**
+     * Fraction a unit may exceed the average unit size of its cluster by
+     */
+    private static final double UNIT_IMBALANCE = 0.03;
+    
+    /**
+     * Random source of every thread that does not supply its own, so
+     * concurrent callers never share a generator.
+     */
+    private static final ThreadLocal<SplittableRandom> THREAD_RANDOM
+            = ThreadLocal.withInitial(SplittableRandom::new);
     
     /**
      * Constructor builds clusters.
@@ -35,9 +89,86 @@ public class Clusters {
      */
     public Clusters(ClusterVertex[] vertices) {
         
+        this(vertices, null, ClusteringMethod.TRAVERSAL);
+    }
+    
+    /**
+     * Constructor builds clusters by traversing a compact copy of the graph.
+     * @param vertices array containing all vertices in the graph
+     * @param graph compact graph with the same vertex IDs and edges
+     */
+    public Clusters(ClusterVertex[] vertices, CompactGraph graph) {
+        
+        this(vertices, graph, ClusteringMethod.TRAVERSAL);
+    }
+    
+    /**
+     * Constructor builds clusters with a specific clustering method.
+     * @param vertices array containing all vertices in the graph
+     * @param method algorithm used to label the clusters
+     */
+    public Clusters(ClusterVertex[] vertices, ClusteringMethod method) {
+        
+        this(vertices, null, method);
+    }
+    
+    /**
+     * Constructor builds clusters for a compact graph alone, without any
+     * vertex objects. Cluster labels are only stored in the cluster index.
+     * @param graph compact graph containing all vertices
+     * @param method algorithm used to label the clusters
+     */
+    public Clusters(CompactGraph graph, ClusteringMethod method) {
+        
+        this(null, graph, method);
+    }
+    
+    /**
+     * Constructor builds clusters with a specific clustering method.
+     * @param vertices array containing all vertices in the graph, or null if
+     * there are only graph vertex IDs
+     * @param graph compact graph with the same vertex IDs and edges, or null
+     * to follow the vertices' edge lists
+     * @param method algorithm used to label the clusters
+     */
+    public Clusters(
+            ClusterVertex[] vertices,
+            CompactGraph graph,
+            ClusteringMethod method) {
+        
+        this.vertices = vertices;
+        this.graph = graph;
+        this.method = method;
+        
+        int[] labels = buildLabels();
+        clusterIndex = ClusterIndex.fromLabels(labels);
+        setClusterLabels(vertices, labels);
+        
+        sizeIndex = new ClusterSizeIndex(clusterIndex);
+    }
+    
+    /**
+     * Constructor adopts clusters that were already built, such as a loaded
+     * snapshot, without traversing the graph. rebuild relabels them with
+     * union-find.
+     * @param vertices array containing all vertices in the graph, or null if
+     * there are only graph vertex IDs
+     * @param graph compact graph with the same vertex IDs and edges, or null
+     * to follow the vertices' edge lists
+     * @param clusterIndex clusters of the graph
+     */
+    public Clusters(
+            ClusterVertex[] vertices,
+            CompactGraph graph,
+            ClusterIndex clusterIndex) {
+        
         this.vertices = vertices;
-        clusterPopulations = buildAllClusters(vertices);
-        clusterLookup = Clusters.createClusterLookup(clusterPopulations);
+        this.graph = graph;
+        this.method = ClusteringMethod.UNION_FIND;
+        this.clusterIndex = clusterIndex;
+        this.sizeIndex = new ClusterSizeIndex(clusterIndex);
+        
+        setClusterLabels(vertices, clusterIndex.labels());
     }
     
     /**
@@ -48,42 +179,84 @@ public class Clusters {
      */
     public HashMap<Integer,ArrayList<Integer>> buildAllClustersRandomly() {
         
-        // Create a list containing every vertex ID
-        ArrayList<Integer> vertexIDs = new ArrayList<>();
+        return buildAllClustersRandomly(threadRandom());
+    }
+    
+    /**
+     * Clusters algorithm assigns cluster labels to every vertex, selecting
+     * vertices in an order drawn from a seed. The same seed always visits
+     * the vertices in the same order.
+     * 
+     * @param seed
+     * @return HashMap with <vertexID,getClusterLabel> key-value pair
+     */
+    public HashMap<Integer,ArrayList<Integer>> buildAllClustersRandomly(long seed) {
+        
+        return buildAllClustersRandomly(new SplittableRandom(seed));
+    }
+    
+    /**
+     * Clusters algorithm assigns cluster labels to every vertex, selecting
+     * vertices in an order drawn from a random source.
+     * 
+     * @param random random source, used by this thread only
+     * @return HashMap with <vertexID,getClusterLabel> key-value pair
+     */
+    public HashMap<Integer,ArrayList<Integer>> buildAllClustersRandomly(
+            SplittableRandom random) {
+        
+        long start = InfectionMetrics.startTime();
+        
+        // Shuffle every vertex ID (Fisher-Yates)
+        int[] vertexIDs = new int[size()];
+        
+        for (int i = 0; i < vertexIDs.length; i++) {
+            vertexIDs[i] = i;
+        }
         
-        for (int i = 0; i < vertices.length; i++) {
-            vertexIDs.add(i, i);
+        for (int i = vertexIDs.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = vertexIDs[i];
+            vertexIDs[i] = vertexIDs[j];
+            vertexIDs[j] = swap;
         }
         
         // HashMap containing all clusters 
         HashMap<Integer,ArrayList<Integer>> clusters = new HashMap<>();
         
-        // Array for indicating when vertices have been clustered
-        boolean[] closedSet = new boolean[vertices.length];
+        // One reset covers every cluster, so visited vertices stay clustered
+        Traversal search = traversal();
+        search.reset();
+        int[] members = new int[size()];
         
         int clusterLabel = 0;
         
         // For each vertex...
-        for (int i = 0; i < vertices.length; i++) {
+        for (int i = 0; i < vertexIDs.length; i++) {
             
-            // Remove a vertexID from the ArrayList
-            int vertexID = vertexIDs.remove((int) (Math.random() * vertexIDs.size()));
-            ClusterVertex vertex = vertices[vertexID];
+            // Take the next vertexID in the shuffled order
+            int vertexID = vertexIDs[i];
             
-            // If the vertex is in the closed set, skip this iteration
-            if (closedSet[vertex.id()]) {
+            // If the vertex is already clustered, skip this iteration
+            if (search.isVisited(vertexID)) {
                 continue;
             }
             
             // Create a new cluster
-            ArrayList<Integer> cluster = buildCluster(vertex, closedSet, clusterLabel);
+            int count = graph != null
+                    ? search.cluster(graph, vertexID, members)
+                    : search.cluster(vertices, vertexID, members);
+            
+            setClusterLabel(vertices, members, count, clusterLabel);
             
             // Add the cluster to the clusters hash
-            clusters.put(clusterLabel, cluster);
+            clusters.put(clusterLabel, toList(members, count));
             
             clusterLabel++;
         }
         
+        recordClustering(start);
+        
         return clusters;
     } 
     
@@ -91,11 +264,186 @@ public class Clusters {
      * Clusters algorithm assigns cluster labels to vertices. 
      * Clusters labels represent groups of connected vertices.
      * 
+     * Kept for callers that want every cluster as a list; the constructors
+     * label the clusters without boxing any vertex ID.
+     * 
      * @return HashMap with <vertexID,getClusterLabel> key-value pair
      */
     public HashMap<Integer,ArrayList<Integer>> buildAllClusters() {
         
-        return buildAllClusters(vertices);
+        if (graph == null) {
+            return buildAllClusters(vertices);
+        }
+        
+        HashMap<Integer,ArrayList<Integer>> clusters = buildAllClusters(graph);
+        
+        if (vertices == null) {
+            return clusters;
+        }
+        
+        // Copy the labels onto the vertices
+        for (int i = 0; i < clusters.size(); i++) {
+            for (int vertexID : clusters.get(i)) {
+                vertices[vertexID].setClusterLabel(i);
+            }
+        }
+        
+        return clusters;
+    }
+    
+    /**
+     * Label every vertex with the clustering method
+     * @return cluster label of every vertex ID
+     */
+    private int[] buildLabels() {
+        
+        long start = InfectionMetrics.startTime();
+        int[] labels;
+        
+        switch (method) {
+            
+            case UNION_FIND:
+                labels = graph != null
+                        ? UnionFind.fromGraph(graph).labels()
+                        : UnionFind.fromVertices(vertices).labels();
+                recordClustering(start);
+                break;
+                
+            case PARALLEL:
+                labels = graph != null
+                        ? ConcurrentUnionFind.fromGraph(graph).labels()
+                        : ConcurrentUnionFind.fromVertices(vertices).labels();
+                recordClustering(start);
+                break;
+                
+            default:
+                // TRAVERSAL, timed by labelAllClusters
+                labels = labelAllClusters();
+                break;
+        }
+        
+        return labels;
+    }
+    
+    /**
+     * Traversal clustering that only labels the vertices. Clusters are
+     * numbered in order of their smallest vertex ID, the same labels
+     * buildAllClusters assigns, but no per-cluster lists are built.
+     * 
+     * @return cluster label of every vertex ID
+     */
+    private int[] labelAllClusters() {
+        
+        long start = InfectionMetrics.startTime();
+        
+        int[] labels = new int[size()];
+        int[] members = new int[size()];
+        
+        // One reset covers every cluster, so visited vertices stay clustered
+        Traversal search = traversal();
+        search.reset();
+        
+        int clusterLabel = 0;
+        
+        for (int vertexID = 0; vertexID < labels.length; vertexID++) {
+            
+            if (search.isVisited(vertexID)) {
+                continue;
+            }
+            
+            int count = graph != null
+                    ? search.cluster(graph, vertexID, members)
+                    : search.cluster(vertices, vertexID, members);
+            
+            for (int i = 0; i < count; i++) {
+                labels[members[i]] = clusterLabel;
+            }
+            
+            clusterLabel++;
+        }
+        
+        recordClustering(start);
+        
+        return labels;
+    }
+    
+    /**
+     * Union-find clustering algorithm assigns the same cluster labels as
+     * buildAllClusters in a single pass over the edges.
+     * 
+     * @param vertices array containing all vertices
+     * @return HashMap with <getClusterLabel,verticesInCluster> key-value pair
+     */
+    public static HashMap<Integer,ArrayList<Integer>> buildAllClustersUnionFind(
+            ClusterVertex[] vertices) {
+        
+        int[] labels = UnionFind.fromVertices(vertices).labels();
+        setClusterLabels(vertices, labels);
+        
+        return Clusters.createClusterPopulations(labels);
+    }
+    
+    /**
+     * Union-find clustering algorithm for a compact graph. No vertex objects
+     * are needed.
+     * 
+     * @param graph compact graph containing all vertices
+     * @return HashMap with <getClusterLabel,verticesInCluster> key-value pair
+     */
+    public static HashMap<Integer,ArrayList<Integer>> buildAllClustersUnionFind(
+            CompactGraph graph) {
+        
+        return Clusters.createClusterPopulations(UnionFind.fromGraph(graph).labels());
+    }
+    
+    /**
+     * Parallel clustering algorithm assigns the same cluster labels as
+     * buildAllClusters using every core of the common fork-join pool.
+     * 
+     * @param vertices array containing all vertices
+     * @return HashMap with <getClusterLabel,verticesInCluster> key-value pair
+     */
+    public static HashMap<Integer,ArrayList<Integer>> buildAllClustersParallel(
+            ClusterVertex[] vertices) {
+        
+        long start = InfectionMetrics.startTime();
+        int[] labels = ConcurrentUnionFind.fromVertices(vertices).labels();
+        setClusterLabels(vertices, labels);
+        recordClustering(start);
+        
+        return Clusters.createClusterPopulations(labels);
+    }
+    
+    /**
+     * Parallel clustering algorithm for a compact graph.
+     * 
+     * @param graph compact graph containing all vertices
+     * @return HashMap with <getClusterLabel,verticesInCluster> key-value pair
+     */
+    public static HashMap<Integer,ArrayList<Integer>> buildAllClustersParallel(
+            CompactGraph graph) {
+        
+        long start = InfectionMetrics.startTime();
+        int[] labels = ConcurrentUnionFind.fromGraph(graph).labels();
+        recordClustering(start);
+        
+        return Clusters.createClusterPopulations(labels);
+    }
+    
+    /**
+     * Copy cluster labels onto the vertices
+     * @param vertices array containing all vertices
+     * @param labels array mapping vertex IDs to cluster labels
+     */
+    private static void setClusterLabels(ClusterVertex[] vertices, int[] labels) {
+        
+        if (vertices == null) {
+            return;
+        }
+        
+        for (int i = 0; i < labels.length; i++) {
+            vertices[i].setClusterLabel(labels[i]);
+        }
     }
     
     /**
@@ -108,33 +456,110 @@ public class Clusters {
     public static HashMap<Integer,ArrayList<Integer>> buildAllClusters(
             ClusterVertex[] vertices) {
         
+        long start = InfectionMetrics.startTime();
+        
         // HashMap containing all clusters 
         HashMap<Integer,ArrayList<Integer>> clusters = new HashMap<>();
         
-        // Array for indicating when vertices have been clustered
-        boolean[] closedSet = new boolean[vertices.length];
+        // Marks vertices as they are clustered
+        Traversal search = new Traversal(vertices.length);
+        int[] members = new int[vertices.length];
         
         int clusterLabel = 0;
         
         // For each vertex...
-        for (ClusterVertex vertex : vertices) {
+        for (int vertexID = 0; vertexID < vertices.length; vertexID++) {
             
-            // If the vertex is in the closed set, skip this iteration
-            if (closedSet[vertex.id()]) {
+            // If the vertex is already clustered, skip this iteration
+            if (search.isVisited(vertexID)) {
                 continue;
             }
             
             // Create a new cluster
-            ArrayList<Integer> cluster = buildCluster(vertex, closedSet, clusterLabel);
+            int count = search.cluster(vertices, vertexID, members);
+            setClusterLabel(vertices, members, count, clusterLabel);
             
             // Add the cluster to the clusters hash
-            clusters.put(clusterLabel, cluster);
+            clusters.put(clusterLabel, toList(members, count));
+            
+            clusterLabel++;
+        }
+        
+        recordClustering(start);
+        
+        return clusters;
+    } 
+
+    /**
+     * Clusters algorithm assigns cluster labels to the vertices of a compact
+     * graph, traversing it by vertex ID.
+     * 
+     * @param graph compact graph containing all vertices
+     * @return HashMap with <getClusterLabel,verticesInCluster> key-value pair
+     */
+    public static HashMap<Integer,ArrayList<Integer>> buildAllClusters(
+            CompactGraph graph) {
+        
+        long start = InfectionMetrics.startTime();
+        
+        // HashMap containing all clusters 
+        HashMap<Integer,ArrayList<Integer>> clusters = new HashMap<>();
+        
+        // Marks vertices as they are clustered
+        Traversal search = new Traversal(graph.numVertices());
+        int[] members = new int[graph.numVertices()];
+        
+        int clusterLabel = 0;
+        
+        for (int vertexID = 0; vertexID < graph.numVertices(); vertexID++) {
+            
+            // If the vertex is already clustered, skip this iteration
+            if (search.isVisited(vertexID)) {
+                continue;
+            }
+            
+            // Create a new cluster and add it to the clusters hash
+            int count = search.cluster(graph, vertexID, members);
+            clusters.put(clusterLabel, toList(members, count));
             
             clusterLabel++;
         }
         
+        recordClustering(start);
+        
         return clusters;
     } 
+    
+    /**
+     * Build a single cluster that contains a given vertex ID, using the
+     * compact graph when there is one.
+     * 
+     * @param rootID root member of the cluster
+     * @param closedSet set of vertices that have been clustered
+     * @param clusterLabel label for this cluster
+     * @return vertex IDs of the cluster's members
+     */
+    protected ArrayList<Integer> buildCluster(
+            int rootID,
+            boolean[] closedSet,
+            int clusterLabel) {
+        
+        if (graph == null) {
+            return buildCluster(vertices[rootID], closedSet, clusterLabel);
+        }
+        
+        ArrayList<Integer> cluster = buildCluster(graph, rootID, closedSet);
+        
+        if (vertices == null) {
+            return cluster;
+        }
+        
+        for (int vertexID : cluster) {
+            vertices[vertexID].setClusterLabel(clusterLabel);
+        }
+        
+        return cluster;
+    }
 
     /**
      * Build a single cluster that contains a given vertex.
@@ -149,35 +574,120 @@ public class Clusters {
             boolean[] closedSet,
             int clusterLabel) {
         
+        ArrayList<Integer> cluster = new ArrayList<>();
+        
+        if (closedSet[rootVertex.id()]) {
+            return cluster;
+        }
+        
         // Initialize open set
-        Stack<ClusterVertex> openSet = new Stack<>();
+        ClusterVertex[] openSet = new ClusterVertex[16];
+        int top = 0;
         
         // Push the root vertex onto the open set
-        openSet.push(rootVertex);
+        openSet[top++] = rootVertex;
+        closedSet[rootVertex.id()] = true;
+        int maxDepth = 1;
         
-        ArrayList<Integer> cluster = new ArrayList<>();
-        
-        while (!openSet.empty()) {
+        while (top > 0) {
             
-            ClusterVertex vertex = openSet.pop();
+            ClusterVertex vertex = openSet[--top];
+            ArrayList<ClusterVertex> edges = vertex.edges();
             
-            if (closedSet[vertex.id()]) {
-                continue;
+            // Make sure every neighbor fits on the open set
+            if (top + edges.size() > openSet.length) {
+                openSet = Arrays.copyOf(openSet, 
+                        Math.max(openSet.length * 2, top + edges.size()));
             }
             
-            /* Push every vertex this vertex is connected to onto the open 
-            set stack if the vertex is not already in the stack. */
-            vertex.edges().stream().filter((coach) 
-                    -> (!closedSet[coach.id()])).forEach((coach) -> {
-                openSet.add(coach);
-            });
+            // Push every unclustered neighbor onto the open set
+            for (int i = 0; i < edges.size(); i++) {
+                
+                ClusterVertex neighbor = edges.get(i);
+                
+                if (!closedSet[neighbor.id()]) {
+                    openSet[top++] = neighbor;
+                    closedSet[neighbor.id()] = true;
+                }
+            }
             
-            // Add this vertex to the closed set and cluster
+            maxDepth = Math.max(maxDepth, top);
+            
+            // Add this vertex to the cluster
             cluster.add(vertex.id());
             vertex.setClusterLabel(clusterLabel);
-            closedSet[vertex.id()] = true;
         }
         
+        recordTraversal(cluster.size(), maxDepth);
+        
+        return cluster;
+    }
+    
+    /**
+     * Build a single cluster that contains a given vertex of a compact graph.
+     * Vertices are added to the closed set as they are pushed, so the open
+     * set never holds a vertex twice.
+     * 
+     * @param graph compact graph containing the vertex
+     * @param rootID root member of the cluster
+     * @param closedSet set of vertices that have been clustered
+     * @return vertex IDs of the cluster's members
+     */
+    public static ArrayList<Integer> buildCluster(
+            CompactGraph graph,
+            int rootID,
+            boolean[] closedSet) {
+        
+        ArrayList<Integer> cluster = new ArrayList<>();
+        
+        // Initialize open set
+        int[] openSet = new int[16];
+        int top = 0;
+        
+        // Push the root vertex onto the open set
+        openSet[top++] = rootID;
+        closedSet[rootID] = true;
+        int maxDepth = 1;
+        
+        while (top > 0) {
+            
+            int vertexID = openSet[--top];
+            int numStudents = graph.coachesRelationSize(vertexID);
+            int numCoaches = graph.coachedByRelationSize(vertexID);
+            
+            // Make sure every neighbor fits on the open set
+            if (top + numStudents + numCoaches > openSet.length) {
+                openSet = Arrays.copyOf(openSet, 
+                        Math.max(openSet.length * 2, top + numStudents + numCoaches));
+            }
+            
+            // Push every unclustered student and coach onto the open set
+            for (int i = 0; i < numStudents; i++) {
+                
+                int student = graph.coachesRelation(vertexID, i);
+                
+                if (!closedSet[student]) {
+                    openSet[top++] = student;
+                    closedSet[student] = true;
+                }
+            }
+            
+            for (int i = 0; i < numCoaches; i++) {
+                
+                int coach = graph.coachedByRelation(vertexID, i);
+                
+                if (!closedSet[coach]) {
+                    openSet[top++] = coach;
+                    closedSet[coach] = true;
+                }
+            }
+            
+            maxDepth = Math.max(maxDepth, top);
+            cluster.add(vertexID);
+        }
+        
+        recordTraversal(cluster.size(), maxDepth);
+        
         return cluster;
     }
     
@@ -207,98 +717,322 @@ public class Clusters {
     }
     
     /**
-     * Getter method for the clusterLookup HashMap
+     * Create a table of cluster members from an array of cluster labels
+     * @param labels array mapping vertex IDs to cluster labels 0 to n - 1
+     * @return HashMap with <getClusterLabel,verticesInCluster> key-value pair
+     */
+    public static HashMap<Integer,ArrayList<Integer>> createClusterPopulations(
+            int[] labels) {
+        
+        // Count the members of every cluster so the lists are sized exactly
+        int numClusters = 0;
+        
+        for (int label : labels) {
+            numClusters = Math.max(numClusters, label + 1);
+        }
+        
+        int[] sizes = new int[numClusters];
+        
+        for (int label : labels) {
+            sizes[label]++;
+        }
+        
+        HashMap<Integer,ArrayList<Integer>> clusters = new HashMap<>(numClusters * 2);
+        
+        for (int label = 0; label < numClusters; label++) {
+            clusters.put(label, new ArrayList<>(sizes[label]));
+        }
+        
+        for (int vertexID = 0; vertexID < labels.length; vertexID++) {
+            clusters.get(labels[vertexID]).add(vertexID);
+        }
+        
+        return clusters;
+    }
+    
+    /**
+     * Find the members of the cluster containing a vertex by traversing the
+     * graph, without using the cluster index. Reuses one traversal, so
+     * nothing is allocated per call; not thread-safe.
+     * 
+     * @param rootID root member of the cluster
+     * @param members output, the IDs of the cluster's members; size() ints
+     * always fit
+     * @return number of members
+     */
+    protected int traverseCluster(int rootID, int[] members) {
+        
+        Traversal search = traversal();
+        search.reset();
+        
+        return graph != null
+                ? search.cluster(graph, rootID, members)
+                : search.cluster(vertices, rootID, members);
+    }
+    
+    /**
+     * Get the reused traversal, creating it on first use
      * @return 
      */
-    protected HashMap<Integer,Integer> getClusterLookup() {
-        return clusterLookup;
+    private Traversal traversal() {
+        
+        if (traversal == null) {
+            traversal = new Traversal(size());
+        }
+        
+        return traversal;
     }
     
     /**
-     * Getter method for the clusterPopulations HashMap
+     * Copy a cluster label onto some vertices
+     * @param vertices array containing all vertices, or null
+     * @param vertexIDs IDs of the vertices to label
+     * @param count number of IDs to read from the array
+     * @param clusterLabel label for the vertices
+     */
+    private static void setClusterLabel(
+            ClusterVertex[] vertices, int[] vertexIDs, int count, int clusterLabel) {
+        
+        if (vertices == null) {
+            return;
+        }
+        
+        for (int i = 0; i < count; i++) {
+            vertices[vertexIDs[i]].setClusterLabel(clusterLabel);
+        }
+    }
+    
+    /**
+     * Copy cluster members into a list
+     * @param members IDs of the cluster's members
+     * @param count number of IDs to read from the array
      * @return 
      */
-    protected HashMap<Integer,ArrayList<Integer>> getClusterPopulations() {
-        return clusterPopulations;
+    private static ArrayList<Integer> toList(int[] members, int count) {
+        
+        ArrayList<Integer> cluster = new ArrayList<>(count);
+        
+        for (int i = 0; i < count; i++) {
+            cluster.add(members[i]);
+        }
+        
+        return cluster;
     }
     
     /**
-     * Get the total number of vertices in this set of clusters
+     * Record a full clustering in the metrics
+     * @param start start time from InfectionMetrics.startTime()
+     */
+    private static void recordClustering(long start) {
+        
+        if (InfectionMetrics.enabled()) {
+            InfectionMetrics.get().clustering.recordSince(start);
+        }
+    }
+    
+    /**
+     * Record a single-cluster traversal in the metrics
+     * @param numVisited number of vertices in the cluster
+     * @param maxDepth deepest the open set grew
+     */
+    static void recordTraversal(int numVisited, int maxDepth) {
+        
+        if (InfectionMetrics.enabled()) {
+            InfectionMetrics metrics = InfectionMetrics.get();
+            metrics.traversals.increment();
+            metrics.verticesVisited.add(numVisited);
+            metrics.stackDepth.record(maxDepth);
+        }
+    }
+    
+    /**
+     * Get the calling thread's default random source
      * @return 
      */
-    public int size() {
-        return vertices.length;
+    protected static SplittableRandom threadRandom() {
+        return THREAD_RANDOM.get();
     }
     
     /**
-     * Print info for this cluster
+     * Getter method for the cluster index
+     * @return 
      */
-    public void printClusterData() {
-        Integer[] labels = new Integer[clusterPopulations.size()];
-        labels = clusterPopulations.keySet().toArray(labels);
+    protected ClusterIndex getClusterIndex() {
+        return clusterIndex;
+    }
+    
+    /**
+     * Split every cluster larger than a size into units of about that size,
+     * cutting as few coach relations as possible (see GraphPartitioner).
+     * Smaller clusters are one unit each. Limited and tiered infection then
+     * choose among units instead of whole clusters, so a population that is
+     * mostly one giant cluster can still be rolled out a fraction at a time.
+     * Total infection still infects whole clusters.
+     * 
+     * Units are not updated by insertEdge or deleteEdge; partition again
+     * after changing the graph.
+     * 
+     * @param maxUnitSize most vertices a unit should have
+     * @return number of units
+     */
+    public int partitionClusters(int maxUnitSize) {
         
-        int[] sizes = new int[labels.length];
+        requireFreshIndex();
         
-        double meanSize = 0;
-        int maxSize = 0;
-        int minSize = Integer.MAX_VALUE;
-        HashMap<Integer,Integer> numOfSizes = new HashMap<>();
+        GraphPartitioner partitioner = new GraphPartitioner(maxUnitSize, UNIT_IMBALANCE);
+        int[] unitLabels = new int[size()];
+        int[] members = clusterIndex.members();
+        int[] parts = null;
+        int numUnits = 0;
+        long cutEdges = 0;
         
-        for (int i = 0; i < labels.length; i++) {
+        for (int label = 0; label < clusterIndex.labelLimit(); label++) {
             
-            int size = clusterPopulations.get(labels[i]).size();
+            int size = clusterIndex.size(label);
+            int start = clusterIndex.start(label);
             
-            int numOfSize = numOfSizes.getOrDefault(size, 0) + 1;
-            numOfSizes.put(size, numOfSize);
+            if (size == 0) {
+                continue;
+            }
             
-            meanSize += size;
-            sizes[i] = size;
+            int numParts = 1;
             
-            if (size > maxSize) {
-                maxSize = size;
+            if (size > maxUnitSize) {
+                
+                if (parts == null || parts.length < size) {
+                    parts = new int[size];
+                }
+                
+                numParts = graph != null
+                        ? partitioner.partition(graph, members, start, size, parts)
+                        : partitioner.partition(vertices, members, start, size, parts);
+                cutEdges += partitioner.cutEdges();
             }
             
-            if (size < minSize) {
-                minSize = size;
+            for (int i = 0; i < size; i++) {
+                unitLabels[members[start + i]] = numUnits + (numParts > 1 ? parts[i] : 0);
             }
+            
+            numUnits += numParts;
         }
         
-        Arrays.sort(sizes);
+        unitIndex = ClusterIndex.fromLabels(unitLabels);
+        unitSizeIndex = new ClusterSizeIndex(unitIndex);
+        unitCutEdges = cutEdges;
         
-        meanSize /= labels.length;
-        double sizeStdDev = 0;
-
-        for (int i = 0; i < sizes.length; i++) {
-            
-            double error = sizes[i] - meanSize;
-            sizeStdDev += error * error;
-        }
+        return numUnits;
+    }
+    
+    /**
+     * Go back to infecting whole clusters
+     */
+    public void clearUnits() {
+        
+        unitIndex = null;
+        unitSizeIndex = null;
+        unitCutEdges = 0;
+    }
+    
+    /**
+     * Check whether the clusters have been split into units
+     * @return 
+     */
+    public boolean isPartitioned() {
+        return unitIndex != null;
+    }
+    
+    /**
+     * Get the number of units limited and tiered infection choose among
+     * @return number of units, or of clusters if they have not been split
+     */
+    public int numUnits() {
+        return getUnitIndex().numClusters();
+    }
+    
+    /**
+     * Get the number of coach relations between units of the same cluster
+     * @return 
+     */
+    public long unitCutEdges() {
+        return unitCutEdges;
+    }
+    
+    /**
+     * Get the index of the units limited and tiered infection choose among
+     * @return units, or the clusters if they have not been split
+     */
+    protected ClusterIndex getUnitIndex() {
+        return unitIndex != null ? unitIndex : clusterIndex;
+    }
+    
+    /**
+     * Getter method for the cluster size index
+     * @return 
+     */
+    protected ClusterSizeIndex getSizeIndex() {
+        return sizeIndex;
+    }
+    
+    /**
+     * Get the size index of the units limited and tiered infection choose
+     * among
+     * @return sizes of the units, or of the clusters if they have not been
+     * split
+     */
+    protected ClusterSizeIndex getUnitSizeIndex() {
+        return unitSizeIndex != null ? unitSizeIndex : sizeIndex;
+    }
+    
+    /**
+     * Get the total number of vertices in this set of clusters
+     * @return 
+     */
+    public int size() {
+        return vertices != null ? vertices.length : graph.numVertices();
+    }
+    
+    /**
+     * Get the number of clusters
+     * @return 
+     */
+    public int numClusters() {
+        return clusterIndex.numClusters();
+    }
+    
+    /**
+     * Print info for this cluster
+     */
+    public void printClusterData() {
         
-        sizeStdDev = Math.sqrt(sizeStdDev / sizes.length);
+        double meanSize = (double) size() / sizeIndex.numClusters();
+        double sizeStdDev = 0;
         
         System.out.println("------------------------------------------------");
         
         System.out.println("Size and number of every cluster:");
         System.out.println();
-        int lastSize = -1;
         
-        for (int i = 0; i < sizes.length; i++) {
+        // Visit every distinct size in ascending order
+        for (int size = sizeIndex.minSize(); size > 0; size = sizeIndex.nextSize(size)) {
             
-            if (numOfSizes.containsKey(sizes[i])) {
-                int nextSize = numOfSizes.remove(sizes[i]);
-                System.out.format("%10d,%d%n", sizes[i],nextSize);
-            }
+            int numOfSize = sizeIndex.count(size);
+            double error = size - meanSize;
+            sizeStdDev += error * error * numOfSize;
+            
+            System.out.format("%10d,%d%n", size, numOfSize);
         }
         
+        sizeStdDev = Math.sqrt(sizeStdDev / sizeIndex.numClusters());
+        
         System.out.println();
         
         System.out.println("------------------------------------------------");
         
-        System.out.println("  Max cluster size: " + maxSize);
-        System.out.println("  Min cluster size: " + minSize);
+        System.out.println("  Max cluster size: " + sizeIndex.maxSize());
+        System.out.println("  Min cluster size: " + sizeIndex.minSize());
         System.out.println(" Mean cluster size: " + meanSize);
         System.out.println("Standard deviation: " + sizeStdDev);
-        System.out.println("Number of clusters: " + clusterPopulations.size());
+        System.out.println("Number of clusters: " + clusterIndex.numClusters());
         
         System.out.println("------------------------------------------------");
     }
@@ -310,17 +1044,53 @@ public class Clusters {
      */
     public int clusterContainingVertex(ClusterVertex vertex) {
         
-        return clusterLookup.getOrDefault(vertex.id(), -1);
+        return clusterContainingVertex(vertex.id());
+    }
+    
+    /**
+     * Get the cluster that contains a specific vertex ID
+     * @param vertexID
+     * @return cluster containing vertex or -1 if the vertex is not in a cluster
+     */
+    public int clusterContainingVertex(int vertexID) {
+        
+        if (vertexID < 0 || vertexID >= clusterIndex.numVertices()) {
+            return -1;
+        }
+        
+        return clusterIndex.clusterOf(vertexID);
     }
     
     /**
      * Get the vertices of a specific cluster
      * @param clusterLabel cluster identifier
-     * @return vertices in cluster clusterLabel or null if label is invalid
+     * @return copy of the vertex IDs in cluster clusterLabel or null if label
+     * is invalid
      */
-    public ArrayList<Integer> verticesInCluster(int clusterLabel) {
+    public int[] verticesInCluster(int clusterLabel) {
         
-        return clusterPopulations.getOrDefault(clusterLabel, null);
+        if (!clusterIndex.isLabel(clusterLabel)) {
+            return null;
+        }
+        
+        return clusterIndex.copyOfCluster(clusterLabel);
+    }
+    
+    /**
+     * Get the vertices of a specific cluster without allocating, for callers
+     * that look clusters up repeatedly
+     * @param clusterLabel cluster identifier
+     * @param buffer output, the vertex IDs of the cluster; sizeOfCluster
+     * ints must fit
+     * @return number of vertex IDs copied or -1 if label is invalid
+     */
+    public int verticesInCluster(int clusterLabel, int[] buffer) {
+        
+        if (!clusterIndex.isLabel(clusterLabel)) {
+            return -1;
+        }
+        
+        return clusterIndex.copyOfCluster(clusterLabel, buffer);
     }
     
     /**
@@ -330,12 +1100,204 @@ public class Clusters {
      */
     public int sizeOfCluster(int clusterLabel) {
         
-        int size = -1;
+        if (!clusterIndex.isLabel(clusterLabel)) {
+            return -1;
+        }
+        
+        return clusterIndex.size(clusterLabel);
+    }
+    
+    /**
+     * Get the largest clusters
+     * @param k number of clusters
+     * @return labels of the k largest clusters, from largest to smallest
+     */
+    public int[] largestClusters(int k) {
+        
+        return sizeIndex.largest(k);
+    }
+    
+    /**
+     * Get the clusters with a size in a range
+     * @param minSize smallest size, inclusive
+     * @param maxSize largest size, inclusive
+     * @return labels of the clusters, from smallest to largest
+     */
+    public int[] clustersInSizeRange(int minSize, int maxSize) {
+        
+        return sizeIndex.inRange(minSize, maxSize);
+    }
+    
+    /**
+     * Get the smallest cluster of at least a size
+     * @param minSize
+     * @return label of the cluster or -1 if every cluster is smaller
+     */
+    public int smallestClusterOfSize(int minSize) {
+        
+        return sizeIndex.ceiling(minSize);
+    }
+    
+    /**
+     * Count the clusters of every size
+     * @return number of clusters of every size, indexed by size
+     */
+    public int[] clusterSizeHistogram() {
+        
+        return sizeIndex.histogram();
+    }
+    
+    /**
+     * Make sure the cluster index matches the graph
+     */
+    protected void requireFreshIndex() {
+        
+        if (stale) {
+            throw new IllegalStateException(
+                    "Cluster index is stale; call rebuild() first");
+        }
+    }
+    
+    /**
+     * Update the clusters after an edge between two vertices has been added
+     * to the graph. If the vertices were in different clusters, the smaller
+     * cluster is merged into the larger one, so the cost is proportional to
+     * the size of the smaller cluster.
+     * 
+     * @param a vertex at one end of the new edge
+     * @param b vertex at the other end of the new edge
+     * @throws IllegalStateException if the cluster index is stale
+     */
+    public void insertEdge(ClusterVertex a, ClusterVertex b) {
+        
+        requireMutableGraph();
+        requireFreshIndex();
+        
+        if (InfectionMetrics.enabled()) {
+            InfectionMetrics.get().edgeInserts.increment();
+        }
+        
+        int labelA = clusterIndex.clusterOf(a.id());
+        int labelB = clusterIndex.clusterOf(b.id());
+        
+        if (labelA == labelB) {
+            return;
+        }
+        
+        int sizeA = clusterIndex.size(labelA);
+        int sizeB = clusterIndex.size(labelB);
+        int mergedSize = Math.min(sizeA, sizeB);
+        int label = clusterIndex.merge(labelA, labelB);
+        
+        sizeIndex.remove(labelA, sizeA);
+        sizeIndex.remove(labelB, sizeB);
+        sizeIndex.add(label, sizeA + sizeB);
+        
+        // The smaller cluster's members were appended to the merged cluster
+        int[] members = clusterIndex.members();
+        int end = clusterIndex.start(label) + clusterIndex.size(label);
+        
+        for (int i = end - mergedSize; i < end; i++) {
+            vertices[members[i]].setClusterLabel(label);
+        }
+    }
+    
+    /**
+     * Update the clusters after an edge between two vertices has been
+     * removed from the graph. Searches outward from both vertices in
+     * alternating steps; if one search runs out of vertices before meeting
+     * the other, the vertices it found are split into a new cluster. The cost
+     * is proportional to the smaller side of the split, or to the part of the
+     * cluster searched before the two sides meet.
+     * 
+     * @param a vertex at one end of the removed edge
+     * @param b vertex at the other end of the removed edge
+     * @throws IllegalStateException if the cluster index is stale
+     */
+    public void deleteEdge(ClusterVertex a, ClusterVertex b) {
+        
+        requireMutableGraph();
+        requireFreshIndex();
+        
+        if (InfectionMetrics.enabled()) {
+            InfectionMetrics.get().edgeDeletes.increment();
+        }
+        
+        int label = clusterIndex.clusterOf(a.id());
         
-        if (clusterPopulations.containsKey(clusterLabel)) {
-            size = clusterPopulations.get(clusterLabel).size();
+        // Another edge between the vertices keeps them connected
+        if (a == b || a.edges().contains(b)) {
+            return;
         }
         
-        return size;
+        if (separatedIDs == null) {
+            separatedIDs = new int[size()];
+        }
+        
+        int count = traversal().separate(vertices, a.id(), b.id(), separatedIDs);
+        
+        if (count < 0) {
+            return;
+        }
+        
+        // Move the separated vertices into a new cluster
+        int oldSize = clusterIndex.size(label);
+        int newLabel = clusterIndex.split(label, separatedIDs, count);
+        
+        sizeIndex.resize(label, oldSize, oldSize - count);
+        sizeIndex.add(newLabel, count);
+        
+        if (InfectionMetrics.enabled()) {
+            InfectionMetrics.get().clusterSplits.increment();
+        }
+        
+        setClusterLabel(vertices, separatedIDs, count, newLabel);
+    }
+    
+    /**
+     * Mark the cluster index as out of date. Call this after changing the
+     * vertices' edges without insertEdge or deleteEdge; methods that would
+     * read the index fall back to traversing the graph until rebuild is
+     * called.
+     */
+    public void markStale() {
+        stale = true;
+    }
+    
+    /**
+     * Relabel the clusters from the graph with the clustering method they
+     * were built with, and rebuild the cluster index and the size index.
+     * Units from partitionClusters are dropped. The index is fresh again
+     * afterwards, so insertEdge and deleteEdge can be used. A
+     * ConcurrentRollout made before the rebuild keeps reading the old index.
+     */
+    public void rebuild() {
+        
+        int[] labels = buildLabels();
+        clusterIndex = ClusterIndex.fromLabels(labels);
+        setClusterLabels(vertices, labels);
+        sizeIndex = new ClusterSizeIndex(clusterIndex);
+        
+        clearUnits();
+        stale = false;
+    }
+    
+    /**
+     * Check whether the cluster index is out of date
+     * @return true if the graph changed without the index being updated
+     */
+    public boolean isStale() {
+        return stale;
+    }
+    
+    /**
+     * Make sure the clusters can follow changes to the graph
+     */
+    private void requireMutableGraph() {
+        
+        if (graph != null) {
+            throw new UnsupportedOperationException(
+                    "Clusters built over a CompactGraph cannot change");
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,218 @@
+package infection;
+
+import java.util.Arrays;
+
+/**
+ * Immutable coaches/coached-by graph stored in compressed sparse row form.
+ *
+ * Vertex IDs are array indices. The students of vertex v are stored in
+ * coaches[coachesOffsets[v]] to coaches[coachesOffsets[v + 1] - 1], and its
+ * coaches are stored the same way in the coachedBy array, so the whole graph
+ * is four int arrays instead of three ArrayLists per user.
+ *
+ * @author David Bell
+ */
+public class CompactGraph {
+
+    private final int numVertices; // Number of vertices in the graph
+    private final int[] coachesOffsets; // Start of each vertex's students
+    private final int[] coaches; // Students of every vertex
+    private final int[] coachedByOffsets; // Start of each vertex's coaches
+    private final int[] coachedBy; // Coaches of every vertex
+
+    /**
+     * Constructor. The arrays are used as-is and must not be modified. They
+     * may be null for subclasses that override every accessor.
+     *
+     * @param numVertices number of vertices in the graph
+     * @param coachesOffsets offsets into coaches, length numVertices + 1
+     * @param coaches students of every vertex
+     * @param coachedByOffsets offsets into coachedBy, length numVertices + 1
+     * @param coachedBy coaches of every vertex
+     */
+    protected CompactGraph(
+            int numVertices,
+            int[] coachesOffsets,
+            int[] coaches,
+            int[] coachedByOffsets,
+            int[] coachedBy) {
+
+        this.numVertices = numVertices;
+        this.coachesOffsets = coachesOffsets;
+        this.coaches = coaches;
+        this.coachedByOffsets = coachedByOffsets;
+        this.coachedBy = coachedBy;
+    }
+
+    /**
+     * Build a compact graph from the coach relations of an array of users.
+     * User IDs must be the indices of the users in the array.
+     *
+     * @param users array containing every user
+     * @return compact copy of the users' coach relations
+     */
+    public static CompactGraph fromUsers(User[] users) {
+
+        int numEdges = 0;
+
+        for (User user : users) {
+            numEdges += user.getCoachesRelationSize();
+        }
+
+        int[] coachIDs = new int[numEdges];
+        int[] studentIDs = new int[numEdges];
+        int edge = 0;
+
+        for (User user : users) {
+            for (User student : user.getCoachesRelation()) {
+                coachIDs[edge] = user.id();
+                studentIDs[edge] = student.id();
+                edge++;
+            }
+        }
+
+        return fromEdges(users.length, coachIDs, studentIDs, numEdges);
+    }
+
+    /**
+     * Build a compact graph from an edge list. Edge i says that vertex
+     * coachIDs[i] coaches vertex studentIDs[i]. Edges may be in any order.
+     *
+     * @param numVertices number of vertices in the graph
+     * @param coachIDs coach vertex of every edge
+     * @param studentIDs student vertex of every edge
+     * @param numEdges number of edges to read from the arrays
+     * @return compact graph containing the edges
+     */
+    public static CompactGraph fromEdges(
+            int numVertices, int[] coachIDs, int[] studentIDs, int numEdges) {
+
+        int[] coachesOffsets = new int[numVertices + 1];
+        int[] coachedByOffsets = new int[numVertices + 1];
+
+        // Count the degree of every vertex, shifted up by one
+        for (int i = 0; i < numEdges; i++) {
+            coachesOffsets[coachIDs[i] + 1]++;
+            coachedByOffsets[studentIDs[i] + 1]++;
+        }
+
+        // Prefix sums turn the degrees into offsets
+        for (int v = 0; v < numVertices; v++) {
+            coachesOffsets[v + 1] += coachesOffsets[v];
+            coachedByOffsets[v + 1] += coachedByOffsets[v];
+        }
+
+        int[] coaches = new int[numEdges];
+        int[] coachedBy = new int[numEdges];
+
+        // Next free slot for every vertex in each neighbor array
+        int[] coachesNext = Arrays.copyOf(coachesOffsets, numVertices);
+        int[] coachedByNext = Arrays.copyOf(coachedByOffsets, numVertices);
+
+        for (int i = 0; i < numEdges; i++) {
+            coaches[coachesNext[coachIDs[i]]++] = studentIDs[i];
+            coachedBy[coachedByNext[studentIDs[i]]++] = coachIDs[i];
+        }
+
+        return new CompactGraph(
+                numVertices, coachesOffsets, coaches, coachedByOffsets, coachedBy);
+    }
+
+    /**
+     * Get the number of vertices in the graph
+     * @return
+     */
+    public int numVertices() {
+        return numVertices;
+    }
+
+    /**
+     * Get the number of coach relations in the graph
+     * @return
+     */
+    public int numEdges() {
+        return coachesOffsets[numVertices];
+    }
+
+    /**
+     * Get the number of students coached by a vertex
+     * @param vertexID
+     * @return
+     */
+    public int coachesRelationSize(int vertexID) {
+        return coachesOffsets[vertexID + 1] - coachesOffsets[vertexID];
+    }
+
+    /**
+     * Get the number of coaches of a vertex
+     * @param vertexID
+     * @return
+     */
+    public int coachedByRelationSize(int vertexID) {
+        return coachedByOffsets[vertexID + 1] - coachedByOffsets[vertexID];
+    }
+
+    /**
+     * Get a student coached by a vertex
+     * @param vertexID
+     * @param i index of the student, 0 to coachesRelationSize(vertexID) - 1
+     * @return vertex ID of the student
+     */
+    public int coachesRelation(int vertexID, int i) {
+        return coaches[coachesOffsets[vertexID] + i];
+    }
+
+    /**
+     * Get a coach of a vertex
+     * @param vertexID
+     * @param i index of the coach, 0 to coachedByRelationSize(vertexID) - 1
+     * @return vertex ID of the coach
+     */
+    public int coachedByRelation(int vertexID, int i) {
+        return coachedBy[coachedByOffsets[vertexID] + i];
+    }
+
+    /**
+     * Get the number of vertices a vertex is connected to in either direction
+     * @param vertexID
+     * @return
+     */
+    public int degree(int vertexID) {
+        return coachesRelationSize(vertexID) + coachedByRelationSize(vertexID);
+    }
+
+    /**
+     * Get the i-th vertex a vertex is connected to. Students come first,
+     * followed by coaches.
+     *
+     * @param vertexID
+     * @param i index of the neighbor, 0 to degree(vertexID) - 1
+     * @return vertex ID of the neighbor
+     */
+    public int neighbor(int vertexID, int i) {
+
+        int numStudents = coachesRelationSize(vertexID);
+
+        if (i < numStudents) {
+            return coaches[coachesOffsets[vertexID] + i];
+        }
+
+        return coachedBy[coachedByOffsets[vertexID] + i - numStudents];
+    }
+
+    /**
+     * Approximate heap footprint of this graph in bytes
+     * @return
+     */
+    public long memoryBytes() {
+
+        long bytes = 16 + 4 + 4 * 8;    // Object header and fields
+
+        for (int[] array : new int[][] {
+                coachesOffsets, coaches, coachedByOffsets, coachedBy }) {
+            bytes += 16 + 4L * array.length;
+        }
+
+        return bytes;
+    }
+}
@@ -1,7 +1,22 @@
 package infection;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 /**
  * Utility class containing test methods for every component of the project.
@@ -216,6 +231,261 @@ public class ComponentTests {
         System.out.println();
     }
 
+    /**
+     * Compare every clustering method against the TRAVERSAL method, timing
+     * each one and checking that the cluster labels are identical.
+     *
+     * @param users array containing every user
+     */
+    public static void compareClusteringMethods(User[] users) {
+
+        System.out.println("------------------------------------------------");
+        System.out.println("------- Clustering method comparison test ------");
+        System.out.println("------------------------------------------------");
+
+        Infection expected = new Infection(users);
+        boolean failed = false;
+
+        // DEPTH_FIRST is only another name for TRAVERSAL
+        ClusteringMethod[] methods = {
+            ClusteringMethod.TRAVERSAL,
+            ClusteringMethod.UNION_FIND,
+            ClusteringMethod.PARALLEL
+        };
+
+        for (ClusteringMethod method : methods) {
+
+            // Keep the fastest of several runs
+            long time = Long.MAX_VALUE;
+            Infection infection = null;
+
+            for (int i = 0; i < 5; i++) {
+
+                long start = System.nanoTime();
+                infection = new Infection(users, null, method);
+                time = Math.min(time, System.nanoTime() - start);
+            }
+
+            boolean matches = Arrays.equals(
+                    expected.getClusterIndex().labels(),
+                    infection.getClusterIndex().labels());
+
+            System.out.println("  " + method + ":");
+            System.out.println("    clustering time (ms):   " + time / 1e6);
+            System.out.println("    number of clusters:     "
+                    + infection.numClusters());
+            System.out.println("    index size (approx. bytes): "
+                    + infection.getClusterIndex().memoryBytes());
+            System.out.println("    labels match:           " + matches);
+
+            failed |= !matches;
+        }
+
+        System.out.println("------------------------------------------------");
+
+        System.out.println("  Conclusion:");
+
+        if (failed) {
+            System.out.println("    Clustering methods do not agree");
+        } else {
+            System.out.println("    Clustering methods agree");
+        }
+
+        System.out.println("------------------------------------------------");
+        System.out.println();
+    }
+
+    /**
+     * Test incremental cluster updates. Adds random coach relations and then
+     * removes them again, comparing the clusters to a full re-clustering
+     * after every batch.
+     *
+     * @param users array containing every user
+     * @param infection
+     */
+    public static void testDynamicClusters(User[] users, Infection infection) {
+
+        System.out.println("------------------------------------------------");
+        System.out.println("------ Dynamic cluster update verification -----");
+        System.out.println("------------------------------------------------");
+
+        int numRelations = 1000;
+        User[] coaches = new User[numRelations];
+        User[] students = new User[numRelations];
+        boolean failed = false;
+
+        long start = System.nanoTime();
+
+        // Add random relations in batches
+        for (int i = 0; i < numRelations; i++) {
+
+            coaches[i] = users[(int) (Math.random() * users.length)];
+            students[i] = users[(int) (Math.random() * users.length)];
+
+            infection.addCoachRelation(coaches[i], students[i]);
+
+            if ((i + 1) % 250 == 0) {
+                boolean matches = matchesReclustering(users, infection);
+                System.out.println("  Added " + (i + 1) + " relations, clusters = "
+                        + infection.numClusters()
+                        + ", matches re-clustering: " + matches);
+                failed |= !matches;
+            }
+        }
+
+        // Remove them again in reverse order
+        for (int i = numRelations; --i >= 0;) {
+
+            infection.removeCoachRelation(coaches[i], students[i]);
+
+            if (i % 250 == 0) {
+                boolean matches = matchesReclustering(users, infection);
+                System.out.println("  Removed " + (numRelations - i)
+                        + " relations, clusters = "
+                        + infection.numClusters()
+                        + ", matches re-clustering: " + matches);
+                failed |= !matches;
+            }
+        }
+
+        long time = System.nanoTime() - start;
+
+        // Change the users behind the clusters' back, then rebuild
+        User coach = users[(int) (Math.random() * users.length)];
+        User student = users[(int) (Math.random() * users.length)];
+
+        coach.addCoachesRelation(student);
+        student.addCoachedByRelation(coach);
+        infection.markStale();
+
+        boolean refused = false;
+
+        try {
+            infection.addCoachRelation(student, coach);
+        } catch (IllegalStateException e) {
+            refused = true;
+        }
+
+        infection.rebuild();
+
+        boolean rebuilt = !infection.isStale() && matchesReclustering(users, infection);
+
+        // Incremental updates work again, including on the relation added
+        // while the index was stale
+        infection.addCoachRelation(student, coach);
+        rebuilt &= matchesReclustering(users, infection);
+        infection.removeCoachRelation(student, coach);
+        infection.removeCoachRelation(coach, student);
+        rebuilt &= matchesReclustering(users, infection);
+
+        System.out.println("  Stale index refuses updates: " + refused
+                + ", updates after rebuild match re-clustering: " + rebuilt);
+        failed |= !refused || !rebuilt;
+
+        System.out.println("------------------------------------------------");
+        System.out.println("  Time for " + 2 * numRelations
+                + " updates and checks (ms): " + time / 1e6);
+        System.out.println("------------------------------------------------");
+
+        System.out.println("  Conclusion:");
+
+        if (failed) {
+            System.out.println("    Dynamic cluster updates are not functioning properly");
+        } else {
+            System.out.println("    Dynamic cluster updates are functioning properly");
+        }
+
+        System.out.println("------------------------------------------------");
+        System.out.println();
+    }
+
+    /**
+     * Check that a set of clusters partitions the users the same way a full
+     * re-clustering does. Labels may differ, but must map one-to-one.
+     *
+     * @param users array containing every user
+     * @param clusters clusters to check
+     * @return true if the partitions are identical
+     */
+    private static boolean matchesReclustering(User[] users, Clusters clusters) {
+
+        int[] expected = UnionFind.fromVertices(users).labels();
+
+        HashMap<Integer, Integer> expectedToActual = new HashMap<>();
+        HashMap<Integer, Integer> actualToExpected = new HashMap<>();
+
+        for (int i = 0; i < users.length; i++) {
+
+            int actual = clusters.clusterContainingVertex(users[i]);
+
+            if (actual != users[i].getClusterLabel()) {
+                return false;
+            }
+
+            Integer mapped = expectedToActual.putIfAbsent(expected[i], actual);
+            Integer reverse = actualToExpected.putIfAbsent(actual, expected[i]);
+
+            if ((mapped != null && mapped != actual)
+                    || (reverse != null && reverse != expected[i])) {
+                return false;
+            }
+        }
+
+        // Every cluster's member list must agree with its lookup entries
+        int numMembers = 0;
+        int[] histogram = new int[users.length + 1];
+        int[] buffer = new int[users.length];
+        int maxSize = 0;
+
+        for (int label = 0; label < clusters.getClusterIndex().labelLimit(); label++) {
+
+            int count = clusters.verticesInCluster(label, buffer);
+
+            if (count < 0) {
+                continue;
+            }
+
+            for (int i = 0; i < count; i++) {
+
+                if (clusters.clusterContainingVertex(buffer[i]) != label) {
+                    return false;
+                }
+
+                numMembers++;
+            }
+
+            histogram[clusters.sizeOfCluster(label)]++;
+            maxSize = Math.max(maxSize, clusters.sizeOfCluster(label));
+        }
+
+        // The size index must agree with the clusters after every update
+        if (!Arrays.equals(clusters.clusterSizeHistogram(),
+                Arrays.copyOf(histogram, maxSize + 1))) {
+            return false;
+        }
+
+        int[] largest = clusters.largestClusters(10);
+
+        for (int i = 0; i < largest.length; i++) {
+
+            int limit = i > 0 ? clusters.sizeOfCluster(largest[i - 1]) : maxSize;
+
+            if (clusters.sizeOfCluster(largest[i]) > limit) {
+                return false;
+            }
+        }
+
+        int smallest = clusters.smallestClusterOfSize(2);
+
+        if (smallest >= 0 && clusters.clustersInSizeRange(2,
+                clusters.sizeOfCluster(smallest) - 1).length > 0) {
+            return false;
+        }
+
+        return numMembers == users.length
+                && expectedToActual.size() == clusters.numClusters();
+    }
+
     /**
      * Test total infection
      *
@@ -228,11 +498,6 @@ public class ComponentTests {
         System.out.println("---- total_infection algorithm verification ----");
         System.out.println("------------------------------------------------");
         
-        HashMap<Integer, ArrayList<Integer>> clusterPopulations
-                = infection.getClusterPopulations();
-        
-        HashMap<Integer, Integer> clusterLookup
-                = infection.getClusterLookup();
         boolean failed = false;
         
         // Test total_infection
@@ -242,8 +507,8 @@ public class ComponentTests {
             User testUser = users[randID];
             
             int numInfected = infection.total_infection(testUser, 99);
-            int cluster = clusterLookup.get(randID);
-            int expectedNum = clusterPopulations.get(cluster).size();
+            int cluster = infection.clusterContainingVertex(randID);
+            int expectedNum = infection.sizeOfCluster(cluster);
             
             System.out.println("  total_infection run " + i + ":");
             System.out.println("    expected infected population: " + expectedNum);
@@ -254,6 +519,41 @@ public class ComponentTests {
             }
         }
 
+        System.out.println("------------------------------------------------");
+
+        // Compare the index lookup against traversal on the largest cluster
+        int giantLabel = 0;
+
+        for (int label = 0; label < infection.getClusterIndex().labelLimit(); label++) {
+            if (infection.sizeOfCluster(label) > infection.sizeOfCluster(giantLabel)) {
+                giantLabel = label;
+            }
+        }
+
+        User giantUser = users[infection.verticesInCluster(giantLabel)[0]];
+        long traversalTime = Long.MAX_VALUE;
+        long indexTime = Long.MAX_VALUE;
+
+        for (int i = 0; i < 10; i++) {
+
+            long start = System.nanoTime();
+            int traversed = infection.totalInfectionByTraversal(giantUser.id(), 99);
+            traversalTime = Math.min(traversalTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            int indexed = infection.total_infection(giantUser, 99);
+            indexTime = Math.min(indexTime, System.nanoTime() - start);
+
+            if (traversed != indexed) {
+                failed = true;
+            }
+        }
+
+        System.out.println("  Largest cluster: "
+                + infection.sizeOfCluster(giantLabel) + " users");
+        System.out.println("    traversal total_infection (ms): " + traversalTime / 1e6);
+        System.out.println("        index total_infection (ms): " + indexTime / 1e6);
+
         System.out.println("------------------------------------------------");
         
         System.out.println("  Conclusion:");
@@ -282,17 +582,1060 @@ public class ComponentTests {
 
         System.out.println("------------------------------------------------");
         
+        int[] targets = new int[9];
+        int[] byCluster = new int[targets.length];
+        
         // Test limited_infection
         for (int i = 1; i < 10; i++) {
             
             int randomTarget = (int) (Math.random() * 2000);
             int numInfected = infection.limited_infection(randomTarget, 99);
             
+            targets[i - 1] = randomTarget;
+            byCluster[i - 1] = numInfected;
+            
             System.out.println("  limited_infection test " + i + ":");
             System.out.println("    target infected population: " + randomTarget);
             System.out.println("    actual infected population: " + numInfected);
         }
         
+        System.out.println("------------------------------------------------");
+        
+        // Split clusters into units and run the same targets again
+        long start = System.nanoTime();
+        int numUnits = infection.partitionClusters(100);
+        long partitionTime = System.nanoTime() - start;
+        
+        System.out.println("  Clusters: " + infection.numClusters()
+                + ", units of up to 100 users: " + numUnits);
+        System.out.println("  Coach relations cut between units: " + infection.unitCutEdges());
+        System.out.println("  Partition time (ms): " + partitionTime / 1e6);
+        System.out.println("------------------------------------------------");
+        
+        for (int i = 0; i < targets.length; i++) {
+            
+            int numInfected = infection.limited_infection(targets[i], 99);
+            
+            System.out.println("  target " + targets[i] + ": " + byCluster[i]
+                    + " by cluster, " + numInfected + " by unit");
+        }
+        
+        infection.clearUnits();
+        
+        System.out.println("------------------------------------------------");
+        
+        // Plan the same targets as one batch of non-overlapping rollouts
+        int[] versions = new int[targets.length];
+        
+        for (int i = 0; i < targets.length; i++) {
+            versions[i] = 1000 + i;
+        }
+        
+        int[] achieved = infection.limited_infection(targets, versions);
+        boolean overlapping = false;
+        
+        for (int i = 0; i < targets.length; i++) {
+            
+            overlapping |= infection.countOnVersion(versions[i]) != achieved[i];
+            
+            System.out.println("  batch request " + (i + 1) + ": target "
+                    + targets[i] + ", achieved " + achieved[i]);
+        }
+        
+        System.out.println("  Batch planning time (ms): " + infection.lastPlanningNanos() / 1e6);
+        System.out.println("  Requests share clusters: " + overlapping);
+        System.out.println("  Small batch matches brute force: " + matchesBruteForceBatch());
+        
+        System.out.println("------------------------------------------------");
+        System.out.println();
+    }
+
+    /**
+     * Run a batch of limited infections on a small population and check it
+     * against a brute-force search. Every request must have its achieved
+     * size on its version, no cluster may be split between versions, and
+     * every request must come as close to its target as any subset of the
+     * clusters the requests planned before it left over.
+     *
+     * @return true if the batch matches the brute force
+     */
+    private static boolean matchesBruteForceBatch() {
+
+        User[] users = Main.getRandomUserBase(300, 1, 8, 3);
+        Infection infection = new Infection(users);
+        ClusterIndex index = infection.getClusterIndex();
+
+        int[] targets = new int[8];
+        int[] versions = new int[targets.length];
+
+        for (int i = 0; i < targets.length; i++) {
+            targets[i] = (int) (Math.random() * 100);
+            versions[i] = 2000 + i;
+        }
+
+        // A tie, planned in request order
+        targets[1] = targets[0];
+
+        int[] achieved = infection.limited_infection(targets, versions);
+
+        for (int i = 0; i < targets.length; i++) {
+            if (infection.countOnVersion(versions[i]) != achieved[i]) {
+                return false;
+            }
+        }
+
+        // Version of every cluster, which all of its users must share
+        int[] clusterVersions = new int[index.labelLimit()];
+        Arrays.fill(clusterVersions, -1);
+
+        for (User user : users) {
+
+            int label = index.clusterOf(user.id());
+
+            if (clusterVersions[label] < 0) {
+                clusterVersions[label] = user.websiteVersion();
+            } else if (clusterVersions[label] != user.websiteVersion()) {
+                return false;
+            }
+        }
+
+        // Replay the planning order: smallest target first, ties in request order
+        long[] order = new long[targets.length];
+
+        for (int i = 0; i < targets.length; i++) {
+            order[i] = (long) targets[i] << 32 | i;
+        }
+
+        Arrays.sort(order);
+
+        boolean[] planned = new boolean[targets.length];
+
+        for (long key : order) {
+
+            int request = (int) key;
+            int upper = (int) Math.floor(targets[request] * (1.0 + 0.05f));
+
+            // Sums reachable with the clusters no earlier request took
+            boolean[] reachable = new boolean[upper + 1];
+            reachable[0] = true;
+
+            for (int label = 0; label < index.labelLimit(); label++) {
+
+                int taker = clusterVersions[label] - 2000;
+
+                if (index.size(label) == 0
+                        || taker >= 0 && taker < targets.length && planned[taker]) {
+                    continue;
+                }
+
+                for (int sum = upper; sum >= index.size(label); sum--) {
+                    reachable[sum] |= reachable[sum - index.size(label)];
+                }
+            }
+
+            int bestDistance = Integer.MAX_VALUE;
+
+            for (int sum = 0; sum <= upper; sum++) {
+                if (reachable[sum]) {
+                    bestDistance = Math.min(bestDistance, Math.abs(sum - targets[request]));
+                }
+            }
+
+            if (Math.abs(achieved[request] - targets[request]) != bestDistance) {
+                return false;
+            }
+
+            planned[request] = true;
+        }
+
+        return true;
+    }
+
+    /**
+     * Run total infections from several writer threads while reader threads
+     * read users' versions and a flusher writes the versions through, then
+     * check that every cluster was left on a single version.
+     *
+     * @param users array containing every user
+     * @param infection
+     */
+    public static void testConcurrentRollout(User[] users, Infection infection) {
+
+        System.out.println("------------------------------------------------");
+        System.out.println("------------ Concurrent rollout test -----------");
+        System.out.println("------------------------------------------------");
+
+        ConcurrentRollout rollout = new ConcurrentRollout(infection);
+        int numThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        long runNanos = 1000000000L;
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        LongAdder rollouts = new LongAdder();
+        LongAdder reads = new LongAdder();
+        LongAdder flushes = new LongAdder();
+        Thread[] threads = new Thread[2 * numThreads + 1];
+
+        for (int t = 0; t < numThreads; t++) {
+
+            SplittableRandom random = new SplittableRandom(t);
+
+            threads[t] = new Thread(() -> {
+                while (running.get()) {
+                    rollout.total_infection(random.nextInt(users.length), random.nextInt(100));
+                    rollouts.increment();
+                }
+            });
+
+            threads[numThreads + t] = new Thread(() -> {
+
+                int sink = 0;
+
+                while (running.get()) {
+                    sink += rollout.websiteVersion(random.nextInt(users.length));
+                    reads.increment();
+                }
+
+                if (sink == 42) {
+                    reads.increment();
+                }
+            });
+        }
+
+        threads[2 * numThreads] = new Thread(() -> {
+            while (running.get()) {
+                rollout.flush();
+                flushes.increment();
+            }
+        });
+
+        long start = System.nanoTime();
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        try {
+            Thread.sleep(runNanos / 1000000);
+            running.set(false);
+
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        // Versions read through the engine must match the users after a flush
+        boolean failed = false;
+        int[] seen = new int[users.length];
+
+        for (int i = 0; i < users.length; i++) {
+            seen[i] = rollout.websiteVersion(i);
+        }
+
+        rollout.flush();
+        ClusterIndex index = infection.getClusterIndex();
+
+        for (int i = 0; i < users.length; i++) {
+
+            int first = index.members()[index.start(index.clusterOf(i))];
+
+            if (users[i].websiteVersion() != seen[i]
+                    || users[i].websiteVersion() != users[first].websiteVersion()) {
+                failed = true;
+                break;
+            }
+        }
+
+        System.out.println("  Writer threads: " + numThreads + ", reader threads: " + numThreads);
+        System.out.println("  Rollouts per second: " + (long) (rollouts.sum() / seconds));
+        System.out.println("  Reads per second:    " + (long) (reads.sum() / seconds));
+        System.out.println("  Flushes:             " + flushes.sum());
+        System.out.println("------------------------------------------------");
+
+        System.out.println("  Conclusion:");
+
+        if (failed) {
+            System.out.println("    Some cluster was left with mixed versions");
+        } else {
+            System.out.println("    Every cluster is on a single version");
+        }
+
+        System.out.println("------------------------------------------------");
+        System.out.println();
+    }
+
+    /**
+     * Record total, limited and tiered infections in an undo log, revert
+     * them newest first, and check that every user is back on their original
+     * version.
+     *
+     * @param users array containing every user
+     * @param infection
+     */
+    public static void testRolloutLog(User[] users, Infection infection) {
+
+        System.out.println("------------------------------------------------");
+        System.out.println("--------------- Rollout undo test --------------");
+        System.out.println("------------------------------------------------");
+
+        RolloutLog previousLog = infection.getRolloutLog();
+        RolloutLog log = new RolloutLog(1L << 26);
+        infection.setRolloutLog(log);
+
+        int[] original = new int[users.length];
+
+        for (int i = 0; i < users.length; i++) {
+            original[i] = infection.websiteVersion(i);
+        }
+
+        long[] rolloutIDs = new long[3];
+        CompressedBitmap[] members = new CompressedBitmap[3];
+        boolean failed = false;
+
+        int numTotal = infection.total_infection(97);
+        rolloutIDs[0] = infection.lastRolloutID();
+        members[0] = infection.rolloutMembers(rolloutIDs[0]);
+        failed |= members[0].cardinality() != numTotal || !allOnVersion(infection, members[0], 97);
+
+        int numLimited = infection.limited_infection(users.length / 10, 98);
+        rolloutIDs[1] = infection.lastRolloutID();
+        members[1] = infection.rolloutMembers(rolloutIDs[1]);
+        failed |= members[1].cardinality() != numLimited || !allOnVersion(infection, members[1], 98);
+
+        infection.tiered_infection(new int[] { 3, 4, 5, 6 });
+        rolloutIDs[2] = infection.lastRolloutID();
+        members[2] = infection.rolloutMembers(rolloutIDs[2]);
+
+        CompressedBitmap union = CompressedBitmap.or(CompressedBitmap.or(members[0], members[1]), members[2]);
+        CompressedBitmap overlap = CompressedBitmap.and(members[1], members[2]);
+        CompressedBitmap limitedOnly = CompressedBitmap.andNot(members[1], members[2]);
+        failed |= overlap.cardinality() + limitedOnly.cardinality() != members[1].cardinality();
+
+        long logBytes = log.memoryBytes();
+        long start = System.nanoTime();
+        long numRestored = 0;
+
+        for (int i = rolloutIDs.length - 1; i >= 0; i--) {
+            numRestored += infection.revertRollout(rolloutIDs[i]);
+        }
+
+        long revertTime = System.nanoTime() - start;
+
+        for (int i = 0; i < users.length; i++) {
+            if (infection.websiteVersion(i) != original[i]) {
+                failed = true;
+                break;
+            }
+        }
+
+        infection.setRolloutLog(previousLog);
+
+        System.out.println("  Rollouts recorded: " + rolloutIDs.length);
+        System.out.println("  Undo log size (bytes): " + logBytes);
+        System.out.println("  Users restored: " + numRestored);
+        System.out.println("  Revert time (ms): " + revertTime / 1e6);
+        System.out.println("------------------------------------------------");
+        System.out.println("  Users in any rollout: " + union.cardinality()
+                + " (" + union.memoryBytes() + " bytes)");
+        System.out.println("  Limited and tiered: " + overlap.cardinality());
+        System.out.println("  Limited only: " + limitedOnly.cardinality());
+        System.out.println("------------------------------------------------");
+
+        System.out.println("  Conclusion:");
+
+        if (failed) {
+            System.out.println("    Rollout members or reverted versions do not match");
+        } else {
+            System.out.println("    Every user is back on their original version");
+        }
+
+        System.out.println("------------------------------------------------");
+        System.out.println();
+    }
+
+    /**
+     * Check whether every member of a set sees a version
+     *
+     * @param infection
+     * @param members set of user IDs
+     * @param version
+     * @return
+     */
+    private static boolean allOnVersion(Infection infection, CompressedBitmap members, int version) {
+
+        for (int userID : members.toArray()) {
+            if (infection.websiteVersion(userID) != version) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Run infections, then compare the version index's counts and members
+     * against a scan of every user.
+     *
+     * @param users array containing every user
+     * @param infection
+     */
+    public static void testVersionIndex(User[] users, Infection infection) {
+
+        System.out.println("------------------------------------------------");
+        System.out.println("--------------- Version index test -------------");
+        System.out.println("------------------------------------------------");
+
+        infection.tiered_infection(new int[] { 3, 4, 5, 6 });
+        infection.limited_infection(users.length / 10, 7);
+        infection.total_infection(8);
+
+        boolean failed = false;
+        long scanTime = 0;
+        long indexTime = 0;
+
+        for (int version = 3; version <= 8; version++) {
+
+            long start = System.nanoTime();
+            int expected = 0;
+
+            for (User user : users) {
+                if (user.websiteVersion() == version) {
+                    expected++;
+                }
+            }
+
+            scanTime += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            int count = infection.countOnVersion(version);
+            indexTime += System.nanoTime() - start;
+
+            int[] members = infection.usersOnVersion(version);
+            failed |= count != expected || members.length != expected;
+
+            for (int userID : members) {
+                failed |= users[userID].websiteVersion() != version;
+            }
+
+            System.out.println("  Version " + version + ": " + count + " users");
+        }
+
+        // Codes are never reclaimed, so retiring the versions that widened
+        // the code column leaves it wide
+        UserColumns columns = new UserColumns(1000);
+
+        for (int userID = 0; userID < columns.size(); userID++) {
+            columns.setVersion(userID, 100 + userID % 300);
+        }
+
+        int widened = columns.codeBytes();
+        columns.fillVersion(0, columns.size(), 0);
+        columns.setVersion(7, 399);
+
+        boolean oneWay = widened == 2 && columns.codeBytes() == 2
+                && columns.numVersions() == 301
+                && columns.countOnVersion(0) == columns.size() - 1
+                && columns.version(7) == 399 && columns.version(8) == 0;
+        failed |= !oneWay;
+
+        System.out.println("  Code column after 300 versions: " + widened
+                + " bytes per user, after retiring them: "
+                + columns.codeBytes() + " bytes per user");
+
+        System.out.println("------------------------------------------------");
+        System.out.println("  Scan count time (ms):  " + scanTime / 1e6);
+        System.out.println("  Index count time (ms): " + indexTime / 1e6);
+        System.out.println("------------------------------------------------");
+
+        System.out.println("  Conclusion:");
+
+        if (failed) {
+            System.out.println("    Version index does not match the users");
+        } else {
+            System.out.println("    Version index matches the users");
+        }
+
+        System.out.println("------------------------------------------------");
+        System.out.println();
+    }
+
+    /**
+     * Compare the memory use and clustering speed of the compact graph
+     * against the users' object graph.
+     *
+     * @param users array containing every user
+     */
+    public static void testCompactGraph(User[] users) {
+
+        System.out.println("------------------------------------------------");
+        System.out.println("------ Compact graph vs. object graph test -----");
+        System.out.println("------------------------------------------------");
+
+        long start = System.nanoTime();
+        CompactGraph graph = CompactGraph.fromUsers(users);
+        long buildTime = System.nanoTime() - start;
+
+        long objectBytes = estimateObjectGraphBytes(users);
+        long compactBytes = graph.memoryBytes();
+
+        // Time both traversals, keeping the fastest of several runs
+        long objectTime = Long.MAX_VALUE;
+        long compactTime = Long.MAX_VALUE;
+        HashMap<Integer, ArrayList<Integer>> objectClusters = null;
+        HashMap<Integer, ArrayList<Integer>> compactClusters = null;
+
+        for (int i = 0; i < 5; i++) {
+
+            start = System.nanoTime();
+            objectClusters = Clusters.buildAllClusters(users);
+            objectTime = Math.min(objectTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            compactClusters = Clusters.buildAllClusters(graph);
+            compactTime = Math.min(compactTime, System.nanoTime() - start);
+        }
+
+        // Both traversals visit roots in ID order, so the labels must match
+        boolean failed = objectClusters.size() != compactClusters.size();
+
+        for (int i = 0; !failed && i < objectClusters.size(); i++) {
+            failed = objectClusters.get(i).size() != compactClusters.get(i).size();
+        }
+
+        System.out.println("  Users: " + users.length + ", coach relations: "
+                + graph.numEdges());
+        System.out.println("  Compact graph build time (ms): " + buildTime / 1e6);
+        System.out.println("------------------------------------------------");
+        System.out.println("  Object graph size (approx. bytes):  " + objectBytes);
+        System.out.println("  Compact graph size (approx. bytes): " + compactBytes);
+        System.out.println("  Object graph clustering time (ms):  " + objectTime / 1e6);
+        System.out.println("  Compact graph clustering time (ms): " + compactTime / 1e6);
+        System.out.println("------------------------------------------------");
+
+        System.out.println("  Conclusion:");
+
+        if (failed) {
+            System.out.println("    Compact graph clusters do not match");
+        } else {
+            System.out.println("    Compact graph clusters match the object graph");
+        }
+
+        System.out.println("------------------------------------------------");
+        System.out.println();
+    }
+
+    /**
+     * Renumber the users so every cluster is a contiguous range of IDs, and
+     * compare the time to traverse and infect every cluster before and after.
+     *
+     * @param users array containing every user
+     */
+    public static void testVertexOrdering(User[] users) {
+
+        System.out.println("------------------------------------------------");
+        System.out.println("------- Cluster-contiguous numbering test ------");
+        System.out.println("------------------------------------------------");
+
+        CompactGraph graph = CompactGraph.fromUsers(users);
+        ClusterIndex index = new Clusters(graph, ClusteringMethod.UNION_FIND).getClusterIndex();
+
+        long start = System.nanoTime();
+        VertexOrdering ordering = VertexOrdering.clusterContiguous(graph, index);
+        CompactGraph permuted = ordering.permute(graph);
+        long orderTime = System.nanoTime() - start;
+
+        ClusterIndex permutedIndex
+                = new Clusters(permuted, ClusteringMethod.UNION_FIND).getClusterIndex();
+
+        // Clusters keep their labels, and every one must now be a range
+        boolean failed = !permutedIndex.isContiguous()
+                || index.numClusters() != permutedIndex.numClusters();
+
+        for (int label = 0; !failed && label < index.labelLimit(); label++) {
+            failed = index.size(label) != permutedIndex.size(label);
+        }
+
+        for (int userID = 0; !failed && userID < users.length; userID++) {
+            failed = ordering.externalID(ordering.internalID(userID)) != userID
+                    || index.clusterOf(userID)
+                    != permutedIndex.clusterOf(ordering.internalID(userID));
+        }
+
+        // Time traversal and infection of every cluster, keeping the fastest run
+        UserColumns columns = new UserColumns(users.length);
+        long traversalTime = Long.MAX_VALUE;
+        long permutedTraversalTime = Long.MAX_VALUE;
+        long infectionTime = Long.MAX_VALUE;
+        long permutedInfectionTime = Long.MAX_VALUE;
+
+        for (int i = 0; i < 5; i++) {
+
+            start = System.nanoTime();
+            Clusters.buildAllClusters(graph);
+            traversalTime = Math.min(traversalTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            Clusters.buildAllClusters(permuted);
+            permutedTraversalTime = Math.min(permutedTraversalTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int label = 0; label < index.labelLimit(); label++) {
+                columns.setVersionForCluster(index, label, i);
+            }
+            infectionTime = Math.min(infectionTime, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (int label = 0; label < permutedIndex.labelLimit(); label++) {
+                columns.setVersionForCluster(permutedIndex, label, i);
+            }
+            permutedInfectionTime = Math.min(permutedInfectionTime, System.nanoTime() - start);
+        }
+
+        System.out.println("  Users: " + users.length + ", clusters: " + index.numClusters());
+        System.out.println("  Renumbering time (ms): " + orderTime / 1e6);
+        System.out.println("  Ordering size (approx. bytes): " + ordering.memoryBytes());
+        System.out.println("------------------------------------------------");
+        System.out.println("  Traversal time, generation order (ms): " + traversalTime / 1e6);
+        System.out.println("  Traversal time, contiguous order (ms): " + permutedTraversalTime / 1e6);
+        System.out.println("  Infection time, generation order (ms): " + infectionTime / 1e6);
+        System.out.println("  Infection time, contiguous order (ms): " + permutedInfectionTime / 1e6);
+        System.out.println("------------------------------------------------");
+
+        System.out.println("  Conclusion:");
+
+        if (failed) {
+            System.out.println("    Renumbered clusters do not match");
+        } else {
+            System.out.println("    Renumbered clusters match and are contiguous");
+        }
+
+        System.out.println("------------------------------------------------");
+        System.out.println();
+    }
+
+    /**
+     * Write the users to a graph file, map it back, and compare opening and
+     * clustering the mapped graph against building the graph on the heap.
+     *
+     * @param users array containing every user
+     */
+    public static void testGraphFile(User[] users) {
+
+        System.out.println("------------------------------------------------");
+        System.out.println("------- Mapped graph file vs. heap graph -------");
+        System.out.println("------------------------------------------------");
+
+        long start = System.nanoTime();
+        CompactGraph graph = CompactGraph.fromUsers(users);
+        long buildTime = System.nanoTime() - start;
+
+        UserColumns columns = new UserColumns(users.length);
+
+        for (User user : users) {
+            columns.setVersion(user.id(), user.websiteVersion());
+        }
+
+        Path path = null;
+
+        try {
+            path = Files.createTempFile("infection", ".graph");
+
+            start = System.nanoTime();
+            GraphFile.write(path, graph, columns);
+            long writeTime = System.nanoTime() - start;
+
+            try (GraphFile file = GraphFile.open(path)) {
+
+                start = System.nanoTime();
+                GraphFile reopened = GraphFile.open(path);
+                long openTime = System.nanoTime() - start;
+                reopened.close();
+
+                CompactGraph mapped = file.graph();
+
+                // Time clustering of both graphs, keeping the fastest run
+                long heapTime = Long.MAX_VALUE;
+                long mappedTime = Long.MAX_VALUE;
+                ClusterIndex heapIndex = null;
+                ClusterIndex mappedIndex = null;
+
+                for (int i = 0; i < 5; i++) {
+
+                    start = System.nanoTime();
+                    heapIndex = new Clusters(graph, ClusteringMethod.UNION_FIND).getClusterIndex();
+                    heapTime = Math.min(heapTime, System.nanoTime() - start);
+
+                    start = System.nanoTime();
+                    mappedIndex = new Clusters(mapped, ClusteringMethod.UNION_FIND).getClusterIndex();
+                    mappedTime = Math.min(mappedTime, System.nanoTime() - start);
+                }
+
+                boolean failed = mapped.numEdges() != graph.numEdges()
+                        || !Arrays.equals(heapIndex.labels(), mappedIndex.labels());
+
+                UserColumns loaded = file.loadColumns();
+
+                for (int userID = 0; !failed && userID < users.length; userID++) {
+                    failed = loaded.version(userID) != columns.version(userID);
+                }
+
+                System.out.println("  Users: " + users.length + ", coach relations: "
+                        + graph.numEdges());
+                System.out.println("  File size (bytes): " + file.sizeBytes());
+                System.out.println("  File write time (ms): " + writeTime / 1e6);
+                System.out.println("------------------------------------------------");
+                System.out.println("  Heap graph build time (ms):  " + buildTime / 1e6);
+                System.out.println("  Mapped graph open time (ms): " + openTime / 1e6);
+                System.out.println("  Heap graph size (approx. bytes):   " + graph.memoryBytes());
+                System.out.println("  Mapped graph size (approx. bytes): " + mapped.memoryBytes());
+                System.out.println("  Heap graph clustering time (ms):   " + heapTime / 1e6);
+                System.out.println("  Mapped graph clustering time (ms): " + mappedTime / 1e6);
+                System.out.println("------------------------------------------------");
+
+                System.out.println("  Conclusion:");
+
+                if (failed) {
+                    System.out.println("    Mapped graph does not match the heap graph");
+                } else {
+                    System.out.println("    Mapped graph matches the heap graph");
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("  Error: " + e.getMessage());
+        } finally {
+            try {
+                if (path != null) {
+                    Files.deleteIfExists(path);
+                }
+            } catch (IOException e) {
+                System.out.println("  Error: " + e.getMessage());
+            }
+        }
+
+        System.out.println("------------------------------------------------");
+        System.out.println();
+    }
+
+    /**
+     * Save the users' clusters to a snapshot, then compare loading it with
+     * clustering the users again, and check that a changed graph does not
+     * load the old snapshot.
+     *
+     * @param users array containing every user
+     */
+    public static void testClusterSnapshot(User[] users) {
+
+        System.out.println("------------------------------------------------");
+        System.out.println("----------- Clustering snapshot test -----------");
+        System.out.println("------------------------------------------------");
+
+        Path path = null;
+
+        try {
+            path = Files.createTempFile("infection", ".clusters");
+            Files.delete(path);
+
+            // No snapshot yet, so this clusters the users and saves one
+            long start = System.nanoTime();
+            Infection clustered = Infection.withSnapshot(
+                    users, null, ClusteringMethod.UNION_FIND, path);
+            long clusterTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Infection loaded = Infection.withSnapshot(
+                    users, null, ClusteringMethod.UNION_FIND, path);
+            long loadTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long checksum = ClusterSnapshot.checksum(users);
+            long checksumTime = System.nanoTime() - start;
+
+            boolean failed = !Arrays.equals(
+                    clustered.getClusterIndex().labels(),
+                    loaded.getClusterIndex().labels());
+
+            // A new coach relation changes the checksum, so the snapshot is stale
+            User coach = users[0];
+            User student = users[users.length - 1];
+            boolean added = !coach.getCoachesRelation().contains(student);
+
+            if (added) {
+                coach.addCoachesRelation(student);
+                student.addCoachedByRelation(coach);
+
+                failed |= ClusterSnapshot.load(path,
+                        ClusterSnapshot.checksum(users), users.length) != null;
+
+                coach.removeCoachesRelation(student);
+                student.removeCoachedByRelation(coach);
+            }
+
+            failed |= ClusterSnapshot.load(path, checksum, users.length) == null;
+
+            System.out.println("  Users: " + users.length + ", clusters: "
+                    + loaded.numClusters());
+            System.out.println("  Snapshot size (bytes): " + Files.size(path));
+            System.out.println("------------------------------------------------");
+            System.out.println("  Cluster and save time (ms): " + clusterTime / 1e6);
+            System.out.println("  Load time (ms):             " + loadTime / 1e6);
+            System.out.println("    Graph checksum time (ms): " + checksumTime / 1e6);
+            System.out.println("------------------------------------------------");
+
+            System.out.println("  Conclusion:");
+
+            if (failed) {
+                System.out.println("    Snapshot clusters do not match");
+            } else {
+                System.out.println("    Snapshot clusters match and stale snapshots are rejected");
+            }
+        } catch (IOException e) {
+            System.out.println("  Error: " + e.getMessage());
+        } finally {
+            try {
+                if (path != null) {
+                    Files.deleteIfExists(path);
+                }
+            } catch (IOException e) {
+                System.out.println("  Error: " + e.getMessage());
+            }
+        }
+
+        System.out.println("------------------------------------------------");
+        System.out.println();
+    }
+
+    /**
+     * Write the users' coach relations to a gzipped edge list, import it,
+     * and compare the imported graph and clusters with the users.
+     *
+     * @param users array containing every user
+     */
+    public static void testEdgeImport(User[] users) {
+
+        System.out.println("------------------------------------------------");
+        System.out.println("------------- Edge list import test ------------");
+        System.out.println("------------------------------------------------");
+
+        Path path = null;
+
+        try {
+            path = Files.createTempFile("infection", ".tsv.gz");
+
+            long start = System.nanoTime();
+            int numEdges = 0;
+
+            try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                    new GZIPOutputStream(Files.newOutputStream(path), 1 << 16)))) {
+
+                out.write("# coach\tstudent\n");
+
+                for (User user : users) {
+                    for (User student : user.getCoachesRelation()) {
+                        out.write(user.id() + "\t" + student.id() + "\n");
+                        numEdges++;
+                    }
+                }
+            }
+
+            long writeTime = System.nanoTime() - start;
+
+            EdgeImporter importer = new EdgeImporter(users.length);
+            importer.importFile(path);
+
+            start = System.nanoTime();
+            CompactGraph graph = importer.graph();
+            ClusterIndex index = importer.clusterIndex();
+            long buildTime = System.nanoTime() - start;
+
+            boolean failed = importer.numEdges() != numEdges
+                    || ClusterSnapshot.checksum(graph) != ClusterSnapshot.checksum(users)
+                    || !Arrays.equals(index.labels(), UnionFind.fromVertices(users).labels());
+
+            // Indented and right-aligned columns import the same edges
+            StringBuilder aligned = new StringBuilder("    # coach  student\n");
+            int numAligned = 0;
+
+            for (User user : users) {
+                for (User student : user.getCoachesRelation()) {
+                    aligned.append(String.format(
+                            numAligned++ % 2 == 0 ? "%8d %8d%n" : "\t%d,\t%d\r\n",
+                            user.id(), student.id()));
+                }
+            }
+
+            Files.write(path, aligned.toString().getBytes(StandardCharsets.US_ASCII));
+
+            EdgeImporter alignedImporter = new EdgeImporter(users.length);
+            alignedImporter.importFile(path);
+            failed |= alignedImporter.numEdges() != numAligned;
+
+            System.out.println("  Users: " + users.length + ", coach relations: " + numEdges);
+            System.out.println("  Gzipped file size (bytes): " + Files.size(path));
+            System.out.println("  File write time (ms): " + writeTime / 1e6);
+            System.out.println("------------------------------------------------");
+            System.out.println("  Text imported (bytes): " + importer.bytesRead());
+            System.out.println("  Import time (ms): " + importer.elapsedNanos() / 1e6);
+            System.out.println("  Edges per second: " + (long) importer.edgesPerSecond());
+            System.out.println("  Peak heap use (bytes): " + importer.peakMemoryBytes());
+            System.out.println("  Graph and index build time (ms): " + buildTime / 1e6);
+            System.out.println("------------------------------------------------");
+
+            System.out.println("  Conclusion:");
+
+            if (failed) {
+                System.out.println("    Imported graph does not match the users");
+            } else {
+                System.out.println("    Imported graph and clusters match the users");
+            }
+        } catch (IOException e) {
+            System.out.println("  Error: " + e.getMessage());
+        } finally {
+            try {
+                if (path != null) {
+                    Files.deleteIfExists(path);
+                }
+            } catch (IOException e) {
+                System.out.println("  Error: " + e.getMessage());
+            }
+        }
+
+        System.out.println("------------------------------------------------");
+        System.out.println();
+    }
+
+    /**
+     * Estimate the heap footprint of the users' object graph, assuming a
+     * 64-bit JVM with compressed references.
+     *
+     * @param users array containing every user
+     * @return approximate size of the users and their relation lists in bytes
+     */
+    private static long estimateObjectGraphBytes(User[] users) {
+
+        long bytes = align(16 + 4L * users.length); // User[] array
+
+        for (User user : users) {
+
+            bytes += align(12 + 3 * 4 + 3 * 4);  // Header, 3 ints, 3 lists
+
+            int coachesSize = user.getCoachesRelationSize();
+            int coachedBySize = user.getCoachedByRelationSize();
+
+            bytes += arrayListBytes(coachesSize);
+            bytes += arrayListBytes(coachedBySize);
+            bytes += arrayListBytes(coachesSize + coachedBySize);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Estimate the size of an ArrayList of references
+     *
+     * @param size number of elements in the list
+     * @return approximate size in bytes
+     */
+    private static long arrayListBytes(int size) {
+
+        long bytes = align(12 + 4 + 4 + 4);   // Header, size, modCount, array
+
+        if (size > 0) {
+            // Lists grow from 10 elements by half again each time
+            int capacity = 10;
+
+            while (capacity < size) {
+                capacity += capacity >> 1;
+            }
+
+            bytes += align(16 + 4L * capacity);
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Round a size up to the 8 byte object alignment
+     *
+     * @param bytes
+     * @return
+     */
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * Record metrics while clustering and infecting the users, read them back
+     * over JMX, and check that nothing is recorded while metrics are off.
+     *
+     * @param users array containing every user
+     */
+    public static void testMetrics(User[] users) {
+
+        System.out.println("------------------------------------------------");
+        System.out.println("---------------- JMX metrics test --------------");
+        System.out.println("------------------------------------------------");
+
+        InfectionMetrics metrics = InfectionMetrics.get();
+        boolean wasEnabled = metrics.isEnabled();
+
+        try {
+            InfectionMetrics.register();
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(InfectionMetrics.OBJECT_NAME);
+
+            metrics.setEnabled(true);
+            metrics.reset();
+
+            Infection infection = new Infection(users);
+            infection.buildAllClustersRandomly(1);
+            infection.total_infection(1);
+            infection.limited_infection(users.length / 10, 2);
+            infection.tiered_infection(new int[] { 3, 4, 5, 6 });
+
+            System.out.println("  Clusterings:           " + server.getAttribute(name, "Clusterings"));
+            System.out.println("    Mean time (ms):      " + server.getAttribute(name, "ClusteringMeanMillis"));
+            System.out.println("  Traversals:            " + server.getAttribute(name, "Traversals"));
+            System.out.println("    Vertices visited:    " + server.getAttribute(name, "VerticesVisited"));
+            System.out.println("    Max stack depth:     " + server.getAttribute(name, "MaxStackDepth"));
+            System.out.println("    Depth histogram:     " + Arrays.toString(
+                    (long[]) server.getAttribute(name, "StackDepthHistogram")));
+            System.out.println("  Total infections:      " + server.getAttribute(name, "TotalInfections"));
+            System.out.println("  Limited infections:    " + server.getAttribute(name, "LimitedInfections"));
+            System.out.println("  Tiered infections:     " + server.getAttribute(name, "TieredInfections"));
+            System.out.println("  Users infected:        " + server.getAttribute(name, "UsersInfected"));
+            System.out.println("  Planner steps:         " + server.getAttribute(name, "PlannerSteps"));
+            System.out.println("------------------------------------------------");
+
+            boolean failed = metrics.getClusterings() == 0
+                    || metrics.getTraversals() == 0
+                    || metrics.getTotalInfections() != 1
+                    || metrics.getLimitedInfections() != 1
+                    || metrics.getTieredInfections() != 1;
+
+            // Nothing is recorded while metrics are off
+            metrics.setEnabled(false);
+            metrics.reset();
+            infection.total_infection(1);
+            infection.buildAllClustersRandomly(1);
+
+            failed |= metrics.getTotalInfections() != 0 || metrics.getTraversals() != 0;
+
+            System.out.println("  Conclusion:");
+
+            if (failed) {
+                System.out.println("    Metrics do not match the operations run");
+            } else {
+                System.out.println("    Metrics match the operations run and stop when disabled");
+            }
+        } catch (JMException e) {
+            System.out.println("  Error: " + e.getMessage());
+        } finally {
+            metrics.setEnabled(wasEnabled);
+        }
+
         System.out.println("------------------------------------------------");
         System.out.println();
     }
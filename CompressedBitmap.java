@@ -0,0 +1,1203 @@
+package infection;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Compressed set of ints, split into chunks of 65536 values that are each
+ * stored in whichever container is smallest (after the Roaring bitmap
+ * format):
+ *
+ *   array  - sorted low 16 bits, for chunks of at most 4096 values
+ *   bitmap - 1024 words, for dense chunks
+ *   run    - sorted (start, length - 1) pairs, for chunks of long ranges
+ *
+ * A set of users whose IDs form a few ranges, such as clusters made
+ * contiguous by VertexOrdering, takes a few bytes per 65536 users. Values
+ * are ordered as unsigned ints; user IDs are never negative, so this is
+ * their natural order.
+ *
+ * Single adds and removes keep array and bitmap containers; a run container
+ * that is changed one value at a time becomes one of them. Range adds and
+ * the set operations pick the smallest container for their result.
+ *
+ * @author David Bell
+ */
+public class CompressedBitmap {
+
+    private static final int ARRAY_MAX = 4096; // Largest array container
+    private static final int CHUNK_WORDS = 1024; // Words of a bitmap container
+
+    private char[] keys = new char[4]; // High 16 bits of every chunk, ascending
+    private Container[] containers = new Container[4]; // Low 16 bits of every chunk
+    private int size; // Number of chunks
+    private long cardinality; // Number of values in the set
+
+    /**
+     * Constructor. Creates an empty set.
+     */
+    public CompressedBitmap() {
+    }
+
+    /**
+     * Create a set of a range of values
+     *
+     * @param from first value
+     * @param to value after the last value
+     * @return
+     */
+    public static CompressedBitmap ofRange(int from, int to) {
+
+        CompressedBitmap bitmap = new CompressedBitmap();
+        bitmap.addRange(from, to);
+
+        return bitmap;
+    }
+
+    /**
+     * Create a set of some values, in any order
+     *
+     * @param values
+     * @param count number of values to read from the array
+     * @return
+     */
+    public static CompressedBitmap of(int[] values, int count) {
+
+        CompressedBitmap bitmap = new CompressedBitmap();
+
+        for (int i = 0; i < count; i++) {
+            bitmap.add(values[i]);
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Get the number of values in the set, in constant time
+     * @return
+     */
+    public long cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * Check whether the set is empty
+     * @return
+     */
+    public boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    /**
+     * Check whether a value is in the set
+     * @param value
+     * @return
+     */
+    public boolean contains(int value) {
+
+        int chunk = find((char) (value >>> 16));
+
+        return chunk >= 0 && containers[chunk].contains((char) value);
+    }
+
+    /**
+     * Add a value to the set
+     * @param value
+     * @return false if the value was already in the set
+     */
+    public boolean add(int value) {
+
+        char key = (char) (value >>> 16);
+        int chunk = find(key);
+
+        if (chunk < 0) {
+            chunk = insert(-chunk - 1, key, new ArrayContainer());
+        }
+
+        Container container = containers[chunk];
+        long before = container.cardinality();
+        containers[chunk] = container.add((char) value);
+
+        return update(before, containers[chunk]);
+    }
+
+    /**
+     * Remove a value from the set
+     * @param value
+     * @return false if the value was not in the set
+     */
+    public boolean remove(int value) {
+
+        int chunk = find((char) (value >>> 16));
+
+        if (chunk < 0) {
+            return false;
+        }
+
+        Container container = containers[chunk];
+        long before = container.cardinality();
+        containers[chunk] = container.remove((char) value);
+        boolean changed = update(before, containers[chunk]);
+
+        if (containers[chunk].cardinality() == 0) {
+            delete(chunk);
+        }
+
+        return changed;
+    }
+
+    /**
+     * Add a range of values to the set
+     *
+     * @param from first value
+     * @param to value after the last value
+     */
+    public void addRange(int from, int to) {
+
+        long start = from & 0xffffffffL;
+        long end = to & 0xffffffffL;
+
+        while (start < end) {
+
+            char key = (char) (start >>> 16);
+            long chunkEnd = Math.min(end, ((long) key + 1) << 16);
+            int low = (int) (start & 0xffff);
+            int high = (int) (chunkEnd - ((long) key << 16));
+            int chunk = find(key);
+
+            if (chunk < 0) {
+                insert(-chunk - 1, key, RunContainer.range(low, high));
+                cardinality += high - low;
+            } else {
+                long before = containers[chunk].cardinality();
+                containers[chunk] = containers[chunk].addRange(low, high);
+                update(before, containers[chunk]);
+            }
+
+            start = chunkEnd;
+        }
+    }
+
+    /**
+     * Remove a range of values from the set
+     *
+     * @param from first value
+     * @param to value after the last value
+     */
+    public void removeRange(int from, int to) {
+
+        long start = from & 0xffffffffL;
+        long end = to & 0xffffffffL;
+
+        while (start < end) {
+
+            char key = (char) (start >>> 16);
+            long chunkEnd = Math.min(end, ((long) key + 1) << 16);
+            int low = (int) (start & 0xffff);
+            int high = (int) (chunkEnd - ((long) key << 16));
+            int chunk = find(key);
+
+            if (chunk >= 0) {
+
+                long before = containers[chunk].cardinality();
+                containers[chunk] = containers[chunk].removeRange(low, high);
+                update(before, containers[chunk]);
+
+                if (containers[chunk].cardinality() == 0) {
+                    delete(chunk);
+                }
+            }
+
+            start = chunkEnd;
+        }
+    }
+
+    /**
+     * Get the union of two sets
+     *
+     * @param a
+     * @param b
+     * @return new set of the values in either set
+     */
+    public static CompressedBitmap or(CompressedBitmap a, CompressedBitmap b) {
+
+        CompressedBitmap result = new CompressedBitmap();
+        int i = 0;
+        int j = 0;
+
+        while (i < a.size || j < b.size) {
+
+            if (j == b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+                result.append(a.keys[i], a.containers[i].copy());
+                i++;
+            } else if (i == a.size || b.keys[j] < a.keys[i]) {
+                result.append(b.keys[j], b.containers[j].copy());
+                j++;
+            } else {
+                result.append(a.keys[i], Container.or(a.containers[i], b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the intersection of two sets
+     *
+     * @param a
+     * @param b
+     * @return new set of the values in both sets
+     */
+    public static CompressedBitmap and(CompressedBitmap a, CompressedBitmap b) {
+
+        CompressedBitmap result = new CompressedBitmap();
+        int i = 0;
+        int j = 0;
+
+        while (i < a.size && j < b.size) {
+
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (b.keys[j] < a.keys[i]) {
+                j++;
+            } else {
+                result.append(a.keys[i], Container.and(a.containers[i], b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the difference of two sets
+     *
+     * @param a
+     * @param b
+     * @return new set of the values in a but not in b
+     */
+    public static CompressedBitmap andNot(CompressedBitmap a, CompressedBitmap b) {
+
+        CompressedBitmap result = new CompressedBitmap();
+        int j = 0;
+
+        for (int i = 0; i < a.size; i++) {
+
+            while (j < b.size && b.keys[j] < a.keys[i]) {
+                j++;
+            }
+
+            if (j < b.size && b.keys[j] == a.keys[i]) {
+                result.append(a.keys[i], Container.andNot(a.containers[i], b.containers[j]));
+            } else {
+                result.append(a.keys[i], a.containers[i].copy());
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Pass every value of the set to a consumer, in ascending order
+     * @param consumer
+     */
+    public void forEach(IntConsumer consumer) {
+
+        for (int chunk = 0; chunk < size; chunk++) {
+            containers[chunk].forEach(keys[chunk] << 16, consumer);
+        }
+    }
+
+    /**
+     * Get every value of the set, in ascending order
+     * @return
+     */
+    public int[] toArray() {
+
+        if (cardinality > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many values for an array: " + cardinality);
+        }
+
+        int[] values = new int[(int) cardinality];
+        int count = 0;
+
+        for (int chunk = 0; chunk < size; chunk++) {
+            count = containers[chunk].toArray(keys[chunk] << 16, values, count);
+        }
+
+        return values;
+    }
+
+    /**
+     * Convert every container to the smallest kind for its values
+     */
+    public void optimize() {
+
+        for (int chunk = 0; chunk < size; chunk++) {
+            containers[chunk] = Container.smallest(containers[chunk].toWords(), null);
+        }
+    }
+
+    /**
+     * Estimate the memory used by the set
+     * @return bytes
+     */
+    public long memoryBytes() {
+
+        long bytes = 2L * keys.length + 4L * containers.length;
+
+        for (int chunk = 0; chunk < size; chunk++) {
+            bytes += containers[chunk].memoryBytes();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Find a chunk by its key
+     * @param key
+     * @return chunk index, or -(insertion point) - 1 if there is none
+     */
+    private int find(char key) {
+
+        // Appends and sequential access hit the last chunk
+        if (size > 0 && keys[size - 1] == key) {
+            return size - 1;
+        }
+
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    /**
+     * Insert a chunk
+     *
+     * @param chunk index to insert at
+     * @param key
+     * @param container
+     * @return index of the chunk
+     */
+    private int insert(int chunk, char key, Container container) {
+
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+
+        System.arraycopy(keys, chunk, keys, chunk + 1, size - chunk);
+        System.arraycopy(containers, chunk, containers, chunk + 1, size - chunk);
+        keys[chunk] = key;
+        containers[chunk] = container;
+        size++;
+
+        return chunk;
+    }
+
+    /**
+     * Delete a chunk
+     * @param chunk
+     */
+    private void delete(int chunk) {
+
+        System.arraycopy(keys, chunk + 1, keys, chunk, size - chunk - 1);
+        System.arraycopy(containers, chunk + 1, containers, chunk, size - chunk - 1);
+        containers[--size] = null;
+    }
+
+    /**
+     * Append a chunk with a key above every other, unless it is empty
+     * @param key
+     * @param container
+     */
+    private void append(char key, Container container) {
+
+        if (container.cardinality() > 0) {
+            insert(size, key, container);
+            cardinality += container.cardinality();
+        }
+    }
+
+    /**
+     * Count a change to a container
+     *
+     * @param before cardinality of the container before the change
+     * @param after container after the change
+     * @return whether the cardinality changed
+     */
+    private boolean update(long before, Container after) {
+
+        cardinality += after.cardinality() - before;
+
+        return after.cardinality() != before;
+    }
+
+    /**
+     * Low 16 bits of the values of one chunk
+     */
+    private abstract static class Container {
+
+        /**
+         * Get the number of values
+         * @return
+         */
+        abstract int cardinality();
+
+        abstract boolean contains(char low);
+
+        /**
+         * Add a value
+         * @param low
+         * @return this container, or the container that replaces it
+         */
+        abstract Container add(char low);
+
+        /**
+         * Remove a value
+         * @param low
+         * @return this container, or the container that replaces it
+         */
+        abstract Container remove(char low);
+
+        /**
+         * Get the container's values as bitmap words
+         * @return words that may be written to
+         */
+        abstract long[] toWords();
+
+        abstract Container copy();
+
+        abstract long memoryBytes();
+
+        /**
+         * Pass every value to a consumer
+         * @param high high bits of every value
+         * @param consumer
+         */
+        abstract void forEach(int high, IntConsumer consumer);
+
+        /**
+         * Write every value into an array
+         *
+         * @param high high bits of every value
+         * @param values output
+         * @param count position to write the first value at
+         * @return position after the last value written
+         */
+        abstract int toArray(int high, int[] values, int count);
+
+        /**
+         * Add a range of values
+         *
+         * @param from first value
+         * @param to value after the last value, at most 65536
+         * @return the container holding the union
+         */
+        Container addRange(int from, int to) {
+
+            long[] words = toWords();
+            setRange(words, from, to);
+
+            return smallest(words, this);
+        }
+
+        /**
+         * Remove a range of values
+         *
+         * @param from first value
+         * @param to value after the last value, at most 65536
+         * @return the container holding the difference
+         */
+        Container removeRange(int from, int to) {
+
+            if (from == 0 && to == 65536) {
+                return new ArrayContainer();
+            }
+
+            long[] words = toWords();
+            clearRange(words, from, to);
+
+            return smallest(words, this);
+        }
+
+        /**
+         * Get the union of two containers
+         * @param a
+         * @param b
+         * @return new container
+         */
+        static Container or(Container a, Container b) {
+
+            if (a.cardinality() == 65536 || b.cardinality() == 65536) {
+                return RunContainer.range(0, 65536);
+            }
+
+            if (a instanceof ArrayContainer && b instanceof ArrayContainer
+                    && a.cardinality() + b.cardinality() <= ARRAY_MAX) {
+                return ArrayContainer.merge((ArrayContainer) a, (ArrayContainer) b);
+            }
+
+            long[] words = a.toWords();
+            b.orInto(words);
+
+            return smallest(words, null);
+        }
+
+        /**
+         * Get the intersection of two containers
+         * @param a
+         * @param b
+         * @return new container
+         */
+        static Container and(Container a, Container b) {
+
+            // Chunks covered by a range keep the other side's values
+            if (a.cardinality() == 65536) {
+                return b.copy();
+            } else if (b.cardinality() == 65536) {
+                return a.copy();
+            }
+
+            if (a instanceof ArrayContainer) {
+                return ((ArrayContainer) a).filter(b, true);
+            } else if (b instanceof ArrayContainer) {
+                return ((ArrayContainer) b).filter(a, true);
+            }
+
+            long[] words = a.toWords();
+            long[] other = b.toWords();
+
+            for (int i = 0; i < CHUNK_WORDS; i++) {
+                words[i] &= other[i];
+            }
+
+            return smallest(words, null);
+        }
+
+        /**
+         * Get the difference of two containers
+         * @param a
+         * @param b
+         * @return new container of the values in a but not in b
+         */
+        static Container andNot(Container a, Container b) {
+
+            if (b.cardinality() == 65536) {
+                return new ArrayContainer();
+            }
+
+            if (a instanceof ArrayContainer) {
+                return ((ArrayContainer) a).filter(b, false);
+            }
+
+            long[] words = a.toWords();
+            long[] other = b.toWords();
+
+            for (int i = 0; i < CHUNK_WORDS; i++) {
+                words[i] &= ~other[i];
+            }
+
+            return smallest(words, null);
+        }
+
+        /**
+         * Set this container's values in bitmap words
+         * @param words
+         */
+        void orInto(long[] words) {
+
+            long[] own = toWords();
+
+            for (int i = 0; i < CHUNK_WORDS; i++) {
+                words[i] |= own[i];
+            }
+        }
+
+        /**
+         * Build the smallest container of some values
+         *
+         * @param words values as bitmap words, which may be kept
+         * @param current container the values came from, kept if it is
+         * already the smallest kind
+         * @return
+         */
+        static Container smallest(long[] words, Container current) {
+
+            int card = 0;
+            int numRuns = 0;
+            long previous = 0;
+
+            for (long word : words) {
+                card += Long.bitCount(word);
+                // Runs start where a set bit follows a clear one
+                numRuns += Long.bitCount(word & ~((word << 1) | (previous >>> 63)));
+                previous = word;
+            }
+
+            long arrayBytes = 2L * card;
+            long runBytes = 4L * numRuns;
+            long bitmapBytes = 8L * CHUNK_WORDS;
+
+            if (runBytes < Math.min(arrayBytes, bitmapBytes)) {
+                return RunContainer.fromWords(words, numRuns, card);
+            } else if (card <= ARRAY_MAX) {
+                return ArrayContainer.fromWords(words, card);
+            } else if (current instanceof BitmapContainer) {
+                BitmapContainer bitmap = (BitmapContainer) current;
+
+                if (words != bitmap.words) {
+                    System.arraycopy(words, 0, bitmap.words, 0, CHUNK_WORDS);
+                }
+
+                bitmap.card = card;
+                return bitmap;
+            }
+
+            return new BitmapContainer(words, card);
+        }
+
+        /**
+         * Set a range of bits
+         *
+         * @param words
+         * @param from first bit
+         * @param to bit after the last bit
+         */
+        static void setRange(long[] words, int from, int to) {
+
+            if (from >= to) {
+                return;
+            }
+
+            int firstWord = from >>> 6;
+            int lastWord = (to - 1) >>> 6;
+            long firstMask = -1L << from;
+            long lastMask = -1L >>> -to;
+
+            if (firstWord == lastWord) {
+                words[firstWord] |= firstMask & lastMask;
+                return;
+            }
+
+            words[firstWord] |= firstMask;
+            Arrays.fill(words, firstWord + 1, lastWord, -1L);
+            words[lastWord] |= lastMask;
+        }
+
+        /**
+         * Clear a range of bits
+         *
+         * @param words
+         * @param from first bit
+         * @param to bit after the last bit
+         */
+        static void clearRange(long[] words, int from, int to) {
+
+            if (from >= to) {
+                return;
+            }
+
+            int firstWord = from >>> 6;
+            int lastWord = (to - 1) >>> 6;
+            long firstMask = -1L << from;
+            long lastMask = -1L >>> -to;
+
+            if (firstWord == lastWord) {
+                words[firstWord] &= ~(firstMask & lastMask);
+                return;
+            }
+
+            words[firstWord] &= ~firstMask;
+            Arrays.fill(words, firstWord + 1, lastWord, 0L);
+            words[lastWord] &= ~lastMask;
+        }
+    }
+
+    /**
+     * Sorted array of up to 4096 values
+     */
+    private static final class ArrayContainer extends Container {
+
+        private char[] values; // Values, ascending
+        private int card; // Number of values
+
+        ArrayContainer() {
+            this.values = new char[4];
+        }
+
+        ArrayContainer(char[] values, int card) {
+            this.values = values;
+            this.card = card;
+        }
+
+        static ArrayContainer fromWords(long[] words, int card) {
+
+            char[] values = new char[Math.max(4, card)];
+            int count = 0;
+
+            for (int word = 0; word < CHUNK_WORDS; word++) {
+
+                long bits = words[word];
+
+                while (bits != 0) {
+                    values[count++] = (char) ((word << 6) + Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+
+            return new ArrayContainer(values, count);
+        }
+
+        /**
+         * Merge two arrays whose union fits an array container
+         * @param a
+         * @param b
+         * @return
+         */
+        static ArrayContainer merge(ArrayContainer a, ArrayContainer b) {
+
+            char[] merged = new char[Math.max(4, a.card + b.card)];
+            int i = 0;
+            int j = 0;
+            int count = 0;
+
+            while (i < a.card && j < b.card) {
+
+                if (a.values[i] < b.values[j]) {
+                    merged[count++] = a.values[i++];
+                } else if (b.values[j] < a.values[i]) {
+                    merged[count++] = b.values[j++];
+                } else {
+                    merged[count++] = a.values[i++];
+                    j++;
+                }
+            }
+
+            while (i < a.card) {
+                merged[count++] = a.values[i++];
+            }
+
+            while (j < b.card) {
+                merged[count++] = b.values[j++];
+            }
+
+            return new ArrayContainer(merged, count);
+        }
+
+        /**
+         * Keep the values that are, or are not, in another container
+         * @param other
+         * @param keep true to keep values in other, false to keep the rest
+         * @return new container
+         */
+        ArrayContainer filter(Container other, boolean keep) {
+
+            char[] kept = new char[Math.max(4, card)];
+            int count = 0;
+
+            for (int i = 0; i < card; i++) {
+                if (other.contains(values[i]) == keep) {
+                    kept[count++] = values[i];
+                }
+            }
+
+            return new ArrayContainer(kept, count);
+        }
+
+        @Override
+        int cardinality() {
+            return card;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return Arrays.binarySearch(values, 0, card, low) >= 0;
+        }
+
+        @Override
+        Container add(char low) {
+
+            int i = Arrays.binarySearch(values, 0, card, low);
+
+            if (i >= 0) {
+                return this;
+            }
+
+            if (card == ARRAY_MAX) {
+                long[] words = toWords();
+                words[low >>> 6] |= 1L << low;
+                return new BitmapContainer(words, card + 1);
+            }
+
+            i = -i - 1;
+
+            if (card == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, card * 2));
+            }
+
+            System.arraycopy(values, i, values, i + 1, card - i);
+            values[i] = low;
+            card++;
+
+            return this;
+        }
+
+        @Override
+        Container remove(char low) {
+
+            int i = Arrays.binarySearch(values, 0, card, low);
+
+            if (i >= 0) {
+                System.arraycopy(values, i + 1, values, i, card - i - 1);
+                card--;
+            }
+
+            return this;
+        }
+
+        @Override
+        long[] toWords() {
+
+            long[] words = new long[CHUNK_WORDS];
+
+            for (int i = 0; i < card; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+
+            return words;
+        }
+
+        @Override
+        void orInto(long[] words) {
+
+            for (int i = 0; i < card; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+        }
+
+        @Override
+        Container copy() {
+            return new ArrayContainer(Arrays.copyOf(values, Math.max(4, card)), card);
+        }
+
+        @Override
+        long memoryBytes() {
+            return 16L + 2L * values.length;
+        }
+
+        @Override
+        void forEach(int high, IntConsumer consumer) {
+            for (int i = 0; i < card; i++) {
+                consumer.accept(high | values[i]);
+            }
+        }
+
+        @Override
+        int toArray(int high, int[] output, int count) {
+
+            for (int i = 0; i < card; i++) {
+                output[count++] = high | values[i];
+            }
+
+            return count;
+        }
+    }
+
+    /**
+     * Bitmap of all 65536 values
+     */
+    private static final class BitmapContainer extends Container {
+
+        private final long[] words; // One bit per value
+        private int card; // Number of values
+
+        BitmapContainer(long[] words, int card) {
+            this.words = words;
+            this.card = card;
+        }
+
+        @Override
+        int cardinality() {
+            return card;
+        }
+
+        @Override
+        boolean contains(char low) {
+            return (words[low >>> 6] & (1L << low)) != 0;
+        }
+
+        @Override
+        Container add(char low) {
+
+            long word = words[low >>> 6];
+            long bit = 1L << low;
+
+            if ((word & bit) == 0) {
+                words[low >>> 6] = word | bit;
+                card++;
+            }
+
+            return this;
+        }
+
+        @Override
+        Container remove(char low) {
+
+            long word = words[low >>> 6];
+            long bit = 1L << low;
+
+            if ((word & bit) == 0) {
+                return this;
+            }
+
+            words[low >>> 6] = word & ~bit;
+            card--;
+
+            // Shrink back to an array with some slack, so a value moving in
+            // and out at the boundary does not convert every time
+            if (card < ARRAY_MAX / 2) {
+                return ArrayContainer.fromWords(words, card);
+            }
+
+            return this;
+        }
+
+        @Override
+        long[] toWords() {
+            return Arrays.copyOf(words, CHUNK_WORDS);
+        }
+
+        @Override
+        void orInto(long[] other) {
+            for (int i = 0; i < CHUNK_WORDS; i++) {
+                other[i] |= words[i];
+            }
+        }
+
+        @Override
+        Container addRange(int from, int to) {
+
+            // Ranges can fill a chunk up, so runs may now be smaller
+            setRange(words, from, to);
+
+            return smallest(words, this);
+        }
+
+        @Override
+        Container copy() {
+            return new BitmapContainer(Arrays.copyOf(words, CHUNK_WORDS), card);
+        }
+
+        @Override
+        long memoryBytes() {
+            return 16L + 8L * CHUNK_WORDS;
+        }
+
+        @Override
+        void forEach(int high, IntConsumer consumer) {
+
+            for (int word = 0; word < CHUNK_WORDS; word++) {
+
+                long bits = words[word];
+
+                while (bits != 0) {
+                    consumer.accept(high | ((word << 6) + Long.numberOfTrailingZeros(bits)));
+                    bits &= bits - 1;
+                }
+            }
+        }
+
+        @Override
+        int toArray(int high, int[] output, int count) {
+
+            for (int word = 0; word < CHUNK_WORDS; word++) {
+
+                long bits = words[word];
+
+                while (bits != 0) {
+                    output[count++] = high | ((word << 6) + Long.numberOfTrailingZeros(bits));
+                    bits &= bits - 1;
+                }
+            }
+
+            return count;
+        }
+    }
+
+    /**
+     * Sorted, disjoint runs of values
+     */
+    private static final class RunContainer extends Container {
+
+        private final char[] runs; // Start and length - 1 of every run
+        private final int numRuns; // Number of runs
+        private final int card; // Number of values
+
+        RunContainer(char[] runs, int numRuns, int card) {
+            this.runs = runs;
+            this.numRuns = numRuns;
+            this.card = card;
+        }
+
+        static RunContainer range(int from, int to) {
+            return new RunContainer(new char[] { (char) from, (char) (to - from - 1) }, 1, to - from);
+        }
+
+        static RunContainer fromWords(long[] words, int numRuns, int card) {
+
+            char[] runs = new char[2 * numRuns];
+            int count = 0;
+            int value = 0;
+
+            while (value < 65536 && count < numRuns) {
+
+                // Find the start of the next run, then its end
+                int start = nextSetBit(words, value);
+                int end = nextClearBit(words, start);
+
+                runs[2 * count] = (char) start;
+                runs[2 * count + 1] = (char) (end - start - 1);
+                count++;
+                value = end;
+            }
+
+            return new RunContainer(runs, numRuns, card);
+        }
+
+        private static int nextSetBit(long[] words, int from) {
+
+            int word = from >>> 6;
+            long bits = words[word] & (-1L << from);
+
+            while (bits == 0) {
+                bits = words[++word];
+            }
+
+            return (word << 6) + Long.numberOfTrailingZeros(bits);
+        }
+
+        private static int nextClearBit(long[] words, int from) {
+
+            int word = from >>> 6;
+            long bits = ~words[word] & (-1L << from);
+
+            while (bits == 0) {
+
+                if (++word == CHUNK_WORDS) {
+                    return 65536;
+                }
+
+                bits = ~words[word];
+            }
+
+            return (word << 6) + Long.numberOfTrailingZeros(bits);
+        }
+
+        @Override
+        int cardinality() {
+            return card;
+        }
+
+        @Override
+        boolean contains(char low) {
+
+            // Last run starting at or before the value
+            int lo = 0;
+            int hi = numRuns - 1;
+
+            while (lo <= hi) {
+
+                int mid = (lo + hi) >>> 1;
+
+                if (runs[2 * mid] <= low) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+
+            return hi >= 0 && low - runs[2 * hi] <= runs[2 * hi + 1];
+        }
+
+        @Override
+        Container add(char low) {
+
+            if (contains(low)) {
+                return this;
+            }
+
+            long[] words = toWords();
+            words[low >>> 6] |= 1L << low;
+
+            return card + 1 <= ARRAY_MAX
+                    ? ArrayContainer.fromWords(words, card + 1)
+                    : new BitmapContainer(words, card + 1);
+        }
+
+        @Override
+        Container remove(char low) {
+
+            if (!contains(low)) {
+                return this;
+            }
+
+            long[] words = toWords();
+            words[low >>> 6] &= ~(1L << low);
+
+            return card - 1 <= ARRAY_MAX
+                    ? ArrayContainer.fromWords(words, card - 1)
+                    : new BitmapContainer(words, card - 1);
+        }
+
+        @Override
+        long[] toWords() {
+
+            long[] words = new long[CHUNK_WORDS];
+
+            for (int i = 0; i < numRuns; i++) {
+                setRange(words, runs[2 * i], runs[2 * i] + runs[2 * i + 1] + 1);
+            }
+
+            return words;
+        }
+
+        @Override
+        void orInto(long[] words) {
+            for (int i = 0; i < numRuns; i++) {
+                setRange(words, runs[2 * i], runs[2 * i] + runs[2 * i + 1] + 1);
+            }
+        }
+
+        @Override
+        Container copy() {
+            return this;
+        }
+
+        @Override
+        long memoryBytes() {
+            return 24L + 2L * runs.length;
+        }
+
+        @Override
+        void forEach(int high, IntConsumer consumer) {
+            for (int i = 0; i < numRuns; i++) {
+                for (int v = runs[2 * i]; v <= runs[2 * i] + runs[2 * i + 1]; v++) {
+                    consumer.accept(high | v);
+                }
+            }
+        }
+
+        @Override
+        int toArray(int high, int[] output, int count) {
+
+            for (int i = 0; i < numRuns; i++) {
+                for (int v = runs[2 * i]; v <= runs[2 * i] + runs[2 * i + 1]; v++) {
+                    output[count++] = high | v;
+                }
+            }
+
+            return count;
+        }
+    }
+}
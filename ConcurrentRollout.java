@@ -0,0 +1,195 @@
+package infection;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Rolls out website versions to the clusters of an Infection from many
+ * threads at once.
+ *
+ * Every infection algorithm changes whole clusters, so a rollout is recorded
+ * as a single write to its cluster's version slot instead of a write to
+ * every member. Each cluster update is therefore atomic: two overlapping
+ * rollouts leave a cluster entirely on one version or the other, never
+ * mixed. Reading a user's version reads the slot of the user's cluster, and
+ * falls back to the user's own version if no rollout has reached the
+ * cluster; readers never take a lock.
+ *
+ * flush() writes the rolled out versions through to the users, so they can
+ * be read without this engine again. It can run while rollouts and reads
+ * continue. The graph must not change while the engine is in use; flush it
+ * and create a new one after adding or removing coach relations.
+ *
+ * @author David Bell
+ */
+public class ConcurrentRollout {
+
+    private static final long ASSIGNED = 1L << 32; // Set in every slot holding a version
+
+    private final Infection infection; // Clusters and users rolled out to
+    private final ClusterIndex clusterIndex; // Cluster of every user
+    private final AtomicLongArray slots; // Version rolled out to every cluster, 0 if none
+
+    /**
+     * Constructor.
+     *
+     * @param infection clustered users to roll out to
+     */
+    public ConcurrentRollout(Infection infection) {
+
+        infection.requireFreshIndex();
+
+        this.infection = infection;
+        this.clusterIndex = infection.getClusterIndex();
+        this.slots = new AtomicLongArray(clusterIndex.labelLimit());
+    }
+
+    /**
+     * Get the version of the website a user sees
+     *
+     * @param userID
+     * @return
+     */
+    public int websiteVersion(int userID) {
+
+        long slot = slots.get(clusterIndex.clusterOf(userID));
+
+        // The volatile read orders this after any flush that cleared the slot
+        return slot != 0 ? (int) slot : infection.websiteVersion(userID);
+    }
+
+    /**
+     * Get the version rolled out to a cluster since the last flush
+     *
+     * @param label cluster label
+     * @param defaultVersion value to return if no rollout reached the cluster
+     * @return
+     */
+    public int clusterVersion(int label, int defaultVersion) {
+
+        long slot = slots.get(label);
+
+        return slot != 0 ? (int) slot : defaultVersion;
+    }
+
+    /**
+     * Roll a version out to every member of a cluster, atomically
+     *
+     * @param label cluster label
+     * @param newWebsiteVersion
+     */
+    public void infectCluster(int label, int newWebsiteVersion) {
+        slots.set(label, ASSIGNED | (newWebsiteVersion & 0xffffffffL));
+    }
+
+    /**
+     * Total infection for a random root user, drawn from the calling
+     * thread's random source.
+     *
+     * @param newWebsiteVersion version ID that users will be 'infected' with
+     * @return number of users infected
+     */
+    public int total_infection(int newWebsiteVersion) {
+
+        return total_infection(newWebsiteVersion, Clusters.threadRandom());
+    }
+
+    /**
+     * Total infection for a root user drawn from a random source.
+     *
+     * @param newWebsiteVersion version ID that users will be 'infected' with
+     * @param random random source, used by this thread only
+     * @return number of users infected
+     */
+    public int total_infection(int newWebsiteVersion, SplittableRandom random) {
+
+        return total_infection(random.nextInt(clusterIndex.numVertices()), newWebsiteVersion);
+    }
+
+    /**
+     * Total infection. Rolls a version out to the cluster containing the
+     * root user.
+     *
+     * @param epicenterID ID of the root user where the infection will spread
+     * from
+     * @param newWebsiteVersion version ID that users will be 'infected' with
+     * @return number of users infected
+     */
+    public int total_infection(int epicenterID, int newWebsiteVersion) {
+
+        long start = InfectionMetrics.startTime();
+
+        int label = clusterIndex.clusterOf(epicenterID);
+        infectCluster(label, newWebsiteVersion);
+        int numInfected = clusterIndex.size(label);
+
+        Infection.recordInfection(InfectionMetrics.get().totalInfections, start, numInfected);
+
+        return numInfected;
+    }
+
+    /**
+     * Limited infection. Rolls a version out to the same clusters
+     * Infection.limited_infection would choose from whole clusters; each
+     * cluster is updated atomically, but a concurrent reader can see some of
+     * the clusters updated before the others.
+     *
+     * @param targetPop target size of the infected vertices
+     * @param newWebsiteVersion version ID that users will be 'infected' with
+     * @param error allowable error (target +- target * float in range (0,1))
+     * @return actual number of users infected
+     */
+    public int limited_infection(int targetPop, int newWebsiteVersion, float error) {
+
+        long start = InfectionMetrics.startTime();
+
+        int[] infected = new int[clusterIndex.numClusters()];
+        // Slots are per cluster, so whole clusters are chosen even if the
+        // infection was split into units
+        int numClustersInfected = infection.planLimitedInfection(
+                infection.getSizeIndex(), targetPop, error, infected);
+        int numInfected = 0;
+
+        for (int i = 0; i < numClustersInfected; i++) {
+            infectCluster(infected[i], newWebsiteVersion);
+            numInfected += clusterIndex.size(infected[i]);
+        }
+
+        Infection.recordInfection(InfectionMetrics.get().limitedInfections, start, numInfected);
+
+        return numInfected;
+    }
+
+    /**
+     * Write every rolled out version through to the cluster's users. A slot
+     * is only cleared if no rollout replaced it while its users were being
+     * written, so rollouts and reads can continue during a flush.
+     *
+     * @return number of clusters written
+     */
+    public synchronized int flush() {
+
+        int numFlushed = 0;
+
+        // The whole flush is one rollout in the infection's undo log
+        infection.beginRollout();
+
+        for (int label = 0; label < slots.length(); label++) {
+
+            long slot = slots.get(label);
+
+            if (slot == 0) {
+                continue;
+            }
+
+            // Readers keep seeing the slot until the users hold its version
+            infection.infectCluster(label, (int) slot);
+            slots.compareAndSet(label, slot, 0);
+            numFlushed++;
+        }
+
+        infection.endRollout();
+
+        return numFlushed;
+    }
+}
@@ -0,0 +1,172 @@
+package infection;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/**
+ * Lock-free disjoint-set forest for clustering a graph on every core of the
+ * common fork-join pool.
+ *
+ * Roots are always hooked under the smaller of the two root IDs with a
+ * compare-and-set, so parent IDs only ever decrease and the root of every
+ * set is its smallest vertex ID. Finds halve the path as they go. Any
+ * number of threads can add edges at the same time.
+ *
+ * @author David Bell
+ */
+public class ConcurrentUnionFind {
+
+    private final AtomicIntegerArray parent; // Parent of every vertex
+
+    /**
+     * Constructor. Every vertex starts in a set of its own.
+     *
+     * @param numVertices number of vertices in the graph
+     */
+    public ConcurrentUnionFind(int numVertices) {
+
+        parent = new AtomicIntegerArray(numVertices);
+
+        IntStream.range(0, numVertices).parallel().forEach((vertexID)
+                -> parent.set(vertexID, vertexID));
+    }
+
+    /**
+     * Cluster every vertex in parallel over the vertices' edge lists. The
+     * edge lists are only read.
+     *
+     * @param vertices array containing all vertices
+     * @return union-find containing every edge of the vertices
+     */
+    public static ConcurrentUnionFind fromVertices(ClusterVertex[] vertices) {
+
+        ConcurrentUnionFind unionFind = new ConcurrentUnionFind(vertices.length);
+
+        IntStream.range(0, vertices.length).parallel().forEach((vertexID) -> {
+            for (ClusterVertex neighbor : vertices[vertexID].edges()) {
+                unionFind.union(vertexID, neighbor.id());
+            }
+        });
+
+        return unionFind;
+    }
+
+    /**
+     * Cluster every vertex of a compact graph in parallel.
+     *
+     * @param graph compact graph containing all vertices
+     * @return union-find containing every edge of the graph
+     */
+    public static ConcurrentUnionFind fromGraph(CompactGraph graph) {
+
+        ConcurrentUnionFind unionFind = new ConcurrentUnionFind(graph.numVertices());
+
+        // Every edge is stored in both directions, so the students are enough
+        IntStream.range(0, graph.numVertices()).parallel().forEach((vertexID) -> {
+
+            int numStudents = graph.coachesRelationSize(vertexID);
+
+            for (int i = 0; i < numStudents; i++) {
+                unionFind.union(vertexID, graph.coachesRelation(vertexID, i));
+            }
+        });
+
+        return unionFind;
+    }
+
+    /**
+     * Find the root of the set containing a vertex, halving the path.
+     *
+     * @param vertexID
+     * @return root vertex of the set
+     */
+    public int find(int vertexID) {
+
+        int next = parent.get(vertexID);
+
+        while (next != vertexID) {
+
+            int grandparent = parent.get(next);
+
+            // Point this vertex at its grandparent; losing the race is harmless
+            if (grandparent != next) {
+                parent.compareAndSet(vertexID, next, grandparent);
+            }
+
+            vertexID = next;
+            next = grandparent;
+        }
+
+        return vertexID;
+    }
+
+    /**
+     * Merge the sets containing two vertices.
+     *
+     * @param a
+     * @param b
+     */
+    public void union(int a, int b) {
+
+        while (true) {
+
+            int rootA = find(a);
+            int rootB = find(b);
+
+            if (rootA == rootB) {
+                return;
+            }
+
+            // Hook the larger root under the smaller one
+            if (rootA < rootB) {
+                int swap = rootA;
+                rootA = rootB;
+                rootB = swap;
+            }
+
+            // Fails only if another thread hooked rootA first; retry
+            if (parent.compareAndSet(rootA, rootA, rootB)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the number of vertices
+     * @return
+     */
+    public int numVertices() {
+        return parent.length();
+    }
+
+    /**
+     * Label every vertex with its cluster. Clusters are numbered in order of
+     * their smallest vertex ID, matching the TRAVERSAL method. Must not
+     * run at the same time as union.
+     *
+     * @return array mapping vertex IDs to cluster labels
+     */
+    public int[] labels() {
+
+        int numVertices = parent.length();
+        int[] roots = new int[numVertices];
+
+        IntStream.range(0, numVertices).parallel().forEach((vertexID)
+                -> roots[vertexID] = find(vertexID));
+
+        // Roots are the smallest ID in their set, so they get labels in order
+        int[] labels = new int[numVertices];
+        int nextLabel = 0;
+
+        for (int vertexID = 0; vertexID < numVertices; vertexID++) {
+            if (roots[vertexID] == vertexID) {
+                labels[vertexID] = nextLabel++;
+            }
+        }
+
+        IntStream.range(0, numVertices).parallel().forEach((vertexID)
+                -> labels[vertexID] = labels[roots[vertexID]]);
+
+        return labels;
+    }
+}
@@ -0,0 +1,412 @@
+package infection;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming importer for coach/student edge list files.
+ *
+ * Every line of the file is a coach ID and a student ID separated by tabs,
+ * commas or spaces, optionally preceded by spaces or tabs. Blank lines,
+ * lines starting with # and a header row on the first line are skipped; any
+ * other line that is not an edge fails the import. Gzipped files are detected by their magic bytes.
+ *
+ * The file is read in fixed-size chunks cut at line boundaries, and every
+ * chunk is parsed on the common fork-join pool. Parsed edges go straight
+ * into a concurrent union-find and into the edge store, so the text is
+ * never held in memory; only a bounded number of chunks are in flight at
+ * once. Edges from several files can be imported into the same importer.
+ *
+ * @author David Bell
+ */
+public class EdgeImporter {
+
+    private static final int CHUNK_BYTES = 1 << 22; // Size of every chunk read
+
+    private final int numVertices; // Number of users the edges connect
+    private final ConcurrentUnionFind unionFind; // Clusters of the edges so far
+    private int[] coachIDs; // Coach vertex of every edge
+    private int[] studentIDs; // Student vertex of every edge
+    private int numEdges; // Number of edges imported
+    private long bytesRead; // Uncompressed bytes of text imported
+    private long elapsedNanos; // Time spent importing
+    private long peakMemoryBytes; // Peak heap use seen while importing
+
+    /**
+     * Constructor.
+     *
+     * @param numVertices number of users; every ID in the files must be
+     * between 0 and numVertices - 1
+     */
+    public EdgeImporter(int numVertices) {
+
+        this.numVertices = numVertices;
+        this.unionFind = new ConcurrentUnionFind(numVertices);
+        this.coachIDs = new int[1024];
+        this.studentIDs = new int[1024];
+    }
+
+    /**
+     * Import every edge of a file
+     *
+     * @param path edge list file, optionally gzipped
+     * @throws IOException if the file cannot be read or has a malformed line
+     */
+    public void importFile(Path path) throws IOException {
+
+        try (InputStream in = open(path)) {
+            importStream(in);
+        }
+    }
+
+    /**
+     * Import every edge of a stream of edge list text. The stream is not
+     * closed.
+     *
+     * @param in edge list text
+     * @throws IOException if the stream cannot be read or has a malformed line
+     */
+    public void importStream(InputStream in) throws IOException {
+
+        long start = System.nanoTime();
+        resetPeakMemory();
+
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int maxInFlight = 2 * pool.getParallelism() + 1;
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        byte[] chunk = new byte[CHUNK_BYTES];
+        int length = 0;
+        long chunkOffset = 0;
+        boolean endOfStream = false;
+
+        try {
+
+            // Stop reading as soon as a chunk fails
+            while (!endOfStream && failure.get() == null) {
+
+                // Fill the chunk
+                while (length < chunk.length && !endOfStream) {
+
+                    int read = in.read(chunk, length, chunk.length - length);
+
+                    if (read < 0) {
+                        endOfStream = true;
+                    } else {
+                        length += read;
+                    }
+                }
+
+                // Cut it after the last complete line
+                int end = length;
+
+                if (!endOfStream) {
+
+                    while (end > 0 && chunk[end - 1] != '\n') {
+                        end--;
+                    }
+
+                    if (end == 0) {
+                        throw new IOException("Line longer than " + CHUNK_BYTES
+                                + " bytes at byte " + chunkOffset);
+                    }
+                }
+
+                byte[] full = chunk;
+                int fullEnd = end;
+                long fullOffset = chunkOffset;
+
+                // Carry the partial line over into a fresh chunk
+                chunk = new byte[CHUNK_BYTES];
+                System.arraycopy(full, end, chunk, 0, length - end);
+                length -= end;
+                chunkOffset += end;
+
+                inFlight.acquireUninterruptibly();
+
+                pool.execute(() -> {
+                    try {
+                        parseChunk(full, fullEnd, fullOffset);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+
+                sampleMemory();
+            }
+        } finally {
+
+            // Wait for every chunk to finish, even if reading failed, so no
+            // chunk writes to the importer after this returns
+            inFlight.acquireUninterruptibly(maxInFlight);
+            inFlight.release(maxInFlight);
+        }
+
+        bytesRead += chunkOffset;
+        elapsedNanos += System.nanoTime() - start;
+        sampleMemory();
+
+        Throwable e = failure.get();
+
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e != null) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Build a compact graph of every edge imported
+     * @return
+     */
+    public CompactGraph graph() {
+        return CompactGraph.fromEdges(numVertices, coachIDs, studentIDs, numEdges);
+    }
+
+    /**
+     * Get the clusters of every edge imported, labeled in order of their
+     * smallest user ID
+     *
+     * @return
+     */
+    public ClusterIndex clusterIndex() {
+        return ClusterIndex.fromLabels(unionFind.labels());
+    }
+
+    /**
+     * Get the number of users the edges connect
+     * @return
+     */
+    public int numVertices() {
+        return numVertices;
+    }
+
+    /**
+     * Get the number of edges imported
+     * @return
+     */
+    public synchronized int numEdges() {
+        return numEdges;
+    }
+
+    /**
+     * Get the number of bytes of uncompressed text imported
+     * @return
+     */
+    public long bytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Get the time spent importing in nanoseconds
+     * @return
+     */
+    public long elapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Get the import throughput
+     * @return edges imported per second
+     */
+    public double edgesPerSecond() {
+        return elapsedNanos > 0 ? numEdges() * 1e9 / elapsedNanos : 0;
+    }
+
+    /**
+     * Get the peak heap use seen while importing
+     * @return bytes
+     */
+    public long peakMemoryBytes() {
+        return peakMemoryBytes;
+    }
+
+    /**
+     * Open an edge list file, decompressing it if it is gzipped
+     *
+     * @param path
+     * @return stream of the file's text
+     * @throws IOException
+     */
+    private static InputStream open(Path path) throws IOException {
+
+        InputStream in = new BufferedInputStream(Files.newInputStream(path), 1 << 16);
+
+        // Gzip streams start with 0x1f 0x8b
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+
+        if (first == 0x1f && second == 0x8b) {
+            return new GZIPInputStream(in, 1 << 16);
+        }
+
+        return in;
+    }
+
+    /**
+     * Parse the lines of a chunk and add their edges
+     *
+     * @param chunk text of whole lines
+     * @param length number of bytes to read from the chunk
+     * @param offset byte offset of the chunk in the stream, for errors
+     * @throws IOException if a line is malformed
+     */
+    private void parseChunk(byte[] chunk, int length, long offset) throws IOException {
+
+        int[] coaches = new int[Math.max(16, length / 8)];
+        int[] students = new int[coaches.length];
+        int count = 0;
+        int i = 0;
+
+        while (i < length) {
+
+            int lineStart = i;
+
+            // Allow indented and right-aligned columns
+            while (i < length && (chunk[i] == ' ' || chunk[i] == '\t')) {
+                i++;
+            }
+
+            // Skip blank lines, comments and a header on the first line
+            if (i == length || chunk[i] < '0' || chunk[i] > '9') {
+
+                int textStart = i;
+                boolean blank = true;
+
+                while (i < length && chunk[i] != '\n') {
+                    blank &= chunk[i] == ' ' || chunk[i] == '\t' || chunk[i] == '\r';
+                    i++;
+                }
+
+                if (!blank && chunk[textStart] != '#' && offset + lineStart != 0) {
+                    throw new IOException("Malformed edge at byte " + (offset + lineStart));
+                }
+
+                i++;
+                continue;
+            }
+
+            // IDs stop growing once out of range, so they cannot overflow
+            long coach = 0;
+
+            while (i < length && chunk[i] >= '0' && chunk[i] <= '9') {
+                coach = coach < numVertices ? coach * 10 + (chunk[i] - '0') : coach;
+                i++;
+            }
+
+            while (i < length && (chunk[i] == '\t' || chunk[i] == ',' || chunk[i] == ' ')) {
+                i++;
+            }
+
+            long student = -1;
+
+            if (i < length && chunk[i] >= '0' && chunk[i] <= '9') {
+
+                student = 0;
+
+                while (i < length && chunk[i] >= '0' && chunk[i] <= '9') {
+                    student = student < numVertices ? student * 10 + (chunk[i] - '0') : student;
+                    i++;
+                }
+            }
+
+            // Allow trailing blanks and Windows line endings
+            while (i < length && (chunk[i] == ' ' || chunk[i] == '\t' || chunk[i] == '\r')) {
+                i++;
+            }
+
+            if (student < 0 || (i < length && chunk[i] != '\n')
+                    || coach >= numVertices || student >= numVertices) {
+                throw new IOException("Malformed edge at byte " + (offset + lineStart));
+            }
+
+            i++;
+
+            if (count == coaches.length) {
+                coaches = Arrays.copyOf(coaches, count * 2);
+                students = Arrays.copyOf(students, count * 2);
+            }
+
+            coaches[count] = (int) coach;
+            students[count] = (int) student;
+            count++;
+
+            unionFind.union((int) coach, (int) student);
+        }
+
+        appendEdges(coaches, students, count);
+    }
+
+    /**
+     * Append a chunk's edges to the edge store
+     *
+     * @param coaches coach vertex of every edge
+     * @param students student vertex of every edge
+     * @param count number of edges to read from the arrays
+     * @throws IOException if the store would exceed the largest array
+     */
+    private synchronized void appendEdges(int[] coaches, int[] students, int count)
+            throws IOException {
+
+        long needed = (long) numEdges + count;
+
+        if (needed > Integer.MAX_VALUE - 8) {
+            throw new IOException("More than " + (Integer.MAX_VALUE - 8) + " edges");
+        }
+
+        if (needed > coachIDs.length) {
+            int length = (int) Math.min(Integer.MAX_VALUE - 8,
+                    Math.max(needed, coachIDs.length + (long) coachIDs.length / 2));
+            coachIDs = Arrays.copyOf(coachIDs, length);
+            studentIDs = Arrays.copyOf(studentIDs, length);
+        }
+
+        System.arraycopy(coaches, 0, coachIDs, numEdges, count);
+        System.arraycopy(students, 0, studentIDs, numEdges, count);
+        numEdges += count;
+    }
+
+    /**
+     * Reset the peak usage of every heap memory pool
+     */
+    private void resetPeakMemory() {
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Record the peak heap use since the last reset
+     */
+    private void sampleMemory() {
+
+        long peak = 0;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        peakMemoryBytes = Math.max(peakMemoryBytes, peak);
+    }
+}
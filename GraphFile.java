@@ -0,0 +1,266 @@
+package infection;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary on-disk graph format that is opened by memory-mapping it.
+ *
+ * The file is a header followed by the compressed sparse row arrays of a
+ * CompactGraph and a website version column, all little-endian ints:
+ *
+ *   header           8 ints: magic, format version, numVertices, numEdges,
+ *                    number of columns, 3 reserved
+ *   coachesOffsets   numVertices + 1 ints
+ *   coaches          numEdges ints
+ *   coachedByOffsets numVertices + 1 ints
+ *   coachedBy        numEdges ints
+ *   versions         numVertices ints
+ *
+ * Opening a file maps each array and does no other work, so a graph of any
+ * size opens in milliseconds and is traversed in place from the page cache.
+ * Java 8 cannot unmap a file, so the mappings stay valid until they are
+ * garbage collected even after the file is closed.
+ *
+ * @author David Bell
+ */
+public class GraphFile implements Closeable {
+
+    private static final int MAGIC = 0x47464e49; // "INFG" in file byte order
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_INTS = 8;
+    private static final int NUM_COLUMNS = 1;
+
+    private final FileChannel channel; // Open channel of the file
+    private final MappedGraph graph; // Graph mapped from the file
+    private final MappedIntArray versions; // Website version of every user
+    private final boolean writable; // Whether the version column is writable
+
+    /**
+     * Constructor.
+     *
+     * @param channel open channel of the file
+     * @param graph graph mapped from the file
+     * @param versions website version column mapped from the file
+     * @param writable whether the version column was mapped READ_WRITE
+     */
+    private GraphFile(
+            FileChannel channel, MappedGraph graph, MappedIntArray versions, boolean writable) {
+
+        this.channel = channel;
+        this.graph = graph;
+        this.versions = versions;
+        this.writable = writable;
+    }
+
+    /**
+     * Write a graph and its users' website versions to a file, replacing
+     * the file if it exists.
+     *
+     * @param path file to write
+     * @param graph graph to write
+     * @param columns website versions of the graph's users, or null to write
+     * version 0 for every user
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Path path, CompactGraph graph, UserColumns columns)
+            throws IOException {
+
+        int numVertices = graph.numVertices();
+
+        try (FileChannel out = FileChannel.open(path,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+
+            IntFileWriter writer = new IntFileWriter(out);
+
+            writer.put(MAGIC);
+            writer.put(FORMAT_VERSION);
+            writer.put(numVertices);
+            writer.put(graph.numEdges());
+            writer.put(NUM_COLUMNS);
+
+            for (int i = 5; i < HEADER_INTS; i++) {
+                writer.put(0);
+            }
+
+            // Students, then coaches, each as offsets followed by neighbors
+            for (boolean students : new boolean[] { true, false }) {
+
+                int offset = 0;
+                writer.put(offset);
+
+                for (int v = 0; v < numVertices; v++) {
+                    offset += students
+                            ? graph.coachesRelationSize(v)
+                            : graph.coachedByRelationSize(v);
+                    writer.put(offset);
+                }
+
+                for (int v = 0; v < numVertices; v++) {
+
+                    int size = students
+                            ? graph.coachesRelationSize(v)
+                            : graph.coachedByRelationSize(v);
+
+                    for (int i = 0; i < size; i++) {
+                        writer.put(students
+                                ? graph.coachesRelation(v, i)
+                                : graph.coachedByRelation(v, i));
+                    }
+                }
+            }
+
+            for (int v = 0; v < numVertices; v++) {
+                writer.put(columns != null ? columns.version(v) : 0);
+            }
+
+            writer.flush();
+        }
+    }
+
+    /**
+     * Open a graph file read-only
+     *
+     * @param path file to open
+     * @return the open file
+     * @throws IOException if the file cannot be read or is not a graph file
+     */
+    public static GraphFile open(Path path) throws IOException {
+        return open(path, false);
+    }
+
+    /**
+     * Open a graph file. The graph is always mapped read-only; the version
+     * column is mapped read-write if requested so storeColumns can update
+     * the file in place.
+     *
+     * @param path file to open
+     * @param writable whether the version column can be written
+     * @return the open file
+     * @throws IOException if the file cannot be read or is not a graph file
+     */
+    public static GraphFile open(Path path, boolean writable) throws IOException {
+
+        FileChannel channel = writable
+                ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ);
+
+        try {
+            ByteBuffer header = ByteBuffer.allocate(4 * HEADER_INTS)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    break;
+                }
+            }
+
+            header.flip();
+
+            if (header.remaining() < 4 * HEADER_INTS
+                    || header.getInt(0) != MAGIC
+                    || header.getInt(4) != FORMAT_VERSION) {
+                throw new IOException("Not a graph file: " + path);
+            }
+
+            int numVertices = header.getInt(8);
+            int numEdges = header.getInt(12);
+
+            long expected = 4L * (HEADER_INTS
+                    + 2 * (numVertices + 1L) + 2L * numEdges + numVertices);
+
+            if (numVertices < 0 || numEdges < 0 || channel.size() != expected) {
+                throw new IOException("Truncated or corrupt graph file: " + path);
+            }
+
+            FileChannel.MapMode readOnly = FileChannel.MapMode.READ_ONLY;
+            long position = 4L * HEADER_INTS;
+
+            MappedIntArray coachesOffsets
+                    = new MappedIntArray(channel, position, numVertices + 1L, readOnly);
+            position += 4 * (numVertices + 1L);
+
+            MappedIntArray coaches = new MappedIntArray(channel, position, numEdges, readOnly);
+            position += 4L * numEdges;
+
+            MappedIntArray coachedByOffsets
+                    = new MappedIntArray(channel, position, numVertices + 1L, readOnly);
+            position += 4 * (numVertices + 1L);
+
+            MappedIntArray coachedBy = new MappedIntArray(channel, position, numEdges, readOnly);
+            position += 4L * numEdges;
+
+            MappedIntArray versions = new MappedIntArray(channel, position, numVertices,
+                    writable ? FileChannel.MapMode.READ_WRITE : readOnly);
+
+            MappedGraph graph = new MappedGraph(numVertices, numEdges,
+                    coachesOffsets, coaches, coachedByOffsets, coachedBy);
+
+            return new GraphFile(channel, graph, versions, writable);
+
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the graph mapped from the file
+     * @return
+     */
+    public CompactGraph graph() {
+        return graph;
+    }
+
+    /**
+     * Read the website version column into a columnar store on the heap
+     * @return store holding every user's website version
+     */
+    public UserColumns loadColumns() {
+
+        int numVertices = graph.numVertices();
+        UserColumns columns = new UserColumns(numVertices);
+
+        for (int v = 0; v < numVertices; v++) {
+            columns.setVersion(v, versions.get(v));
+        }
+
+        return columns;
+    }
+
+    /**
+     * Write every user's website version back to the file in place
+     * @param columns store holding every user's website version
+     */
+    public void storeColumns(UserColumns columns) {
+
+        if (!writable) {
+            throw new UnsupportedOperationException("Graph file was opened read-only");
+        }
+
+        for (int v = 0; v < graph.numVertices(); v++) {
+            versions.set(v, columns.version(v));
+        }
+    }
+
+    /**
+     * Get the size of the file in bytes
+     * @return
+     * @throws IOException
+     */
+    public long sizeBytes() throws IOException {
+        return channel.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,682 @@
+package infection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Multilevel partitioner that splits a cluster into parts of about a target
+ * size while cutting as few coach relations as possible.
+ *
+ * The cluster is copied into a weighted graph in compressed sparse row
+ * form, then coarsened level by level: every vertex is matched with the
+ * unmatched neighbor it shares the heaviest edge with, and matched pairs are
+ * contracted into one vertex whose edges sum the pair's. Leaves that found no
+ * partner are paired with another leaf of the same neighbor, so the students
+ * of one coach collapse too. The coarsest graph is split by growing one
+ * breadth-first region per part, and the partition is projected back through
+ * every level, moving boundary vertices to the neighboring part they have
+ * the most edges to while parts stay within their size limit.
+ *
+ * Every level is linear in its edges and each is a fraction of the size of
+ * the last, so the whole partition is near-linear in the cluster size.
+ * Scratch arrays are kept between calls; a partitioner is not thread-safe.
+ *
+ * @author David Bell
+ */
+public class GraphPartitioner {
+
+    private static final int REFINE_PASSES = 4; // Most refinement passes per level
+    private static final int SETTLED = 1000; // Refinement stops once a pass moves fewer than 1 in this many
+    private static final double MIN_SHRINK = 0.95; // Coarsening stops if a level keeps more vertices
+    private static final double MIN_EDGE_SHRINK = 0.8; // or keeps more edges
+
+    private final int targetSize; // Largest size of a part, before the imbalance
+    private final double imbalance; // Fraction a part may exceed its average size by
+
+    private int[] localIDs; // Index of every graph vertex in the cluster being partitioned
+    private long cutEdges; // Edges cut by the last partition
+
+    /**
+     * Constructor.
+     *
+     * @param targetSize most vertices a part should have
+     * @param imbalance fraction a part may exceed the average part size by,
+     * for example 0.03
+     */
+    public GraphPartitioner(int targetSize, double imbalance) {
+
+        if (targetSize <= 0) {
+            throw new IllegalArgumentException("Target size must be positive: " + targetSize);
+        }
+
+        this.targetSize = targetSize;
+        this.imbalance = imbalance;
+    }
+
+    /**
+     * Get the number of parts a cluster of some size is split into
+     * @param size number of vertices of the cluster
+     * @return
+     */
+    public int numParts(int size) {
+        return (int) ((size + (long) targetSize - 1) / targetSize);
+    }
+
+    /**
+     * Get the number of edges cut by the last partition
+     * @return
+     */
+    public long cutEdges() {
+        return cutEdges;
+    }
+
+    /**
+     * Partition a cluster of a compact graph
+     *
+     * @param graph compact graph containing the cluster
+     * @param members array holding the cluster's vertex IDs
+     * @param from index of the first member
+     * @param count number of members; the cluster must be closed, with no
+     * edges leaving it
+     * @param parts output, the part of every member, numbered from 0
+     * @return number of parts
+     */
+    public int partition(CompactGraph graph, int[] members, int from, int count, int[] parts) {
+
+        int[] local = localIDs(graph.numVertices(), members, from, count);
+        int[] offsets = new int[count + 1];
+
+        for (int i = 0; i < count; i++) {
+            offsets[i + 1] = offsets[i] + graph.degree(members[from + i]);
+        }
+
+        int[] adjacency = new int[offsets[count]];
+
+        IntStream.range(0, count).parallel().forEach((i) -> {
+
+            int vertexID = members[from + i];
+
+            for (int j = 0; j < graph.degree(vertexID); j++) {
+                adjacency[offsets[i] + j] = local[graph.neighbor(vertexID, j)];
+            }
+        });
+
+        return partition(Level.unweighted(count, offsets, adjacency), parts);
+    }
+
+    /**
+     * Partition a cluster of vertices
+     *
+     * @param vertices array containing all vertices, indexed by ID
+     * @param members array holding the cluster's vertex IDs
+     * @param from index of the first member
+     * @param count number of members; the cluster must be closed, with no
+     * edges leaving it
+     * @param parts output, the part of every member, numbered from 0
+     * @return number of parts
+     */
+    public int partition(ClusterVertex[] vertices, int[] members, int from, int count, int[] parts) {
+
+        int[] local = localIDs(vertices.length, members, from, count);
+        int[] offsets = new int[count + 1];
+
+        for (int i = 0; i < count; i++) {
+            offsets[i + 1] = offsets[i] + vertices[members[from + i]].edges().size();
+        }
+
+        int[] adjacency = new int[offsets[count]];
+
+        IntStream.range(0, count).parallel().forEach((i) -> {
+
+            ArrayList<ClusterVertex> edges = vertices[members[from + i]].edges();
+
+            for (int j = 0; j < edges.size(); j++) {
+                adjacency[offsets[i] + j] = local[edges.get(j).id()];
+            }
+        });
+
+        return partition(Level.unweighted(count, offsets, adjacency), parts);
+    }
+
+    /**
+     * Map every member to its index in the cluster
+     *
+     * @param numVertices number of vertices of the graph
+     * @param members array holding the cluster's vertex IDs
+     * @param from index of the first member
+     * @param count number of members
+     * @return index in the cluster of every member, indexed by vertex ID
+     */
+    private int[] localIDs(int numVertices, int[] members, int from, int count) {
+
+        if (localIDs == null || localIDs.length < numVertices) {
+            localIDs = new int[numVertices];
+        }
+
+        for (int i = 0; i < count; i++) {
+            localIDs[members[from + i]] = i;
+        }
+
+        return localIDs;
+    }
+
+    /**
+     * Partition a weighted graph through every level
+     *
+     * @param finest graph of the cluster
+     * @param parts output, the part of every vertex
+     * @return number of parts
+     */
+    private int partition(Level finest, int[] parts) {
+
+        int numParts = numParts(finest.numVertices);
+
+        if (numParts <= 1) {
+            Arrays.fill(parts, 0, finest.numVertices, 0);
+            cutEdges = 0;
+            return Math.min(numParts, 1);
+        }
+
+        int average = (finest.numVertices + numParts - 1) / numParts;
+        int maxWeight = Math.max(average + 1, (int) (average * (1 + imbalance)));
+
+        // Coarse vertices stay small next to a part, so parts can balance
+        int maxVertexWeight = Math.max(1, average / 8);
+        int coarsestSize = Math.max(20 * numParts, 200);
+
+        ArrayList<Level> levels = new ArrayList<>();
+        levels.add(finest);
+        Level level = finest;
+
+        while (level.numVertices > coarsestSize) {
+
+            Level coarser = level.coarsen(maxVertexWeight);
+
+            if (coarser.numVertices > MIN_SHRINK * level.numVertices) {
+                break;
+            }
+
+            // Graphs without locality, like random classes, keep most of
+            // their edges at every level; coarsening them further costs more
+            // than it gains
+            boolean stalled = coarser.adjacency.length > MIN_EDGE_SHRINK * level.adjacency.length;
+
+            levels.add(coarser);
+            level = coarser;
+
+            if (stalled) {
+                break;
+            }
+        }
+
+        int[] coarseParts = level.grow(numParts);
+        long[] partWeights = level.partWeights(coarseParts, numParts);
+        level.refine(coarseParts, partWeights, maxWeight);
+
+        // Project the partition back through every level, refining each
+        for (int i = levels.size() - 1; i > 0; i--) {
+
+            Level fine = levels.get(i - 1);
+            int[] fineParts = new int[fine.numVertices];
+
+            for (int v = 0; v < fine.numVertices; v++) {
+                fineParts[v] = coarseParts[fine.coarseIDs[v]];
+            }
+
+            fine.refine(fineParts, partWeights, maxWeight);
+            coarseParts = fineParts;
+        }
+
+        cutEdges = finest.cutWeight(coarseParts);
+
+        return renumber(coarseParts, numParts, parts);
+    }
+
+    /**
+     * Number the parts that have vertices from 0, in order of first vertex
+     *
+     * @param assigned part of every vertex
+     * @param numParts number of parts assigned
+     * @param parts output, the renumbered part of every vertex
+     * @return number of parts with vertices
+     */
+    private static int renumber(int[] assigned, int numParts, int[] parts) {
+
+        int[] numbers = new int[numParts];
+        Arrays.fill(numbers, -1);
+        int numUsed = 0;
+
+        for (int v = 0; v < assigned.length; v++) {
+
+            if (numbers[assigned[v]] < 0) {
+                numbers[assigned[v]] = numUsed++;
+            }
+
+            parts[v] = numbers[assigned[v]];
+        }
+
+        return numUsed;
+    }
+
+    /**
+     * Weighted undirected graph of one level, in compressed sparse row form
+     */
+    private static final class Level {
+
+        final int numVertices; // Number of vertices
+        final int[] offsets; // Start of every vertex's edges
+        final int[] adjacency; // Neighbor of every edge
+        final int[] edgeWeights; // Weight of every edge, null if every weight is 1
+        final int[] vertexWeights; // Weight of every vertex, null if every weight is 1
+        int[] coarseIDs; // Vertex of the next coarser level every vertex was merged into
+
+        Level(int numVertices, int[] offsets, int[] adjacency, int[] edgeWeights, int[] vertexWeights) {
+
+            this.numVertices = numVertices;
+            this.offsets = offsets;
+            this.adjacency = adjacency;
+            this.edgeWeights = edgeWeights;
+            this.vertexWeights = vertexWeights;
+        }
+
+        static Level unweighted(int numVertices, int[] offsets, int[] adjacency) {
+            return new Level(numVertices, offsets, adjacency, null, null);
+        }
+
+        int vertexWeight(int v) {
+            return vertexWeights != null ? vertexWeights[v] : 1;
+        }
+
+        int edgeWeight(int e) {
+            return edgeWeights != null ? edgeWeights[e] : 1;
+        }
+
+        /**
+         * Contract a heavy-edge matching into the next coarser level
+         *
+         * @param maxVertexWeight heaviest a contracted vertex may be
+         * @return
+         */
+        Level coarsen(int maxVertexWeight) {
+
+            int[] match = new int[numVertices];
+            Arrays.fill(match, -1);
+
+            // Vertices are visited in ID order, which keeps the scan through
+            // the edges sequential
+            for (int v = 0; v < numVertices; v++) {
+
+                if (match[v] >= 0) {
+                    continue;
+                }
+
+                int best = -1;
+                int bestWeight = 0;
+
+                for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+
+                    int u = adjacency[e];
+
+                    if (match[u] < 0 && u != v && edgeWeight(e) > bestWeight
+                            && vertexWeight(v) + vertexWeight(u) <= maxVertexWeight) {
+                        best = u;
+                        bestWeight = edgeWeight(e);
+                    }
+                }
+
+                if (best >= 0) {
+                    match[v] = best;
+                    match[best] = v;
+                }
+            }
+
+            // Pair leftover vertices that share their heaviest neighbor
+            int[] waiting = new int[numVertices];
+            Arrays.fill(waiting, -1);
+
+            for (int v = 0; v < numVertices; v++) {
+
+                if (match[v] >= 0) {
+                    continue;
+                }
+
+                int hub = heaviestNeighbor(v);
+
+                if (hub < 0) {
+                    match[v] = v;
+                } else if (waiting[hub] >= 0
+                        && vertexWeight(v) + vertexWeight(waiting[hub]) <= maxVertexWeight) {
+                    match[v] = waiting[hub];
+                    match[waiting[hub]] = v;
+                    waiting[hub] = -1;
+                } else {
+                    waiting[hub] = v;
+                }
+            }
+
+            for (int v = 0; v < numVertices; v++) {
+                if (match[v] < 0) {
+                    match[v] = v;
+                }
+            }
+
+            return contract(match);
+        }
+
+        /**
+         * Get the neighbor a vertex shares its heaviest edge with
+         * @param v
+         * @return neighbor, or -1 if the vertex has no edges
+         */
+        private int heaviestNeighbor(int v) {
+
+            int best = -1;
+            int bestWeight = 0;
+
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                if (adjacency[e] != v && edgeWeight(e) > bestWeight) {
+                    best = adjacency[e];
+                    bestWeight = edgeWeight(e);
+                }
+            }
+
+            return best;
+        }
+
+        /**
+         * Merge every matched pair of vertices into one vertex
+         * @param match vertex every vertex is merged with, itself if none
+         * @return
+         */
+        private Level contract(int[] match) {
+
+            coarseIDs = new int[numVertices];
+            int numCoarse = 0;
+
+            for (int v = 0; v < numVertices; v++) {
+                if (match[v] >= v) {
+                    coarseIDs[v] = numCoarse;
+                    coarseIDs[match[v]] = numCoarse;
+                    numCoarse++;
+                }
+            }
+
+            int[] coarseOffsets = new int[numCoarse + 1];
+            int[] coarseAdjacency = new int[adjacency.length];
+            int[] coarseEdgeWeights = new int[adjacency.length];
+            int[] coarseVertexWeights = new int[numCoarse];
+
+            // Position of every neighbor in the current vertex's edges
+            int[] position = new int[numCoarse];
+            Arrays.fill(position, -1);
+            int numEdges = 0;
+
+            for (int v = 0; v < numVertices; v++) {
+
+                if (match[v] < v) {
+                    continue;
+                }
+
+                int c = coarseIDs[v];
+                int first = numEdges;
+                coarseVertexWeights[c] = vertexWeight(v) + (match[v] != v ? vertexWeight(match[v]) : 0);
+
+                for (int side = 0; side < (match[v] != v ? 2 : 1); side++) {
+
+                    int fine = side == 0 ? v : match[v];
+
+                    for (int e = offsets[fine]; e < offsets[fine + 1]; e++) {
+
+                        int neighbor = coarseIDs[adjacency[e]];
+
+                        if (neighbor == c) {
+                            continue;
+                        }
+
+                        if (position[neighbor] >= first) {
+                            coarseEdgeWeights[position[neighbor]] += edgeWeight(e);
+                        } else {
+                            position[neighbor] = numEdges;
+                            coarseAdjacency[numEdges] = neighbor;
+                            coarseEdgeWeights[numEdges] = edgeWeight(e);
+                            numEdges++;
+                        }
+                    }
+                }
+
+                coarseOffsets[c + 1] = numEdges;
+            }
+
+            return new Level(numCoarse, coarseOffsets,
+                    Arrays.copyOf(coarseAdjacency, numEdges),
+                    Arrays.copyOf(coarseEdgeWeights, numEdges),
+                    coarseVertexWeights);
+        }
+
+        /**
+         * Split the graph by growing one breadth-first region per part
+         *
+         * @param numParts
+         * @return part of every vertex
+         */
+        int[] grow(int numParts) {
+
+            int[] parts = new int[numVertices];
+            Arrays.fill(parts, -1);
+            int[] queue = new int[numVertices];
+
+            // Seeds are taken in breadth-first order, so every region starts
+            // next to the regions grown before it
+            int[] seeds = breadthFirstOrder();
+            int seed = 0;
+            long remaining = 0;
+
+            for (int v = 0; v < numVertices; v++) {
+                remaining += vertexWeight(v);
+            }
+
+            for (int part = 0; part < numParts; part++) {
+
+                // Regions that overshot leave less for the parts after them
+                long target = (remaining + numParts - part - 1) / (numParts - part);
+                long weight = 0;
+                int head = 0;
+                int tail = 0;
+                boolean last = part == numParts - 1;
+
+                while (last || weight < target) {
+
+                    // A region that ran out of neighbors continues elsewhere
+                    if (head == tail) {
+
+                        while (seed < numVertices && parts[seeds[seed]] >= 0) {
+                            seed++;
+                        }
+
+                        if (seed == numVertices) {
+                            break;
+                        }
+
+                        parts[seeds[seed]] = part;
+                        weight += vertexWeight(seeds[seed]);
+                        queue[tail++] = seeds[seed];
+                        continue;
+                    }
+
+                    int v = queue[head++];
+
+                    for (int e = offsets[v]; e < offsets[v + 1] && (last || weight < target); e++) {
+
+                        int u = adjacency[e];
+
+                        if (parts[u] < 0) {
+                            parts[u] = part;
+                            weight += vertexWeight(u);
+                            queue[tail++] = u;
+                        }
+                    }
+                }
+
+                remaining -= weight;
+            }
+
+            return parts;
+        }
+
+        /**
+         * Order every vertex breadth first from vertex 0, and from the next
+         * vertex not reached whenever a search runs out
+         * @return
+         */
+        private int[] breadthFirstOrder() {
+
+            int[] order = new int[numVertices];
+            boolean[] queued = new boolean[numVertices];
+            int tail = 0;
+
+            for (int root = 0; root < numVertices; root++) {
+
+                if (queued[root]) {
+                    continue;
+                }
+
+                queued[root] = true;
+                order[tail++] = root;
+
+                for (int head = tail - 1; head < tail; head++) {
+
+                    int v = order[head];
+
+                    for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                        if (!queued[adjacency[e]]) {
+                            queued[adjacency[e]] = true;
+                            order[tail++] = adjacency[e];
+                        }
+                    }
+                }
+            }
+
+            return order;
+        }
+
+        /**
+         * Add up the weight of every part
+         * @param parts part of every vertex
+         * @param numParts
+         * @return
+         */
+        long[] partWeights(int[] parts, int numParts) {
+
+            long[] weights = new long[numParts];
+
+            for (int v = 0; v < numVertices; v++) {
+                weights[parts[v]] += vertexWeight(v);
+            }
+
+            return weights;
+        }
+
+        /**
+         * Move boundary vertices to the neighboring part they have the most
+         * edge weight to, if that part has room. Vertices of parts over the
+         * limit move to a part with room even if the cut grows.
+         *
+         * @param parts part of every vertex, updated
+         * @param partWeights weight of every part, updated
+         * @param maxWeight heaviest a part may be
+         */
+        void refine(int[] parts, long[] partWeights, int maxWeight) {
+
+            // Edge weight from the current vertex to every part it touches
+            long[] connection = new long[partWeights.length];
+            int[] touched = new int[partWeights.length];
+
+            for (int pass = 0; pass < REFINE_PASSES; pass++) {
+
+                int numMoved = 0;
+
+                for (int v = 0; v < numVertices; v++) {
+
+                    int from = parts[v];
+                    int numTouched = 0;
+
+                    for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+
+                        int part = parts[adjacency[e]];
+
+                        if (connection[part] == 0) {
+                            touched[numTouched++] = part;
+                        }
+
+                        connection[part] += edgeWeight(e);
+                    }
+
+                    int weight = vertexWeight(v);
+                    boolean overweight = partWeights[from] > maxWeight;
+                    int best = from;
+                    long bestGain = overweight ? Long.MIN_VALUE : 0;
+
+                    for (int i = 0; i < numTouched; i++) {
+
+                        int part = touched[i];
+
+                        if (part == from || partWeights[part] + weight > maxWeight) {
+                            continue;
+                        }
+
+                        long gain = connection[part] - connection[from];
+
+                        // Ties go to the lighter part, which balances the parts
+                        if (gain > bestGain || (gain == bestGain && best != from
+                                && partWeights[part] < partWeights[best])
+                                || (gain == 0 && best == from
+                                && partWeights[part] + weight < partWeights[from])) {
+                            best = part;
+                            bestGain = gain;
+                        }
+                    }
+
+                    for (int i = 0; i < numTouched; i++) {
+                        connection[touched[i]] = 0;
+                    }
+
+                    if (best != from) {
+                        parts[v] = best;
+                        partWeights[from] -= weight;
+                        partWeights[best] += weight;
+                        numMoved++;
+                    }
+                }
+
+                if ((long) numMoved * SETTLED < numVertices) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Add up the weight of the edges between parts
+         * @param parts part of every vertex
+         * @return
+         */
+        long cutWeight(int[] parts) {
+
+            long cut = IntStream.range(0, numVertices).parallel().mapToLong((v) -> {
+
+                long weight = 0;
+
+                for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                    if (parts[adjacency[e]] != parts[v]) {
+                        weight += edgeWeight(e);
+                    }
+                }
+
+                return weight;
+            }).sum();
+
+            // Every edge is stored at both ends
+            return cut / 2;
+        }
+    }
+}
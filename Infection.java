@@ -1,8 +1,10 @@
 package infection;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.SplittableRandom;
 
 /**
  * total_infection and limited_infection algorithm implementations. The meat of
@@ -13,6 +15,34 @@ import java.util.HashMap;
  */
 public class Infection extends Clusters {
 
+    /**
+     * Columnar store shared by every user, or null if the users keep their
+     * own website versions. When present, versions are written in bulk.
+     */
+    protected final UserColumns columns;
+
+    /**
+     * Buffer the traversal fallback collects cluster members in, created on
+     * first use
+     */
+    private int[] members;
+
+    /**
+     * Undo log every rollout is recorded in, or null
+     */
+    private RolloutLog rolloutLog;
+
+    /**
+     * ID of the latest rollout recorded in the undo log, -1 if none
+     */
+    private long lastRolloutID = -1;
+
+    /**
+     * Time the latest batch of limited infections took to plan, in
+     * nanoseconds
+     */
+    private long lastPlanningNanos;
+
     /**
      * Constructor.
      *
@@ -20,6 +50,435 @@ public class Infection extends Clusters {
      */
     public Infection(User[] users) {
         super(users);
+        columns = sharedColumns(users);
+    }
+
+    /**
+     * Constructor. Clusters and infections traverse the compact graph instead
+     * of the users' relation lists.
+     *
+     * @param users array containing every user
+     * @param graph compact copy of the users' coach relations
+     */
+    public Infection(User[] users, CompactGraph graph) {
+        super(users, graph);
+        columns = sharedColumns(users);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param users array containing every user
+     * @param graph compact copy of the users' coach relations, or null
+     * @param method algorithm used to cluster the users
+     */
+    public Infection(User[] users, CompactGraph graph, ClusteringMethod method) {
+        super(users, graph, method);
+        columns = sharedColumns(users);
+    }
+
+    /**
+     * Constructor for a population with no User objects at all. Users are
+     * identified by their IDs in the graph and the store.
+     *
+     * @param graph compact graph of the coach relations
+     * @param columns columnar store with one entry per vertex of the graph
+     * @param method algorithm used to cluster the users
+     */
+    public Infection(CompactGraph graph, UserColumns columns, ClusteringMethod method) {
+        super(graph, method);
+        this.columns = columns;
+    }
+
+    /**
+     * Constructor adopts clusters that were already built.
+     *
+     * @param users array containing every user
+     * @param graph compact graph of the users' coach relations, or null
+     * @param clusterIndex clusters of the users
+     */
+    public Infection(User[] users, CompactGraph graph, ClusterIndex clusterIndex) {
+        super(users, graph, clusterIndex);
+        columns = sharedColumns(users);
+    }
+
+    /**
+     * Constructor adopts clusters that were already built, for a population
+     * with no User objects.
+     *
+     * @param graph compact graph of the coach relations
+     * @param columns columnar store with one entry per vertex of the graph
+     * @param clusterIndex clusters of the graph
+     */
+    public Infection(CompactGraph graph, UserColumns columns, ClusterIndex clusterIndex) {
+        super(null, graph, clusterIndex);
+        this.columns = columns;
+    }
+
+    /**
+     * Load the users' clusters from a snapshot if it matches their graph, or
+     * cluster them and save a new snapshot if it does not.
+     *
+     * @param users array containing every user
+     * @param graph compact graph of the users' coach relations, or null
+     * @param method algorithm used to cluster the users if there is no
+     * matching snapshot
+     * @param snapshot snapshot file
+     * @return infection over the clustered users
+     * @throws IOException if a new snapshot cannot be written
+     */
+    public static Infection withSnapshot(
+            User[] users, CompactGraph graph, ClusteringMethod method, Path snapshot)
+            throws IOException {
+
+        long checksum = graph != null
+                ? ClusterSnapshot.checksum(graph)
+                : ClusterSnapshot.checksum(users);
+
+        ClusterIndex index = ClusterSnapshot.load(snapshot, checksum, users.length);
+
+        if (index != null) {
+            return new Infection(users, graph, index);
+        }
+
+        Infection infection = new Infection(users, graph, method);
+        ClusterSnapshot.save(snapshot, infection.getClusterIndex(), checksum);
+
+        return infection;
+    }
+
+    /**
+     * Find the columnar store shared by every user
+     *
+     * @param users array containing every user
+     * @return the store, or null if any user keeps its own attributes
+     */
+    private static UserColumns sharedColumns(User[] users) {
+
+        UserColumns shared = users.length > 0 ? users[0].columns() : null;
+
+        if (shared == null || shared.size() != users.length) {
+            return null;
+        }
+
+        for (User user : users) {
+            if (user.columns() != shared) {
+                return null;
+            }
+        }
+
+        return shared;
+    }
+
+    /**
+     * Get the version of the website a user sees
+     *
+     * @param userID
+     * @return
+     */
+    public int websiteVersion(int userID) {
+
+        if (columns != null) {
+            return columns.version(userID);
+        }
+
+        return ((User) vertices[userID]).websiteVersion();
+    }
+
+    /**
+     * Get the number of users who see a version. Constant time when the users
+     * share a columnar store; otherwise every user is scanned.
+     *
+     * @param version
+     * @return
+     */
+    public int countOnVersion(int version) {
+
+        if (columns != null) {
+            return columns.countOnVersion(version);
+        }
+
+        int count = 0;
+
+        for (int userID = 0; userID < size(); userID++) {
+            if (websiteVersion(userID) == version) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Get the IDs of the users who see a version, in ascending order. Read
+     * from the version index when the users share a columnar store;
+     * otherwise every user is scanned.
+     *
+     * @param version
+     * @return
+     */
+    public int[] usersOnVersion(int version) {
+
+        if (columns != null) {
+            return columns.usersOnVersion(version);
+        }
+
+        int[] userIDs = new int[countOnVersion(version)];
+        int count = 0;
+
+        for (int userID = 0; userID < size() && count < userIDs.length; userID++) {
+            if (websiteVersion(userID) == version) {
+                userIDs[count++] = userID;
+            }
+        }
+
+        return userIDs;
+    }
+
+    /**
+     * Update the website version of a single user
+     *
+     * @param userID
+     * @param newWebsiteVersion
+     */
+    protected void infectUser(int userID, int newWebsiteVersion) {
+
+        if (isLogging()) {
+            rolloutLog.record(userID, websiteVersion(userID));
+        }
+
+        if (columns != null) {
+            columns.setVersion(userID, newWebsiteVersion);
+        } else {
+            ((User) vertices[userID]).updateWebsiteVersion(newWebsiteVersion);
+        }
+    }
+
+    /**
+     * Update the website version of every member of a cluster
+     *
+     * @param label cluster label
+     * @param newWebsiteVersion
+     */
+    protected void infectCluster(int label, int newWebsiteVersion) {
+        infectCluster(clusterIndex, label, newWebsiteVersion);
+    }
+
+    /**
+     * Update the website version of every member of a cluster or unit
+     *
+     * @param index clusters or units
+     * @param label label in the index
+     * @param newWebsiteVersion
+     */
+    protected void infectCluster(ClusterIndex index, int label, int newWebsiteVersion) {
+
+        if (isLogging()) {
+            recordPriorVersions(index, label);
+        }
+
+        if (columns != null) {
+            columns.setVersionForCluster(index, label, newWebsiteVersion);
+            return;
+        }
+
+        int[] members = index.members();
+        int start = index.start(label);
+        int end = start + index.size(label);
+
+        for (int i = start; i < end; i++) {
+            User user = (User) vertices[members[i]];
+            user.updateWebsiteVersion(newWebsiteVersion);
+        }
+    }
+
+    /**
+     * Update the website version of every member of a list of clusters or
+     * units
+     *
+     * @param index clusters or units
+     * @param labels labels in the index
+     * @param count number of labels to read from the array
+     * @param newWebsiteVersion
+     */
+    protected void infectClusters(
+            ClusterIndex index, int[] labels, int count, int newWebsiteVersion) {
+
+        if (columns != null) {
+
+            if (isLogging()) {
+                for (int i = 0; i < count; i++) {
+                    recordPriorVersions(index, labels[i]);
+                }
+            }
+
+            columns.setVersionForClusters(index, labels, count, newWebsiteVersion);
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            infectCluster(index, labels[i], newWebsiteVersion);
+        }
+    }
+
+    /**
+     * Record every rollout in an undo log, so it can be reverted
+     *
+     * @param rolloutLog undo log, or null to stop recording
+     */
+    public void setRolloutLog(RolloutLog rolloutLog) {
+        this.rolloutLog = rolloutLog;
+    }
+
+    /**
+     * Get the undo log rollouts are recorded in
+     * @return undo log, or null if rollouts are not recorded
+     */
+    public RolloutLog getRolloutLog() {
+        return rolloutLog;
+    }
+
+    /**
+     * Get the ID of the latest rollout recorded in the undo log
+     * @return rollout ID, or -1 if none was recorded
+     */
+    public long lastRolloutID() {
+        return lastRolloutID;
+    }
+
+    /**
+     * Revert a rollout recorded in the undo log, restoring every user it
+     * changed to their prior version. Takes time proportional to the size of
+     * the rollout.
+     *
+     * @param rolloutID ID of the rollout
+     * @return number of users restored
+     */
+    public long revertRollout(long rolloutID) {
+
+        if (rolloutLog == null) {
+            throw new IllegalStateException("Rollouts are not being recorded");
+        }
+
+        return rolloutLog.revert(rolloutID, (fromID, toID, version) -> {
+
+            if (columns != null) {
+                columns.fillVersion(fromID, toID, version);
+                return;
+            }
+
+            for (int userID = fromID; userID < toID; userID++) {
+                ((User) vertices[userID]).updateWebsiteVersion(version);
+            }
+        });
+    }
+
+    /**
+     * Get the users a rollout recorded in the undo log wrote to. The sets of
+     * different rollouts combine with CompressedBitmap's or(), and() and
+     * andNot().
+     *
+     * @param rolloutID ID of the rollout
+     * @return set of user IDs
+     */
+    public CompressedBitmap rolloutMembers(long rolloutID) {
+
+        if (rolloutLog == null) {
+            throw new IllegalStateException("Rollouts are not being recorded");
+        }
+
+        return rolloutLog.members(rolloutID);
+    }
+
+    /**
+     * Get the time the latest batch of limited infections took to plan,
+     * before any user was written
+     * @return planning time in nanoseconds, or 0 if no batch has run
+     */
+    public long lastPlanningNanos() {
+        return lastPlanningNanos;
+    }
+
+    /**
+     * Start recording a rollout in the undo log, if there is one
+     */
+    protected void beginRollout() {
+
+        if (rolloutLog != null) {
+            lastRolloutID = rolloutLog.begin();
+        }
+    }
+
+    /**
+     * Finish recording a rollout in the undo log, if there is one
+     */
+    protected void endRollout() {
+
+        if (rolloutLog != null) {
+            rolloutLog.end();
+        }
+    }
+
+    /**
+     * Check whether writes are being recorded in the undo log
+     * @return
+     */
+    private boolean isLogging() {
+        return rolloutLog != null && rolloutLog.isOpen();
+    }
+
+    /**
+     * Record the versions the members of a cluster or unit see in the undo
+     * log
+     *
+     * @param index clusters or units
+     * @param label label in the index
+     */
+    private void recordPriorVersions(ClusterIndex index, int label) {
+
+        int[] members = index.members();
+        int start = index.start(label);
+        int end = start + index.size(label);
+
+        for (int i = start; i < end; i++) {
+            rolloutLog.record(members[i], websiteVersion(members[i]));
+        }
+    }
+
+    /**
+     * Add a coach relation between two users and update the clusters
+     * incrementally.
+     *
+     * @param coach user who coaches the student
+     * @param student user who is coached
+     */
+    public void addCoachRelation(User coach, User student) {
+
+        // Fail before the users change if the clusters cannot follow
+        requireFreshIndex();
+
+        coach.addCoachesRelation(student);
+        student.addCoachedByRelation(coach);
+
+        insertEdge(coach, student);
+    }
+
+    /**
+     * Remove a coach relation between two users and update the clusters
+     * incrementally.
+     *
+     * @param coach user who coaches the student
+     * @param student user who is coached
+     */
+    public void removeCoachRelation(User coach, User student) {
+
+        // Fail before the users change if the clusters cannot follow
+        requireFreshIndex();
+
+        coach.removeCoachesRelation(student);
+        student.removeCoachedByRelation(coach);
+
+        deleteEdge(coach, student);
     }
 
     /**
@@ -31,8 +490,21 @@ public class Infection extends Clusters {
      */
     public int total_infection(int newWebsiteVersion) {
 
-        int randID = (int) (Math.random() * vertices.length);
-        int numInfected = total_infection((User) vertices[randID], newWebsiteVersion);
+        return total_infection(newWebsiteVersion, threadRandom());
+    }
+
+    /**
+     * Total infection algorithm for a root user drawn from a random source.
+     * Passing new SplittableRandom(seed) replays a rollout exactly.
+     *
+     * @param newWebsiteVersion version ID that users will be 'infected' with
+     * @param random random source, used by this thread only
+     * @return number of users infected
+     */
+    public int total_infection(int newWebsiteVersion, SplittableRandom random) {
+
+        int randID = random.nextInt(size());
+        int numInfected = total_infection(randID, newWebsiteVersion);
 
         return numInfected;
     }
@@ -42,29 +514,74 @@ public class Infection extends Clusters {
      * graph of the coached/coached-by relation to which the root user is
      * connected.
      *
+     * The cluster is looked up in the cluster index, so nothing is traversed
+     * or allocated. If the graph was changed without going through
+     * addCoachRelation or removeCoachRelation and the clusters were marked
+     * stale, the cluster is found by traversal instead.
+     *
      * @param epicenter root user where the infection will spread from
      * @param newWebsiteVersion version ID that users will be 'infected' with
      * @return number of users infected
      */
     public int total_infection(User epicenter, int newWebsiteVersion) {
 
-        boolean[] closedSet = new boolean[vertices.length];
+        return total_infection(epicenter.id(), newWebsiteVersion);
+    }
 
-        // Build the cluster
-        ArrayList<Integer> cluster = Clusters.buildCluster(
-                epicenter,
-                closedSet,
-                epicenter.getClusterLabel());
+    /**
+     * Total infection algorithm for a root user ID.
+     *
+     * @param epicenterID ID of the root user where the infection will spread
+     * from
+     * @param newWebsiteVersion version ID that users will be 'infected' with
+     * @return number of users infected
+     */
+    public int total_infection(int epicenterID, int newWebsiteVersion) {
+
+        long start = InfectionMetrics.startTime();
+        int numInfected;
+        beginRollout();
+
+        if (isStale()) {
+            numInfected = totalInfectionByTraversal(epicenterID, newWebsiteVersion);
+        } else {
+            // Update every user's website version
+            int label = clusterIndex.clusterOf(epicenterID);
+            infectCluster(label, newWebsiteVersion);
+            numInfected = clusterIndex.size(label);
+        }
 
-        // Update every user's website version
-        cluster.stream().forEach((userID) -> {
-            User user = (User) vertices[userID];
-            user.updateWebsiteVersion(newWebsiteVersion);
-        });
+        endRollout();
+        recordInfection(InfectionMetrics.get().totalInfections, start, numInfected);
 
         // Return the number of users infected
-        int numInfected = cluster.size();
+        return numInfected;
+    }
+
+    /**
+     * Total infection by traversing the graph from the root user, without
+     * using the cluster index.
+     *
+     * @param epicenterID ID of the root user where the infection will spread
+     * from
+     * @param newWebsiteVersion version ID that users will be 'infected' with
+     * @return number of users infected
+     */
+    protected int totalInfectionByTraversal(int epicenterID, int newWebsiteVersion) {
+
+        if (members == null) {
+            members = new int[size()];
+        }
 
+        // Find the cluster
+        int numInfected = traverseCluster(epicenterID, members);
+
+        // Update every user's website version
+        for (int i = 0; i < numInfected; i++) {
+            infectUser(members[i], newWebsiteVersion);
+        }
+
+        // Return the number of users infected
         return numInfected;
     }
 
@@ -84,8 +601,17 @@ public class Infection extends Clusters {
     }
 
     /**
-     * Limited infection algorithm. Given a root user and a target vertices
-     * size, finds and labels a graph of the coached/coached-by relation.
+     * Limited infection algorithm. Given a target population size, picks a set
+     * of whole clusters whose total size is as close to the target as
+     * possible, and labels them with the new website version.
+     *
+     * The clusters are planned from the cluster size histogram as a bounded
+     * subset-sum problem (see SubsetSumPlanner), so the result is
+     * deterministic and hits the target whenever some combination of cluster
+     * sizes falls within the error. Clusters of each chosen size are taken in
+     * the order the size index lists them, which is label order until
+     * clusters merge or split. If the clusters were split with
+     * partitionClusters, units are chosen instead of clusters.
      *
      * @param targetPop target size of the infected vertices
      * @param newWebsiteVersion version ID that users will be 'infected' with
@@ -94,162 +620,330 @@ public class Infection extends Clusters {
      */
     public int limited_infection(int targetPop, int newWebsiteVersion, float error) {
 
-        int numInfected = 0;    // Running total users infected
-        int numClustersInfected = 0;    // Running total clusters infected
+        requireFreshIndex();
+        long start = InfectionMetrics.startTime();
+
+        // Labels of the chosen clusters or units
+        ClusterIndex units = getUnitIndex();
+        int[] infected = new int[units.numClusters()];
+        int numClustersInfected = planLimitedInfection(
+                getUnitSizeIndex(), targetPop, error, infected);
+
+        int numInfected = 0;
 
-        // HashMap aggregates infected clusters
-        HashMap<Integer, ArrayList<Integer>> infectedClusters = new HashMap<>();
+        for (int i = 0; i < numClustersInfected; i++) {
+            numInfected += units.size(infected[i]);
+        }
+
+        // Update every user's website version
+        beginRollout();
+        infectClusters(units, infected, numClustersInfected, newWebsiteVersion);
+        endRollout();
+        recordInfection(InfectionMetrics.get().limitedInfections, start, numInfected);
 
-        boolean[] closedSet = new boolean[vertices.length];
+        // Return the number of users infected
+        return numInfected;
+    }
 
-        // Until we iterate an unreasonable number of times, try to hit targetPop
-        for (int i = 0; i < vertices.length; i++) {
+    /**
+     * Choose the clusters a limited infection infects, without infecting
+     * them. Reads the index only. Only sizes up to the target's upper bound
+     * are read, and the chosen clusters are taken straight from their size
+     * buckets.
+     *
+     * @param sizes sizes of the clusters or units to choose from
+     * @param targetPop target size of the infected vertices
+     * @param error allowable error (target +- target * float in range (0,1))
+     * @param infected output, the labels of the chosen clusters; numClusters()
+     * of the index ints always fit
+     * @return number of clusters chosen
+     */
+    protected int planLimitedInfection(
+            ClusterSizeIndex sizes, int targetPop, float error, int[] infected) {
 
-            int randID = (int) (Math.random() * vertices.length);
+        // Clusters above the upper bound can never be chosen
+        int upper = (int) Math.min(Integer.MAX_VALUE - 1L,
+                (long) Math.floor(targetPop * (1.0 + error)));
 
-            // While the random user is infected, get another random user
-            while (closedSet[randID]) {
-                randID = (int) (Math.random() * vertices.length);
+        // Number of clusters of each distinct size to infect
+        int[] distinct = sizes.distinctSizes(upper);
+        int[] counts = new int[distinct.length];
+
+        for (int i = 0; i < distinct.length; i++) {
+            counts[i] = sizes.count(distinct[i]);
+        }
+
+        int[] chosen = SubsetSumPlanner.plan(
+                distinct, counts, distinct.length, targetPop, error);
+
+        int numClustersInfected = 0;
+
+        for (int i = 0; i < distinct.length; i++) {
+
+            int label = sizes.firstOfSize(distinct[i]);
+
+            for (int j = 0; j < chosen[i]; j++) {
+                infected[numClustersInfected++] = label;
+                label = sizes.nextOfSize(label);
             }
+        }
+
+        return numClustersInfected;
+    }
+
+    /**
+     * Limited infection for a batch of targets with the default target
+     * error.
+     *
+     * @param targetPops target size of every request
+     * @param newWebsiteVersions version ID of every request
+     * @return actual number of users infected for every request
+     */
+    public int[] limited_infection(int[] targetPops, int[] newWebsiteVersions) {
+
+        float[] errors = new float[targetPops.length];
+        Arrays.fill(errors, 0.05f);
+
+        return limited_infection(targetPops, newWebsiteVersions, errors);
+    }
+
+    /**
+     * Limited infection for a batch of targets that must not share any
+     * cluster, such as concurrent experiments. Every request is planned
+     * against the same counts of the distinct sizes up to the largest upper
+     * bound, with the clusters earlier requests took removed from them, so no
+     * cluster goes to two requests. Requests are
+     * planned from the smallest target up, since small targets depend most on
+     * having the right small clusters left.
+     *
+     * The chosen clusters are then taken from their size buckets and every
+     * one is written once, in label order, as a single rollout in the undo
+     * log. The time spent planning is available from lastPlanningNanos().
+     * If the clusters were split with partitionClusters, units are chosen
+     * instead of clusters.
+     *
+     * @param targetPops target size of every request
+     * @param newWebsiteVersions version ID of every request
+     * @param errors allowable error of every request (target +- target *
+     * float in range (0,1))
+     * @return actual number of users infected for every request
+     */
+    public int[] limited_infection(
+            int[] targetPops, int[] newWebsiteVersions, float[] errors) {
 
-            User epicenter = (User) vertices[randID];
+        if (newWebsiteVersions.length != targetPops.length
+                || errors.length != targetPops.length) {
+            throw new IllegalArgumentException(
+                    "Need one version and one error for every target");
+        }
+
+        requireFreshIndex();
+        long start = InfectionMetrics.startTime();
+        long planStart = System.nanoTime();
+
+        int numRequests = targetPops.length;
+        ClusterIndex units = getUnitIndex();
+        ClusterSizeIndex sizes = getUnitSizeIndex();
+
+        // Smallest target first, ties in request order
+        long[] order = new long[numRequests];
+
+        for (int request = 0; request < numRequests; request++) {
+            order[request] = (long) Math.max(0, targetPops[request]) << 32 | request;
+        }
 
-            // Build the cluster and add its contents to the closed set
-            ArrayList<Integer> cluster = Clusters.buildCluster(
-                    epicenter,
-                    closedSet,
-                    epicenter.getClusterLabel());
+        Arrays.sort(order);
 
-            int clusterSize = cluster.size();
+        // Only sizes up to the largest upper bound can be chosen
+        int[] uppers = new int[numRequests];
+        int maxUpper = 0;
+
+        for (int request = 0; request < numRequests; request++) {
+            uppers[request] = (int) Math.min(Integer.MAX_VALUE - 1L,
+                    (long) Math.floor(targetPops[request] * (1.0 + errors[request])));
+            maxUpper = Math.max(maxUpper, uppers[request]);
+        }
+
+        // Number of clusters of each distinct size no request has taken yet
+        int[] distinct = sizes.distinctSizes(maxUpper);
+        int[] available = new int[distinct.length];
+
+        for (int i = 0; i < distinct.length; i++) {
+            available[i] = sizes.count(distinct[i]);
+        }
 
-            // Check to see if this new cluster will put us over the target error
-            float infectionPercent = clusterSize + numInfected;
-            infectionPercent /= (float) targetPop;
+        int[][] chosen = new int[numRequests][];
 
-            if (infectionPercent <= 1 + error) {
+        for (long key : order) {
 
-                infectedClusters.put(numClustersInfected, cluster);
+            int request = (int) key;
+            int numFitting = distinct.length;
 
-                numInfected += clusterSize;
+            while (numFitting > 0 && distinct[numFitting - 1] > uppers[request]) {
+                numFitting--;
             }
 
-            float infectionError = Math.abs(1 - infectionPercent);
+            chosen[request] = SubsetSumPlanner.plan(distinct, available, numFitting,
+                    targetPops[request], errors[request]);
 
-            if (infectionError <= error) {
-                break;
+            for (int i = 0; i < numFitting; i++) {
+                available[i] -= chosen[request][i];
             }
         }
 
-        // Get all of the userIDs in the clusters HashMap
-        Integer[] userIDs = new Integer[infectedClusters.size()];
-        userIDs = infectedClusters.keySet().toArray(userIDs);
+        // Hand out every size's clusters to the requests that chose them,
+        // packed as label and request so they sort in label order
+        long[] assignments = new long[units.numClusters()];
+        int numAssigned = 0;
+        int[] numInfected = new int[numRequests];
 
-        // Update every user's website version
-        for (int userID : userIDs) {
-            User user = (User) vertices[userID];
-            user.updateWebsiteVersion(newWebsiteVersion);
+        for (int i = 0; i < distinct.length; i++) {
+
+            int label = sizes.firstOfSize(distinct[i]);
+
+            for (int request = 0; request < numRequests; request++) {
+
+                int count = i < chosen[request].length ? chosen[request][i] : 0;
+
+                for (int j = 0; j < count; j++) {
+                    assignments[numAssigned++] = (long) label << 32 | request;
+                    label = sizes.nextOfSize(label);
+                }
+
+                numInfected[request] += count * distinct[i];
+            }
         }
 
-        // Return the number of users infected
+        Arrays.sort(assignments, 0, numAssigned);
+        lastPlanningNanos = System.nanoTime() - planStart;
+
+        // Write every chosen cluster once
+        beginRollout();
+
+        for (int i = 0; i < numAssigned; i++) {
+
+            int label = (int) (assignments[i] >>> 32);
+            int request = (int) assignments[i];
+
+            infectCluster(units, label, newWebsiteVersions[request]);
+        }
+
+        endRollout();
+
+        long total = 0;
+
+        for (int request = 0; request < numRequests; request++) {
+            total += numInfected[request];
+        }
+
+        recordInfection(InfectionMetrics.get().limitedInfections, start, total);
+
         return numInfected;
     }
 
     /**
      * Tiered infection utilizes the full clustering algorithm, sorting the
      * results and distributing website versions among the user population.
+     * Splits the population into four tiers of 5%, 10%, 15% and 70%.
      *
-     * @param versions
+     * @param versions website version of each of the four tiers
      * @return actual infected populations
      */
     public double[][] tiered_infection(int[] versions) {
 
-        // Get cluster labels
-        Integer[] labels = new Integer[clusterPopulations.size()];
-        labels = clusterPopulations.keySet().toArray(labels);
+        return tiered_infection(versions, new double[] { 0.05, 0.10, 0.15, 0.70 });
+    }
+
+    /**
+     * Tiered infection for any number of tiers. Every cluster is assigned to
+     * exactly one tier, so every user gets one of the tiers' versions. If the
+     * clusters were split with partitionClusters, units are assigned instead.
+     *
+     * Clusters are read from largest to smallest out of the size index, then
+     * each one goes to the tier that is furthest below its target population
+     * (longest processing time first), using a priority queue keyed on each
+     * tier's deficit. This runs in O(C log k + D log S) time for C clusters,
+     * k tiers, D distinct sizes and a largest cluster of size S.
+     *
+     * @param versions website version of each tier
+     * @param fractions target fraction of the population for each tier
+     * @return { clusters added, users infected, achieved fraction } per tier
+     */
+    public double[][] tiered_infection(int[] versions, double[] fractions) {
 
-        HashMap<Integer, ArrayList<Integer>> sizesToLabels
-                = new HashMap<>();
+        if (versions.length != fractions.length || versions.length == 0) {
+            throw new IllegalArgumentException(
+                    "Need one fraction for every version");
+        }
 
-        for (int label : labels) {
+        requireFreshIndex();
+        long start = InfectionMetrics.startTime();
 
-            int size = clusterPopulations.get(label).size();
+        int numTiers = versions.length;
+        ClusterIndex units = getUnitIndex();
+        int[] sortedLabels = getUnitSizeIndex().largest(units.numClusters());
 
-            if (sizesToLabels.containsKey(size)) {
-                sizesToLabels.get(size).add(label);
-            } else {
-                ArrayList<Integer> labelList = new ArrayList<>();
-                labelList.add(label);
-                sizesToLabels.put(size, labelList);
-            }
+        // Output data
+        double[] clustersAdded = new double[numTiers];
+        double[] numInfected = new double[numTiers];
+        double[] achieved = new double[numTiers];
+
+        // Remaining population each tier needs to reach its target
+        double[] deficit = new double[numTiers];
+
+        for (int tier = 0; tier < numTiers; tier++) {
+            deficit[tier] = fractions[tier] * size();
         }
 
-        // Get a sorted array of all sizes of clusters
-        Integer[] sizes = new Integer[sizesToLabels.size()];
-        sizes = sizesToLabels.keySet().toArray(sizes);
-        Arrays.sort(sizes);
+        // Tier with the largest deficit first
+        PriorityQueue<Integer> tiers = new PriorityQueue<>(numTiers,
+                (a, b) -> Double.compare(deficit[b], deficit[a]));
 
-        // Output data
-        double[] clustersAdded = new double[4];
-        double[] numInfected = new double[4];
-        
-        // Determine target populations
-        double[] targetPercent = new double[] { 0.05, 0.10, 0.15, 0.70 };
-        
-        // Track current tier size
-        int tier = 3;
-
-        // Iterate from biggest to smallest cluster size
-        for (int i = sizes.length; --i >= 0;) {
-
-            // Get the next set of clusters
-            int size = sizes[i];
-            ArrayList<Integer> clusters = sizesToLabels.get(sizes[i]);
-
-            // Iterate through all clusters of the current size
-            for (int clusterLabel : clusters) {
-
-                // Get the list of users in the next cluster
-                ArrayList<Integer> cluster = clusterPopulations.get(clusterLabel);
-                
-                // If almost met the quota for this tier, do the next tier
-                if (numInfected[tier] >= targetPercent[tier] * vertices.length) {
-                    
-                    tier -= 1;
-                    
-                    if (tier < 0) {
-                        
-                        // Find the tier that is least full (percent-wise)
-                        for (int j = 0; j < 3; j++) {
-                            
-                            double tierJ = numInfected[j] / vertices.length;
-                            tierJ = tierJ / targetPercent[j];
-                            
-                            for (int k = j+1; k < 4; k++) {
-                                
-                                double tierK = numInfected[k] / vertices.length;
-                                tierK /= targetPercent[k];
-                                
-                                if (tierJ > tierK) {
-                                    tier = j;
-                                } else {
-                                    tier = k;
-                                }
-                            }
-                        }
-                    }
-                }
-                
-                numInfected[tier] += size;
-                clustersAdded[tier] += 1;
-
-                // Update website versions of all users in the cluster
-                for (int userID : cluster) {
-                    User user = (User) vertices[userID];
-                    user.updateWebsiteVersion(versions[tier]);
-                }
-            }
+        for (int tier = 0; tier < numTiers; tier++) {
+            tiers.add(tier);
+        }
+
+        beginRollout();
+
+        for (int label : sortedLabels) {
+
+            int size = units.size(label);
+            int tier = tiers.poll();
+
+            deficit[tier] -= size;
+            numInfected[tier] += size;
+            clustersAdded[tier] += 1;
+
+            tiers.add(tier);
+
+            // Update website versions of all users in the cluster
+            infectCluster(units, label, versions[tier]);
+        }
+
+        endRollout();
+
+        for (int tier = 0; tier < numTiers; tier++) {
+            achieved[tier] = numInfected[tier] / size();
+        }
+
+        recordInfection(InfectionMetrics.get().tieredInfections, start, size());
+
+        return new double[][]{ clustersAdded, numInfected, achieved };
+    }
+
+    /**
+     * Record an infection in the metrics
+     *
+     * @param timer timer of the infection algorithm
+     * @param start start time from InfectionMetrics.startTime()
+     * @param numInfected number of users infected
+     */
+    static void recordInfection(
+            InfectionMetrics.Timer timer, long start, long numInfected) {
+
+        if (InfectionMetrics.enabled()) {
+            timer.recordSince(start);
+            InfectionMetrics.get().usersInfected.add(numInfected);
         }
-        
-        return new double[][]{ clustersAdded, numInfected };
     }
 }
@@ -0,0 +1,333 @@
+package infection;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters, timers and histograms recorded by Clusters and Infection, and
+ * exposed over JMX.
+ *
+ * Recording is off by default. Every instrumented method checks enabled()
+ * first, a single volatile read, so the instrumentation can stay in the hot
+ * path. Instruments are built on LongAdder so concurrent rollouts do not
+ * contend on them.
+ *
+ * @author David Bell
+ */
+public class InfectionMetrics implements InfectionMetricsMBean {
+
+    /**
+     * Name the metrics are registered under
+     */
+    public static final String OBJECT_NAME = "infection:type=InfectionMetrics";
+
+    private static final InfectionMetrics METRICS = new InfectionMetrics();
+    private static volatile boolean enabled; // Whether metrics are recorded
+
+    final Timer clustering = new Timer(); // Every full clustering
+    final Counter traversals = new Counter(); // Single-cluster traversals
+    final Counter verticesVisited = new Counter(); // Vertices those traversals visited
+    final Histogram stackDepth = new Histogram(); // Deepest open set of every traversal
+    final Timer totalInfections = new Timer(); // Every total_infection
+    final Timer limitedInfections = new Timer(); // Every limited_infection
+    final Timer tieredInfections = new Timer(); // Every tiered_infection
+    final Counter usersInfected = new Counter(); // Users given a new version
+    final Counter plannerSteps = new Counter(); // Subset-sum states and swaps tried
+    final Counter edgeInserts = new Counter(); // Calls to insertEdge
+    final Counter edgeDeletes = new Counter(); // Calls to deleteEdge
+    final Counter clusterSplits = new Counter(); // Deletes that split a cluster
+
+    /**
+     * Singleton
+     */
+    private InfectionMetrics() {
+    }
+
+    /**
+     * Get the metrics of this process
+     * @return
+     */
+    public static InfectionMetrics get() {
+        return METRICS;
+    }
+
+    /**
+     * Check whether metrics are being recorded. Instrumented code calls this
+     * before touching any instrument.
+     *
+     * @return
+     */
+    public static boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Get a start time for a timer, or 0 if metrics are off
+     * @return
+     */
+    public static long startTime() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Register the metrics with the platform MBean server, if they are not
+     * registered already.
+     *
+     * @throws JMException if the registration fails
+     */
+    public static void register() throws JMException {
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+
+        if (!server.isRegistered(name)) {
+            server.registerMBean(METRICS, name);
+        }
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        InfectionMetrics.enabled = enabled;
+    }
+
+    @Override
+    public void reset() {
+
+        for (Timer timer : new Timer[] {
+                clustering, totalInfections, limitedInfections, tieredInfections }) {
+            timer.reset();
+        }
+
+        for (Counter counter : new Counter[] {
+                traversals, verticesVisited, usersInfected, plannerSteps,
+                edgeInserts, edgeDeletes, clusterSplits }) {
+            counter.reset();
+        }
+
+        stackDepth.reset();
+    }
+
+    @Override
+    public long getClusterings() {
+        return clustering.count();
+    }
+
+    @Override
+    public double getClusteringMeanMillis() {
+        return clustering.meanMillis();
+    }
+
+    @Override
+    public double getClusteringMaxMillis() {
+        return clustering.maxMillis();
+    }
+
+    @Override
+    public long getTraversals() {
+        return traversals.get();
+    }
+
+    @Override
+    public long getVerticesVisited() {
+        return verticesVisited.get();
+    }
+
+    @Override
+    public long getMaxStackDepth() {
+        return stackDepth.max();
+    }
+
+    @Override
+    public long[] getStackDepthHistogram() {
+        return stackDepth.buckets();
+    }
+
+    @Override
+    public long getTotalInfections() {
+        return totalInfections.count();
+    }
+
+    @Override
+    public double getTotalInfectionMeanMillis() {
+        return totalInfections.meanMillis();
+    }
+
+    @Override
+    public long getLimitedInfections() {
+        return limitedInfections.count();
+    }
+
+    @Override
+    public double getLimitedInfectionMeanMillis() {
+        return limitedInfections.meanMillis();
+    }
+
+    @Override
+    public long getTieredInfections() {
+        return tieredInfections.count();
+    }
+
+    @Override
+    public double getTieredInfectionMeanMillis() {
+        return tieredInfections.meanMillis();
+    }
+
+    @Override
+    public long getUsersInfected() {
+        return usersInfected.get();
+    }
+
+    @Override
+    public long getPlannerSteps() {
+        return plannerSteps.get();
+    }
+
+    @Override
+    public long getEdgeInserts() {
+        return edgeInserts.get();
+    }
+
+    @Override
+    public long getEdgeDeletes() {
+        return edgeDeletes.get();
+    }
+
+    @Override
+    public long getClusterSplits() {
+        return clusterSplits.get();
+    }
+
+    /**
+     * Running count
+     */
+    public static final class Counter {
+
+        private final LongAdder count = new LongAdder();
+
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        public void increment() {
+            count.increment();
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        void reset() {
+            count.reset();
+        }
+    }
+
+    /**
+     * Count, total and maximum of a timed operation
+     */
+    public static final class Timer {
+
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+        /**
+         * Record an operation that started at a time from startTime(). Start
+         * times of 0, taken while metrics were off, are ignored.
+         * @param startNanos
+         */
+        public void recordSince(long startNanos) {
+            if (startNanos != 0) {
+                record(System.nanoTime() - startNanos);
+            }
+        }
+
+        public void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public double meanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / 1e6 / n;
+        }
+
+        public double maxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        void reset() {
+            count.reset();
+            totalNanos.reset();
+            maxNanos.reset();
+        }
+    }
+
+    /**
+     * Distribution of non-negative values in power-of-two buckets
+     */
+    public static final class Histogram {
+
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        public Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long value) {
+            buckets[64 - Long.numberOfLeadingZeros(Math.max(0, value))].increment();
+            max.accumulate(value);
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        /**
+         * Get the count of every bucket up to the highest non-empty one
+         * @return
+         */
+        public long[] buckets() {
+
+            long[] counts = new long[buckets.length];
+            int length = 0;
+
+            for (int i = 0; i < buckets.length; i++) {
+
+                counts[i] = buckets[i].sum();
+
+                if (counts[i] > 0) {
+                    length = i + 1;
+                }
+            }
+
+            return Arrays.copyOf(counts, length);
+        }
+
+        void reset() {
+
+            for (LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+
+            max.reset();
+        }
+    }
+}
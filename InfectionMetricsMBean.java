@@ -0,0 +1,67 @@
+package infection;
+
+/**
+ * Management interface of InfectionMetrics. Times are in milliseconds.
+ *
+ * @author David Bell
+ */
+public interface InfectionMetricsMBean {
+
+    /**
+     * Check whether metrics are being recorded
+     * @return
+     */
+    boolean isEnabled();
+
+    /**
+     * Start or stop recording metrics
+     * @param enabled
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * Clear every metric
+     */
+    void reset();
+
+    long getClusterings();
+
+    double getClusteringMeanMillis();
+
+    double getClusteringMaxMillis();
+
+    long getTraversals();
+
+    long getVerticesVisited();
+
+    long getMaxStackDepth();
+
+    /**
+     * Get the number of traversals whose deepest open set had a size in
+     * each power-of-two bucket: [0], [1], [2, 3], [4, 7], ...
+     * @return
+     */
+    long[] getStackDepthHistogram();
+
+    long getTotalInfections();
+
+    double getTotalInfectionMeanMillis();
+
+    long getLimitedInfections();
+
+    double getLimitedInfectionMeanMillis();
+
+    long getTieredInfections();
+
+    double getTieredInfectionMeanMillis();
+
+    long getUsersInfected();
+
+    long getPlannerSteps();
+
+    long getEdgeInserts();
+
+    long getEdgeDeletes();
+
+    long getClusterSplits();
+}
@@ -0,0 +1,104 @@
+package infection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Buffered writer of little-endian ints to a file channel, keeping a CRC-32
+ * of everything written.
+ *
+ * @author David Bell
+ */
+public class IntFileWriter {
+
+    private final FileChannel out; // Channel written to
+    private final ByteBuffer buffer; // Ints not yet written
+    private final CRC32 crc; // Checksum of every byte written
+
+    /**
+     * Constructor.
+     *
+     * @param out channel to write to, positioned where the ints belong
+     */
+    public IntFileWriter(FileChannel out) {
+
+        this.out = out;
+        this.buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        this.crc = new CRC32();
+    }
+
+    /**
+     * Write an int
+     * @param value
+     * @throws IOException
+     */
+    public void put(int value) throws IOException {
+
+        if (!buffer.hasRemaining()) {
+            flush();
+        }
+
+        buffer.putInt(value);
+    }
+
+    /**
+     * Write a slice of an int array
+     * @param values
+     * @param from first index of the slice
+     * @param to index after the last index of the slice
+     * @throws IOException
+     */
+    public void put(int[] values, int from, int to) throws IOException {
+
+        while (from < to) {
+
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+
+            int count = Math.min(to - from, buffer.remaining() / 4);
+            buffer.asIntBuffer().put(values, from, count);
+            buffer.position(buffer.position() + 4 * count);
+            from += count;
+        }
+    }
+
+    /**
+     * Write a long as two ints, low half first
+     * @param value
+     * @throws IOException
+     */
+    public void putLong(long value) throws IOException {
+        put((int) value);
+        put((int) (value >>> 32));
+    }
+
+    /**
+     * Write every buffered int to the channel
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+
+        buffer.flip();
+
+        ByteBuffer written = buffer.duplicate();
+        crc.update(written);
+
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+
+        buffer.clear();
+    }
+
+    /**
+     * Get the CRC-32 of every int flushed so far
+     * @return
+     */
+    public long checksum() {
+        return crc.getValue();
+    }
+}
@@ -1,7 +1,7 @@
 package infection;
 
-import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Main class for the infection package.
@@ -37,49 +37,26 @@ public class Main {
     public static User[] getRandomUserBase(
             int size, int numVersions, int maxClassSize, int studentRatio) {
 
-        User[] users = new User[size];
-
-        // Initialize users
-        for (int userID = 0; userID < size; userID++) {
-
-            // Create a new user with a unique ID and a random website version
-            users[userID] = new User(userID, (int) (Math.random() * numVersions));
-        }
-        
-        // Randomize relationships
-        for (User newUser : users) {
-
-            // Get a random class size (number of students coached by this user)
-            int classSize = maxClassSize;
-
-            // Get a random class size (number of students coached by this user)
-            for (int j = 0; j < studentRatio; j++) {
-
-                // Creates log distribution of class sizes over all users
-                classSize = (int) (Math.random() * classSize);
-            }
-
-            // Find classSize random users and create the coach relations
-            for (int j = 0; j < classSize; j++) {
-
-                int randID = (int) (Math.random() * size); // Get a random userID
-
-                // Get a random userID that's not already a student of this user
-                while (randID == newUser.id()
-                        || newUser.getCoachesRelation().contains(users[randID])) {
-
-                    randID = (int) (Math.random() * size); // Get a random userID
-                }
+        return getRandomUserBase(size, numVersions, maxClassSize, studentRatio,
+                ThreadLocalRandom.current().nextLong());
+    }
 
-                // Add the random user as a student of this user
-                newUser.addCoachesRelation(users[randID]);
+    /**
+     * Build an array of randomized users from a seed
+     * @param size number of users in the array
+     * @param numVersions number of versions active in the user base
+     * @param maxClassSize maximum number of students a user can have
+     * @param studentRatio change the student-coach ratio
+     * @param seed seed of the population; equal seeds give equal populations
+     * @return
+     */
+    public static User[] getRandomUserBase(
+            int size, int numVersions, int maxClassSize, int studentRatio, long seed) {
 
-                // Add this user as a coach of the random user
-                users[randID].addCoachedByRelation(newUser);
-            }
-        }
+        PopulationGenerator generator
+                = new PopulationGenerator(seed, numVersions, maxClassSize, studentRatio);
 
-        return users;
+        return generator.generateUsers(size);
     }
     
     /**
@@ -123,6 +100,28 @@ public class Main {
             System.out.println();
             System.out.println(" 4) Infection algorithm options");
             System.out.println();
+            System.out.println(" 5) Compare clustering methods");
+            System.out.println();
+            System.out.println(" 6) Verify dynamic cluster updates");
+            System.out.println("    -Adds and removes random coach relations,");
+            System.out.println("     comparing the clusters to a full re-clustering");
+            System.out.println();
+            System.out.println(" 7) Verify clustering snapshots");
+            System.out.println("    -Saves the clusters to a temporary file and");
+            System.out.println("     compares loading them to re-clustering");
+            System.out.println();
+            System.out.println(" 8) Verify edge list import");
+            System.out.println("    -Writes the coach relations to a gzipped edge");
+            System.out.println("     file and imports it");
+            System.out.println();
+            System.out.println(" 9) Run benchmarks");
+            System.out.println("    -Times clustering and every infection algorithm");
+            System.out.println("     on a seeded population of the current size");
+            System.out.println();
+            System.out.println(" 0) Verify runtime metrics");
+            System.out.println("    -Records metrics while clustering and infecting,");
+            System.out.println("     and reads them back over JMX");
+            System.out.println();
             System.out.println(" Any other key to exit the program");
 
             System.out.print("> ");
@@ -157,6 +156,15 @@ public class Main {
                         System.out.println();
                         System.out.println(" 6) Generate the new user population");
                         System.out.println();
+                        System.out.println(" 7) Compare compact graph against object graph");
+                        System.out.println("    -Prints memory use and clustering time of both");
+                        System.out.println();
+                        System.out.println(" 8) Compare cluster-contiguous numbering");
+                        System.out.println("    -Prints traversal and infection time of both");
+                        System.out.println();
+                        System.out.println(" 9) Compare mapped graph file against heap graph");
+                        System.out.println("    -Writes the population to a temporary file");
+                        System.out.println();
                         System.out.println(" Any other key for the main menu");
 
                         System.out.print("> ");
@@ -262,6 +270,24 @@ public class Main {
                                 System.out.println();
                                 break;
 
+                            case '7':
+                                ComponentTests.testCompactGraph(users);
+                                System.out.println();
+                                promptGo();
+                                break;
+
+                            case '8':
+                                ComponentTests.testVertexOrdering(users);
+                                System.out.println();
+                                promptGo();
+                                break;
+
+                            case '9':
+                                ComponentTests.testGraphFile(users);
+                                System.out.println();
+                                promptGo();
+                                break;
+
                             default:
                                 submenu1 = false;
                                 break;
@@ -305,8 +331,8 @@ public class Main {
                         System.out.println();
                         System.out.println(" 4) Run tiered_infection");
                         System.out.println();
-                        System.out.println("    -Infects all users, dividing 4 website versions among");
-                        System.out.println("     approximately 5%, 10%, 15%, and 70% of the population.");
+                        System.out.println("    -Infects all users, dividing website versions among");
+                        System.out.println("     any number of tiers at chosen percentages.");
                         System.out.println();
                         System.out.println(" 5) Verify total_infection functionality");
                         System.out.println("    -Runs total_infection on 10 random users, comparing");
@@ -316,6 +342,19 @@ public class Main {
                         System.out.println("    -Runs limited_infection 10 times, comparing its");
                         System.out.println("     results to the clustering algorithm.");
                         System.out.println();
+                        System.out.println(" 7) Verify concurrent rollouts");
+                        System.out.println("    -Runs total_infection from many threads while");
+                        System.out.println("     others read versions, then checks every cluster");
+                        System.out.println("     is on a single version.");
+                        System.out.println();
+                        System.out.println(" 8) Verify rollout undo log");
+                        System.out.println("    -Records infections in an undo log, reverts them");
+                        System.out.println("     and checks every user's version is restored.");
+                        System.out.println();
+                        System.out.println(" 9) Verify version index");
+                        System.out.println("    -Compares the users counted and listed on each");
+                        System.out.println("     version against a scan of every user.");
+                        System.out.println();
                         System.out.println(" Any other key for the main menu");
 
                         System.out.print("> ");
@@ -335,20 +374,20 @@ public class Main {
                                     
                                     User user = users[userID];
                                     int label = user.getClusterLabel();
-                                    ArrayList<Integer> cluster = infection.verticesInCluster(label);
+                                    int[] cluster = infection.verticesInCluster(label);
                                     int myVersion = users[userID].websiteVersion();
                                     
                                     System.out.println("------------------------------------------------");
                                     System.out.println("User: " + userID);
                                     System.out.println("User's website version: " + myVersion);
                                     System.out.println("Cluster: " + label);
-                                    System.out.println("Cluster size: " + cluster.size());
+                                    System.out.println("Cluster size: " + cluster.length);
                                     
                                     int countSame = 0;
                                     int countNot = 0;
                                     
                                     for (int id : cluster) {
-                                        if (users[userID].websiteVersion() == myVersion) {
+                                        if (users[id].websiteVersion() == myVersion) {
                                             countSame++;
                                         } else {
                                             countNot++;
@@ -357,6 +396,8 @@ public class Main {
                                     
                                     System.out.println("Users with the same website version:  " + countSame);
                                     System.out.println("Users with different website version: " + countNot);
+                                    System.out.println("Users on this version overall:        "
+                                            + infection.countOnVersion(myVersion));
                                     System.out.println("------------------------------------------------");
                                 } else {
                                     System.out.println("Invalid user ID or website version");
@@ -405,29 +446,42 @@ public class Main {
                             case '4':
                                 infection = ensureNotNull(users,infection);
                                 
-                                int[] versions = new int[4];
-                                int[] populations = new int[4];
-                                int[] percents = new int[]{ 5, 10, 15, 75 };
+                                message = "Enter number of tiers (positive integer):";
+                                int numTiers = getUnsignedInt(message);
+                                
+                                if (numTiers <= 0) {
+                                    System.out.println("Invalid number of tiers");
+                                    System.out.println();
+                                    promptGo();
+                                    break;
+                                }
+                                
+                                int[] versions = new int[numTiers];
+                                int[] populations = new int[numTiers];
+                                double[] percents = new double[numTiers];
+                                double[] fractions = new double[numTiers];
                                 
-                                System.out.println("Version number for x% of the population:");
+                                System.out.println("Percent of the population and version number for each tier:");
                                 
-                                System.out.print(" ");
-                                for (int i = 0; i < 4; i++) {
-                                    System.out.print(" " + percents[i] + "%: ");
+                                for (int i = 0; i < numTiers; i++) {
+                                    System.out.print("  Tier " + (i + 1) + " percent: ");
+                                    percents[i] = getInt();
+                                    System.out.print("  Tier " + (i + 1) + " version: ");
                                     versions[i] = getInt();
-                                    populations[i] = (int)(users.length * percents[i] * 0.01);
+                                    fractions[i] = percents[i] * 0.01;
+                                    populations[i] = (int)(users.length * fractions[i]);
                                 }
                                 
-                                double[][] data = infection.tiered_infection(versions);
+                                double[][] data = infection.tiered_infection(versions, fractions);
                                 System.out.println("------------------------------------------------");
-                                System.out.print(" ");
-                                for (int i = 0; i < 4; i++) {
+                                for (int i = 0; i < numTiers; i++) {
                                     System.out.println(
                                             percents[i] +
                                             "% population = " 
                                             + populations[i]
                                             + ", users infected = " 
                                             + data[1][i]
+                                            + " (" + data[2][i] * 100 + "%)"
                                             + ", number of clusters = "
                                             + data[0][i]);
                                 }
@@ -450,6 +504,27 @@ public class Main {
                                 promptGo();
                                 break;
 
+                            case '7':
+                                infection = ensureNotNull(users,infection);
+                                ComponentTests.testConcurrentRollout(users, infection);
+                                System.out.println();
+                                promptGo();
+                                break;
+
+                            case '8':
+                                infection = ensureNotNull(users,infection);
+                                ComponentTests.testRolloutLog(users, infection);
+                                System.out.println();
+                                promptGo();
+                                break;
+
+                            case '9':
+                                infection = ensureNotNull(users,infection);
+                                ComponentTests.testVersionIndex(users, infection);
+                                System.out.println();
+                                promptGo();
+                                break;
+
                             default:
                                 submenu4 = false;
                                 break;
@@ -459,6 +534,49 @@ public class Main {
 
                     break;
 
+                case '5':
+                    ComponentTests.compareClusteringMethods(users);
+                    System.out.println();
+                    promptGo();
+                    System.out.println();
+                    break;
+
+                case '6':
+                    infection = ensureNotNull(users, infection);
+                    ComponentTests.testDynamicClusters(users, infection);
+                    System.out.println();
+                    promptGo();
+                    System.out.println();
+                    break;
+
+                case '7':
+                    ComponentTests.testClusterSnapshot(users);
+                    System.out.println();
+                    promptGo();
+                    System.out.println();
+                    break;
+
+                case '8':
+                    ComponentTests.testEdgeImport(users);
+                    System.out.println();
+                    promptGo();
+                    System.out.println();
+                    break;
+
+                case '9':
+                    Benchmarks.run(NUMBER_OF_USERS, MAX_CLASS_SIZE, COACH_RATIO, 5, 20, 1);
+                    System.out.println();
+                    promptGo();
+                    System.out.println();
+                    break;
+
+                case '0':
+                    ComponentTests.testMetrics(users);
+                    System.out.println();
+                    promptGo();
+                    System.out.println();
+                    break;
+
                 default:
                     run = false;
                     break;
@@ -0,0 +1,95 @@
+package infection;
+
+/**
+ * Compact graph read in place from a memory-mapped graph file.
+ *
+ * The same compressed sparse row arrays as CompactGraph, but each one is a
+ * MappedIntArray over the file instead of an int array on the heap, so
+ * opening a graph of any size only maps the file. Clusters, Infection and
+ * every other user of CompactGraph work on it unchanged.
+ *
+ * @author David Bell
+ */
+public class MappedGraph extends CompactGraph {
+
+    private final int numEdges; // Number of coach relations in the graph
+    private final MappedIntArray coachesOffsets; // Start of each vertex's students
+    private final MappedIntArray coaches; // Students of every vertex
+    private final MappedIntArray coachedByOffsets; // Start of each vertex's coaches
+    private final MappedIntArray coachedBy; // Coaches of every vertex
+
+    /**
+     * Constructor.
+     *
+     * @param numVertices number of vertices in the graph
+     * @param numEdges number of coach relations in the graph
+     * @param coachesOffsets offsets into coaches, length numVertices + 1
+     * @param coaches students of every vertex
+     * @param coachedByOffsets offsets into coachedBy, length numVertices + 1
+     * @param coachedBy coaches of every vertex
+     */
+    MappedGraph(
+            int numVertices,
+            int numEdges,
+            MappedIntArray coachesOffsets,
+            MappedIntArray coaches,
+            MappedIntArray coachedByOffsets,
+            MappedIntArray coachedBy) {
+
+        super(numVertices, null, null, null, null);
+
+        this.numEdges = numEdges;
+        this.coachesOffsets = coachesOffsets;
+        this.coaches = coaches;
+        this.coachedByOffsets = coachedByOffsets;
+        this.coachedBy = coachedBy;
+    }
+
+    @Override
+    public int numEdges() {
+        return numEdges;
+    }
+
+    @Override
+    public int coachesRelationSize(int vertexID) {
+        return coachesOffsets.get(vertexID + 1) - coachesOffsets.get(vertexID);
+    }
+
+    @Override
+    public int coachedByRelationSize(int vertexID) {
+        return coachedByOffsets.get(vertexID + 1) - coachedByOffsets.get(vertexID);
+    }
+
+    @Override
+    public int coachesRelation(int vertexID, int i) {
+        return coaches.get(coachesOffsets.get(vertexID) + i);
+    }
+
+    @Override
+    public int coachedByRelation(int vertexID, int i) {
+        return coachedBy.get(coachedByOffsets.get(vertexID) + i);
+    }
+
+    @Override
+    public int neighbor(int vertexID, int i) {
+
+        int numStudents = coachesRelationSize(vertexID);
+
+        if (i < numStudents) {
+            return coaches.get(coachesOffsets.get(vertexID) + i);
+        }
+
+        return coachedBy.get(coachedByOffsets.get(vertexID) + i - numStudents);
+    }
+
+    /**
+     * Approximate heap footprint of this graph in bytes. The mapped arrays
+     * live in the page cache and are not counted.
+     *
+     * @return
+     */
+    @Override
+    public long memoryBytes() {
+        return 16 + 4 + 4 + 9 * 8 + 4 * (16 + 4 + 8 + 8 + 16);
+    }
+}
@@ -0,0 +1,87 @@
+package infection;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Array of ints mapped from a region of a file.
+ *
+ * A single mapping is limited to 2 GB, so the region is mapped in segments
+ * of 2^28 ints and each index is split into a segment and an offset. The
+ * ints are little-endian. Reads go straight to the page cache, so nothing is
+ * copied onto the heap and every process mapping the file shares the pages.
+ *
+ * @author David Bell
+ */
+public class MappedIntArray {
+
+    private static final int SEGMENT_SHIFT = 28; // Log2 of the ints per segment
+    private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private final IntBuffer[] segments; // Mapped segments of the region
+    private final IntBuffer first; // First segment, for regions with only one
+    private final long length; // Number of ints in the region
+
+    /**
+     * Constructor. Maps the region immediately; pages are read on first use.
+     *
+     * @param channel open channel of the file
+     * @param position byte position of the region in the file
+     * @param length number of ints in the region
+     * @param mode READ_ONLY or READ_WRITE
+     * @throws IOException if the region cannot be mapped
+     */
+    public MappedIntArray(
+            FileChannel channel, long position, long length, FileChannel.MapMode mode)
+            throws IOException {
+
+        int numSegments = (int) Math.max(1, (length + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+        segments = new IntBuffer[numSegments];
+
+        for (int segment = 0; segment < numSegments; segment++) {
+
+            long start = (long) segment << SEGMENT_SHIFT;
+            long count = Math.min(length - start, 1L << SEGMENT_SHIFT);
+
+            segments[segment] = channel.map(mode, position + 4 * start, 4 * count)
+                    .order(ByteOrder.LITTLE_ENDIAN)
+                    .asIntBuffer();
+        }
+
+        this.first = segments[0];
+        this.length = length;
+    }
+
+    /**
+     * Get the number of ints in the array
+     * @return
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Get an int
+     * @param index
+     * @return
+     */
+    public int get(long index) {
+
+        if (index <= SEGMENT_MASK) {
+            return first.get((int) index);
+        }
+
+        return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+    }
+
+    /**
+     * Set an int. The array must have been mapped READ_WRITE.
+     * @param index
+     * @param value
+     */
+    public void set(long index, int value) {
+        segments[(int) (index >>> SEGMENT_SHIFT)].put((int) (index & SEGMENT_MASK), value);
+    }
+}
@@ -0,0 +1,348 @@
+package infection;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Seeded, parallel generator of random user populations.
+ *
+ * Every coach draws a class size from the same compound distribution as the
+ * original generator: starting from the max class size, the size is
+ * multiplied by a uniform random fraction studentRatio times. The students
+ * are sampled without replacement with Floyd's algorithm, which takes
+ * exactly one draw per student instead of redrawing duplicates.
+ *
+ * Users are split into fixed chunks, and every chunk gets its own
+ * SplittableRandom split from the seed in chunk order, so a seed always
+ * produces the same population no matter how many threads generate it.
+ *
+ * @author David Bell
+ */
+public class PopulationGenerator {
+
+    private static final int CHUNK_SIZE = 1 << 14; // Users generated per task
+    private static final int SMALL_CLASS_SIZE = 32; // Largest class sampled by scanning
+
+    private final long seed; // Seed of the population
+    private final int numVersions; // Number of website versions users start on
+    private final int maxClassSize; // Upper bound of every coaches relation
+    private final int studentRatio; // Times the class size is reduced
+
+    /**
+     * Constructor.
+     *
+     * @param seed seed of the population
+     * @param numVersions number of versions active in the user base
+     * @param maxClassSize maximum number of students a user can have
+     * @param studentRatio change the student-coach ratio
+     */
+    public PopulationGenerator(long seed, int numVersions, int maxClassSize, int studentRatio) {
+
+        this.seed = seed;
+        this.numVersions = numVersions;
+        this.maxClassSize = maxClassSize;
+        this.studentRatio = studentRatio;
+    }
+
+    /**
+     * Generate the coach relations of a population straight into a compact
+     * graph.
+     *
+     * @param numUsers number of users in the population
+     * @return compact graph of the coach relations
+     */
+    public CompactGraph generateGraph(int numUsers) {
+
+        int numChunks = (numUsers + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        SplittableRandom[] randoms = chunkRandoms(numChunks, 0);
+
+        // Every chunk samples its coaches' students into its own arrays
+        int[][] chunkStudents = new int[numChunks][];
+        int[] coachesOffsets = new int[numUsers + 1];
+
+        IntStream.range(0, numChunks).parallel().forEach((chunk) -> {
+
+            SplittableRandom random = randoms[chunk];
+            int from = chunk * CHUNK_SIZE;
+            int to = Math.min(numUsers, from + CHUNK_SIZE);
+            int[] students = new int[64];
+            int numStudents = 0;
+            int[] chosen = new int[16];
+            DrawSet seen = new DrawSet();
+
+            for (int coachID = from; coachID < to; coachID++) {
+
+                int classSize = classSize(random, numUsers);
+
+                if (numStudents + classSize > students.length) {
+                    students = Arrays.copyOf(students,
+                            Math.max(numStudents + classSize, students.length * 2));
+                }
+
+                if (classSize > chosen.length) {
+                    chosen = new int[Math.max(classSize, chosen.length * 2)];
+                }
+
+                sampleStudents(random, numUsers, coachID, classSize, chosen, seen);
+                System.arraycopy(chosen, 0, students, numStudents, classSize);
+                numStudents += classSize;
+
+                // Shifted up by one, turned into offsets below
+                coachesOffsets[coachID + 1] = classSize;
+            }
+
+            chunkStudents[chunk] = Arrays.copyOf(students, numStudents);
+        });
+
+        for (int v = 0; v < numUsers; v++) {
+            coachesOffsets[v + 1] += coachesOffsets[v];
+        }
+
+        int numEdges = coachesOffsets[numUsers];
+        int[] coaches = new int[numEdges];
+
+        IntStream.range(0, numChunks).parallel().forEach((chunk) -> {
+            int[] students = chunkStudents[chunk];
+            System.arraycopy(students, 0, coaches,
+                    coachesOffsets[chunk * CHUNK_SIZE], students.length);
+        });
+
+        // Invert the coaches relation into the coached-by relation
+        int[] coachedByOffsets = new int[numUsers + 1];
+
+        for (int studentID : coaches) {
+            coachedByOffsets[studentID + 1]++;
+        }
+
+        for (int v = 0; v < numUsers; v++) {
+            coachedByOffsets[v + 1] += coachedByOffsets[v];
+        }
+
+        int[] coachedBy = new int[numEdges];
+        int[] next = Arrays.copyOf(coachedByOffsets, numUsers);
+
+        for (int coachID = 0; coachID < numUsers; coachID++) {
+            for (int i = coachesOffsets[coachID]; i < coachesOffsets[coachID + 1]; i++) {
+                coachedBy[next[coaches[i]]++] = coachID;
+            }
+        }
+
+        return new CompactGraph(numUsers, coachesOffsets, coaches, coachedByOffsets, coachedBy);
+    }
+
+    /**
+     * Generate a random website version for every user of a population
+     *
+     * @param numUsers number of users in the population
+     * @return store holding every user's website version
+     */
+    public UserColumns generateColumns(int numUsers) {
+
+        int numChunks = (numUsers + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        SplittableRandom[] randoms = chunkRandoms(numChunks, 1);
+        int[] versions = new int[numUsers];
+
+        IntStream.range(0, numChunks).parallel().forEach((chunk) -> {
+
+            int to = Math.min(numUsers, (chunk + 1) * CHUNK_SIZE);
+
+            for (int userID = chunk * CHUNK_SIZE; userID < to; userID++) {
+                versions[userID] = randoms[chunk].nextInt(numVersions);
+            }
+        });
+
+        UserColumns columns = new UserColumns(numUsers);
+
+        for (int userID = 0; userID < numUsers; userID++) {
+            columns.setVersion(userID, versions[userID]);
+        }
+
+        return columns;
+    }
+
+    /**
+     * Generate a population of users over a shared columnar store
+     *
+     * @param numUsers number of users in the population
+     * @return array containing every user
+     */
+    public User[] generateUsers(int numUsers) {
+        return toUsers(generateGraph(numUsers), generateColumns(numUsers));
+    }
+
+    /**
+     * Build user objects for the vertices of a compact graph
+     *
+     * @param graph compact graph of the coach relations
+     * @param columns store holding every user's attributes
+     * @return array containing every user, indexed by vertex ID
+     */
+    public static User[] toUsers(CompactGraph graph, UserColumns columns) {
+
+        int numUsers = graph.numVertices();
+        User[] users = new User[numUsers];
+
+        IntStream.range(0, numUsers).parallel().forEach((userID)
+                -> users[userID] = new User(userID, columns));
+
+        // Every task only touches its own user's lists
+        IntStream.range(0, numUsers).parallel().forEach((userID) -> {
+
+            User user = users[userID];
+
+            for (int i = 0; i < graph.coachesRelationSize(userID); i++) {
+                user.addCoachesRelation(users[graph.coachesRelation(userID, i)]);
+            }
+
+            for (int i = 0; i < graph.coachedByRelationSize(userID); i++) {
+                user.addCoachedByRelation(users[graph.coachedByRelation(userID, i)]);
+            }
+        });
+
+        return users;
+    }
+
+    /**
+     * Split one random per chunk from the seed, in chunk order
+     *
+     * @param numChunks number of chunks
+     * @param stream which of the generator's independent streams to use
+     * @return random of every chunk
+     */
+    private SplittableRandom[] chunkRandoms(int numChunks, int stream) {
+
+        SplittableRandom root = new SplittableRandom(seed);
+
+        for (int i = 0; i < stream; i++) {
+            root = root.split();
+        }
+
+        SplittableRandom[] randoms = new SplittableRandom[numChunks];
+
+        for (int chunk = 0; chunk < numChunks; chunk++) {
+            randoms[chunk] = root.split();
+        }
+
+        return randoms;
+    }
+
+    /**
+     * Draw a coach's class size from the compound distribution
+     *
+     * @param random
+     * @param numUsers number of users in the population
+     * @return number of students, never more than the other users
+     */
+    private int classSize(SplittableRandom random, int numUsers) {
+
+        int classSize = maxClassSize;
+
+        // Creates log distribution of class sizes over all users
+        for (int j = 0; j < studentRatio; j++) {
+            classSize = (int) (random.nextDouble() * classSize);
+        }
+
+        return Math.min(classSize, numUsers - 1);
+    }
+
+    /**
+     * Sample distinct students for a coach with Floyd's algorithm. IDs are
+     * drawn from the numUsers - 1 other users, skipping over the coach.
+     *
+     * @param random
+     * @param numUsers number of users in the population
+     * @param coachID coach of the class
+     * @param classSize number of students to sample
+     * @param chosen output, the sampled student IDs
+     * @param seen set of the IDs drawn so far, used for large classes
+     */
+    private static void sampleStudents(
+            SplittableRandom random, int numUsers, int coachID, int classSize,
+            int[] chosen, DrawSet seen) {
+
+        int range = numUsers - 1;
+        boolean small = classSize <= SMALL_CLASS_SIZE;
+
+        if (!small) {
+            seen.clear(classSize);
+        }
+
+        for (int k = 0; k < classSize; k++) {
+
+            int j = range - classSize + k;
+            int draw = random.nextInt(j + 1);
+
+            // j itself has never been drawn, so it replaces a repeated draw
+            if (small) {
+                for (int i = 0; i < k; i++) {
+                    if (chosen[i] == draw) {
+                        draw = j;
+                        break;
+                    }
+                }
+            } else if (!seen.add(draw)) {
+                draw = j;
+                seen.add(draw);
+            }
+
+            chosen[k] = draw;
+        }
+
+        for (int k = 0; k < classSize; k++) {
+            if (chosen[k] >= coachID) {
+                chosen[k]++;
+            }
+        }
+    }
+
+    /**
+     * Open-addressing set of the IDs drawn for one class, reused for every
+     * coach of a chunk.
+     */
+    private static class DrawSet {
+
+        private int[] table = new int[0]; // Drawn IDs plus one, 0 if empty
+        private int mask; // Table length minus one
+
+        /**
+         * Empty the set, sizing it for a class
+         * @param classSize
+         */
+        void clear(int classSize) {
+
+            int length = Integer.highestOneBit(Math.max(4, classSize) * 2) * 2;
+
+            if (length > table.length) {
+                table = new int[length];
+            } else {
+                Arrays.fill(table, 0, length, 0);
+            }
+
+            mask = length - 1;
+        }
+
+        /**
+         * Add an ID
+         * @param id
+         * @return false if the ID was already in the set
+         */
+        boolean add(int id) {
+
+            int slot = (id * 0x9e3779b9) & mask;
+
+            while (table[slot] != 0) {
+
+                if (table[slot] == id + 1) {
+                    return false;
+                }
+
+                slot = (slot + 1) & mask;
+            }
+
+            table[slot] = id + 1;
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package infection;
+
+import java.util.Arrays;
+
+/**
+ * Append-only undo log of rollouts.
+ *
+ * Every rollout records the version each user saw before it, as runs of
+ * consecutive user IDs with the same prior version: three ints per run of
+ * (first user ID, number of users, prior version). Clusters made contiguous
+ * by VertexOrdering are written in ascending ID order, so a cluster whose
+ * users shared a version takes a single run. Reverting a rollout replays
+ * only its own runs, in time proportional to its size.
+ *
+ * Memory is bounded by a budget of ints. When finished rollouts exceed it,
+ * the oldest are dropped and can no longer be reverted; the latest rollout
+ * is always kept. Dropped and reverted rollouts are compacted out of the
+ * buffer once they take more room than the rollouts still kept.
+ *
+ * @author David Bell
+ */
+public class RolloutLog {
+
+    private static final int RUN_INTS = 3; // Ints in every run
+
+    private final long maxInts; // Budget of ints for the rollouts kept
+    private int[] runs = new int[RUN_INTS * 64]; // Runs of every rollout, back to back
+    private int used; // Ints of runs written
+    private long liveInts; // Ints of runs of rollouts that can still be reverted
+
+    private long[] ids = new long[16]; // ID of every rollout, ascending
+    private int[] starts = new int[16]; // Offset of every rollout's first run
+    private int[] ends = new int[16]; // Offset past every rollout's last run
+    private boolean[] dead = new boolean[16]; // Whether a rollout was reverted or dropped
+    private int first; // First rollout not dropped
+    private int count; // Rollouts recorded, including dropped ones
+    private long nextID = 1; // ID of the next rollout
+    private boolean open; // Whether a rollout is being recorded
+
+    /**
+     * Functional interface receiving the runs of a reverted rollout
+     */
+    public interface RunConsumer {
+
+        /**
+         * Restore a run of users to a version
+         * @param fromID first user ID, inclusive
+         * @param toID last user ID, exclusive
+         * @param version version the users saw before the rollout
+         */
+        void accept(int fromID, int toID, int version);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxInts number of ints of runs to keep; about 12 bytes per run
+     */
+    public RolloutLog(long maxInts) {
+
+        if (maxInts <= 0) {
+            throw new IllegalArgumentException("Budget must be positive: " + maxInts);
+        }
+
+        this.maxInts = maxInts;
+    }
+
+    /**
+     * Start recording a rollout
+     * @return ID of the rollout
+     */
+    public long begin() {
+
+        if (open) {
+            throw new IllegalStateException("A rollout is already being recorded");
+        }
+
+        if (count - first < count / 2) {
+            compactEntries();
+        }
+
+        if (count == ids.length) {
+            ids = Arrays.copyOf(ids, count * 2);
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+            dead = Arrays.copyOf(dead, count * 2);
+        }
+
+        ids[count] = nextID;
+        starts[count] = used;
+        ends[count] = used;
+        dead[count] = false;
+        count++;
+        open = true;
+
+        return nextID++;
+    }
+
+    /**
+     * Check whether a rollout is being recorded
+     * @return
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Record the version a user saw before the current rollout
+     *
+     * @param userID
+     * @param priorVersion
+     */
+    public void record(int userID, int priorVersion) {
+
+        int entry = count - 1;
+
+        // Extend the last run if the user follows it with the same version
+        if (ends[entry] > starts[entry]) {
+
+            int last = ends[entry] - RUN_INTS;
+
+            if (runs[last] + runs[last + 1] == userID && runs[last + 2] == priorVersion) {
+                runs[last + 1]++;
+                return;
+            }
+        }
+
+        if (used + RUN_INTS > runs.length) {
+            runs = Arrays.copyOf(runs, Math.max(runs.length * 2, used + RUN_INTS));
+        }
+
+        runs[used] = userID;
+        runs[used + 1] = 1;
+        runs[used + 2] = priorVersion;
+        used += RUN_INTS;
+        ends[entry] = used;
+    }
+
+    /**
+     * Finish recording the current rollout, dropping the oldest rollouts if
+     * the log is over its budget
+     */
+    public void end() {
+
+        if (!open) {
+            throw new IllegalStateException("No rollout is being recorded");
+        }
+
+        open = false;
+        liveInts += ends[count - 1] - starts[count - 1];
+
+        // Drop the oldest rollouts, always keeping the latest
+        while (liveInts > maxInts && first < count - 1) {
+            kill(first);
+            first++;
+        }
+
+        while (first < count - 1 && dead[first]) {
+            first++;
+        }
+
+        // Compact once dead runs take more room than live ones
+        if (used - liveInts > liveInts) {
+            compactRuns();
+        }
+    }
+
+    /**
+     * Check whether a rollout can still be reverted
+     * @param rolloutID
+     * @return
+     */
+    public boolean canRevert(long rolloutID) {
+
+        int entry = find(rolloutID);
+
+        return entry >= 0 && !dead[entry];
+    }
+
+    /**
+     * Get the ID of the latest rollout that can still be reverted
+     * @return rollout ID, or -1 if there is none
+     */
+    public long latest() {
+
+        for (int entry = count - (open ? 2 : 1); entry >= first; entry--) {
+            if (!dead[entry]) {
+                return ids[entry];
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Revert a rollout, passing its runs to a consumer in reverse order of
+     * recording. The rollout can not be reverted again. Rollouts should be
+     * reverted newest first; reverting an older rollout alone restores its
+     * prior versions over any later rollout to the same users.
+     *
+     * @param rolloutID
+     * @param consumer receives every run
+     * @return number of users restored
+     */
+    public long revert(long rolloutID, RunConsumer consumer) {
+
+        int entry = find(rolloutID);
+
+        if (entry < 0 || dead[entry]) {
+            throw new IllegalArgumentException("Rollout " + rolloutID + " can not be reverted");
+        }
+
+        if (open && entry == count - 1) {
+            throw new IllegalStateException("Rollout " + rolloutID + " is being recorded");
+        }
+
+        long numRestored = 0;
+
+        for (int run = ends[entry] - RUN_INTS; run >= starts[entry]; run -= RUN_INTS) {
+            consumer.accept(runs[run], runs[run] + runs[run + 1], runs[run + 2]);
+            numRestored += runs[run + 1];
+        }
+
+        kill(entry);
+
+        return numRestored;
+    }
+
+    /**
+     * Get the users a rollout wrote to, built from its runs. The rollout
+     * must still be revertible; it stays so.
+     *
+     * @param rolloutID
+     * @return set of user IDs
+     */
+    public CompressedBitmap members(long rolloutID) {
+
+        int entry = find(rolloutID);
+
+        if (entry < 0 || dead[entry]) {
+            throw new IllegalArgumentException("Rollout " + rolloutID + " is no longer kept");
+        }
+
+        CompressedBitmap members = new CompressedBitmap();
+
+        for (int run = starts[entry]; run < ends[entry]; run += RUN_INTS) {
+            members.addRange(runs[run], runs[run] + runs[run + 1]);
+        }
+
+        return members;
+    }
+
+    /**
+     * Get the number of rollouts that can still be reverted
+     * @return
+     */
+    public int numRollouts() {
+
+        int live = 0;
+
+        for (int entry = first; entry < count; entry++) {
+            if (!dead[entry] && !(open && entry == count - 1)) {
+                live++;
+            }
+        }
+
+        return live;
+    }
+
+    /**
+     * Estimate the memory used by the log
+     * @return bytes
+     */
+    public long memoryBytes() {
+        return 4L * runs.length + 17L * ids.length;
+    }
+
+    /**
+     * Find the entry of a rollout
+     * @param rolloutID
+     * @return entry index, or -1 if the rollout was dropped or never existed
+     */
+    private int find(long rolloutID) {
+
+        int entry = Arrays.binarySearch(ids, first, count, rolloutID);
+
+        return entry >= 0 ? entry : -1;
+    }
+
+    /**
+     * Mark a rollout as unable to be reverted
+     * @param entry
+     */
+    private void kill(int entry) {
+
+        if (!dead[entry]) {
+            dead[entry] = true;
+            liveInts -= ends[entry] - starts[entry];
+        }
+    }
+
+    /**
+     * Move the runs of every live rollout to the front of the buffer
+     */
+    private void compactRuns() {
+
+        int to = 0;
+
+        for (int entry = first; entry < count; entry++) {
+
+            int length = dead[entry] ? 0 : ends[entry] - starts[entry];
+
+            System.arraycopy(runs, starts[entry], runs, to, length);
+            starts[entry] = to;
+            ends[entry] = to + length;
+            to += length;
+        }
+
+        used = to;
+
+        if (runs.length > 2 * Math.max(RUN_INTS * 64, used)) {
+            runs = Arrays.copyOf(runs, Math.max(RUN_INTS * 64, used));
+        }
+    }
+
+    /**
+     * Move the entries of every rollout not dropped to the front
+     */
+    private void compactEntries() {
+
+        int numKept = count - first;
+
+        System.arraycopy(ids, first, ids, 0, numKept);
+        System.arraycopy(starts, first, starts, 0, numKept);
+        System.arraycopy(ends, first, ends, 0, numKept);
+        System.arraycopy(dead, first, dead, 0, numKept);
+        count = numKept;
+        first = 0;
+    }
+}
@@ -0,0 +1,337 @@
+package infection;
+
+import java.util.Arrays;
+
+/**
+ * Picks clusters whose sizes add up to a target population, working only from
+ * the cluster size histogram.
+ *
+ * The histogram maps each cluster size to the number of clusters of that
+ * size, so choosing clusters is a bounded subset-sum problem over the
+ * distinct sizes. The largest clusters are taken greedily up to a window
+ * below the target, and the window is then solved exactly with dynamic
+ * programming over reachable sums, so the exact step costs distinct sizes *
+ * window instead of distinct sizes * target. When the window is still too
+ * wide, the whole target is solved with a greedy pass from the largest size
+ * down, followed by single-swap repairs.
+ *
+ * @author David Bell
+ */
+public class SubsetSumPlanner {
+
+    /**
+     * Largest number of (distinct size, sum) states the exact solver visits
+     * before switching to the greedy solver.
+     */
+    private static final long MAX_EXACT_STATES = 1L << 24;
+
+    /**
+     * Widest range of sums the exact solver accepts, which bounds its memory
+     */
+    private static final int MAX_EXACT_SUM = 1 << 20;
+
+    /**
+     * Narrowest window left below the target for the exact solver, so
+     * targets with little or no allowed error still get an exact fit
+     */
+    private static final int MIN_WINDOW = 1 << 14;
+
+    /**
+     * Scratch arrays of the exact solver, reused across calls by each thread
+     */
+    private static final ThreadLocal<int[][]> SCRATCH
+            = ThreadLocal.withInitial(() -> new int[2][0]);
+
+    /**
+     * Utility class
+     */
+    private SubsetSumPlanner() {
+    }
+
+    /**
+     * Choose how many clusters of each size to infect so the total is as
+     * close to the target as possible without going over the upper bound.
+     *
+     * @param histogram number of clusters of every size, indexed by size
+     * @param targetPop target size of the infected population
+     * @param error allowable error (target +- target * error)
+     * @return number of clusters of every size to infect, indexed by size
+     */
+    public static int[] plan(int[] histogram, int targetPop, float error) {
+
+        // Collect the distinct sizes
+        int numSizes = 0;
+
+        for (int size = 1; size < histogram.length; size++) {
+            if (histogram[size] > 0) {
+                numSizes++;
+            }
+        }
+
+        int[] sizes = new int[numSizes];
+        int[] counts = new int[numSizes];
+        numSizes = 0;
+
+        for (int size = 1; size < histogram.length; size++) {
+            if (histogram[size] > 0) {
+                sizes[numSizes] = size;
+                counts[numSizes] = histogram[size];
+                numSizes++;
+            }
+        }
+
+        int[] chosenOfSize = plan(sizes, counts, numSizes, targetPop, error);
+        int[] chosen = new int[histogram.length];
+
+        for (int i = 0; i < numSizes; i++) {
+            chosen[sizes[i]] = chosenOfSize[i];
+        }
+
+        return chosen;
+    }
+
+    /**
+     * Choose how many clusters of each size to infect so the total is as
+     * close to the target as possible without going over the upper bound,
+     * given only the sizes that have clusters.
+     *
+     * @param sizes distinct cluster sizes, ascending
+     * @param counts number of clusters of each size, which may be 0
+     * @param numSizes number of sizes to read from the arrays
+     * @param targetPop target size of the infected population
+     * @param error allowable error (target +- target * error)
+     * @return number of clusters of each size to infect, numSizes long
+     */
+    public static int[] plan(
+            int[] sizes, int[] counts, int numSizes, int targetPop, float error) {
+
+        int upper = (int) Math.min(Integer.MAX_VALUE - 1L,
+                (long) Math.floor(targetPop * (1.0 + error)));
+        int[] chosen = new int[numSizes];
+
+        // Only the sizes that can fit under the upper bound matter
+        while (numSizes > 0 && sizes[numSizes - 1] > upper) {
+            numSizes--;
+        }
+
+        if (numSizes == 0 || targetPop <= 0) {
+            return chosen;
+        }
+
+        // Take the largest clusters up to a window below the target
+        long lower = (long) Math.ceil(targetPop * (1.0 - error));
+        long window = Math.max(MIN_WINDOW, upper - lower);
+        long prefix = planPrefix(sizes, counts, numSizes, targetPop - window, chosen);
+
+        // Solve the rest exactly over the sums left in the window
+        long range = upper - prefix;
+        int numFitting = 0;
+
+        while (numFitting < numSizes && sizes[numFitting] <= range) {
+            numFitting++;
+        }
+
+        long steps = numSizes;
+
+        if (range <= MAX_EXACT_SUM
+                && numFitting * (range + 1) <= MAX_EXACT_STATES) {
+            planExact(sizes, counts, numFitting, (int) (targetPop - prefix), (int) range, chosen);
+            steps += numFitting * (range + 1);
+        } else {
+            Arrays.fill(chosen, 0);
+            steps += planGreedy(sizes, counts, numSizes, targetPop, error, upper, chosen);
+        }
+
+        if (InfectionMetrics.enabled()) {
+            InfectionMetrics.get().plannerSteps.add(steps);
+        }
+
+        return chosen;
+    }
+
+    /**
+     * Get the total population of a plan
+     *
+     * @param chosen number of clusters of every size, indexed by size
+     * @return total number of vertices in the chosen clusters
+     */
+    public static long population(int[] chosen) {
+
+        long total = 0;
+
+        for (int size = 1; size < chosen.length; size++) {
+            total += (long) size * chosen[size];
+        }
+
+        return total;
+    }
+
+    /**
+     * Take as many of each size as fit under a cap, from the largest size
+     * down
+     *
+     * @param sizes distinct cluster sizes, ascending
+     * @param counts number of clusters of each size
+     * @param numSizes number of sizes to use
+     * @param cap largest total to take
+     * @param chosen output, number of clusters of each size
+     * @return total taken
+     */
+    private static long planPrefix(
+            int[] sizes, int[] counts, int numSizes, long cap, int[] chosen) {
+
+        long total = 0;
+
+        for (int i = numSizes; --i >= 0 && total < cap;) {
+
+            int take = (int) Math.min(counts[i], (cap - total) / sizes[i]);
+            chosen[i] = take;
+            total += (long) take * sizes[i];
+        }
+
+        return total;
+    }
+
+    /**
+     * Exact bounded subset-sum by dynamic programming over every sum up to the
+     * upper bound, in O(distinct sizes * upper) time. Only the clusters not
+     * already chosen are used, and the ones it picks are added to chosen.
+     *
+     * @param sizes distinct cluster sizes, ascending
+     * @param counts number of clusters of each size
+     * @param numSizes number of sizes to use, all at most upper
+     * @param targetPop target size of the population still to choose
+     * @param upper largest allowed total still to choose
+     * @param chosen input and output, number of clusters of each size
+     */
+    private static void planExact(int[] sizes, int[] counts, int numSizes,
+            int targetPop, int upper, int[] chosen) {
+
+        int[][] scratch = SCRATCH.get();
+
+        if (scratch[0].length <= upper) {
+            scratch[0] = new int[upper + 1];
+            scratch[1] = new int[upper + 1];
+        }
+
+        // Index of the size of the last cluster added to first reach every sum
+        int[] via = scratch[0];
+
+        // Clusters of the current size used to reach every sum, -1 if unreached
+        int[] used = scratch[1];
+
+        Arrays.fill(used, 0, upper + 1, -1);
+        used[0] = 0;
+
+        for (int i = 0; i < numSizes; i++) {
+
+            int size = sizes[i];
+            int count = counts[i] - chosen[i];
+
+            // Ascending sums let one size be used several times, up to count
+            for (int sum = 0; sum <= upper; sum++) {
+
+                if (used[sum] >= 0) {
+                    used[sum] = 0;
+                } else if (sum >= size && used[sum - size] >= 0
+                        && used[sum - size] < count) {
+
+                    used[sum] = used[sum - size] + 1;
+                    via[sum] = i;
+                }
+            }
+        }
+
+        // Find the reachable sum closest to the target
+        int best = 0;
+
+        for (int sum = 0; sum <= upper; sum++) {
+            if (used[sum] >= 0 && Math.abs(sum - targetPop) < Math.abs(best - targetPop)) {
+                best = sum;
+            }
+        }
+
+        // Walk back through the sizes that reached it
+        while (best > 0) {
+            chosen[via[best]]++;
+            best -= sizes[via[best]];
+        }
+    }
+
+    /**
+     * Approximate bounded subset-sum for targets too large to solve exactly.
+     * Takes as many of each size as fit under the target from the largest
+     * size down, then adds one cluster or swaps one chosen cluster for a
+     * larger unchosen one while that moves the total closer to the target.
+     *
+     * @param sizes distinct cluster sizes, ascending
+     * @param counts number of clusters of each size
+     * @param numSizes number of sizes to use
+     * @param targetPop target size of the infected population
+     * @param error allowable error (target +- target * error)
+     * @param upper largest allowed total
+     * @param chosen output, number of clusters of each size
+     * @return number of sizes and swaps examined
+     */
+    private static long planGreedy(int[] sizes, int[] counts, int numSizes,
+            int targetPop, float error, int upper, int[] chosen) {
+
+        long total = 0;
+        long steps = numSizes;
+
+        for (int i = numSizes; --i >= 0;) {
+
+            int take = (int) Math.min(counts[i], (targetPop - total) / sizes[i]);
+            chosen[i] = take;
+            total += (long) take * sizes[i];
+        }
+
+        long lower = (long) Math.ceil(targetPop * (1.0 - error));
+
+        // Repair: each swap must strictly improve the total, so this terminates
+        boolean improved = true;
+
+        while (total < lower && improved) {
+
+            improved = false;
+            long gap = targetPop - total;
+            int bestFrom = -1;
+            int bestTo = -1;
+            long bestDelta = 0;
+
+            // A from index of -1 adds a cluster without removing one
+            for (int from = -1; from < numSizes; from++) {
+
+                if (from >= 0 && chosen[from] == 0) {
+                    continue;
+                }
+
+                for (int to = from + 1; to < numSizes; to++) {
+
+                    steps++;
+                    long delta = from < 0 ? sizes[to] : sizes[to] - sizes[from];
+
+                    if (chosen[to] < counts[to] && total + delta <= upper
+                            && Math.abs(gap - delta) < Math.abs(gap - bestDelta)) {
+                        bestFrom = from;
+                        bestTo = to;
+                        bestDelta = delta;
+                    }
+                }
+            }
+
+            if (bestTo >= 0) {
+
+                if (bestFrom >= 0) {
+                    chosen[bestFrom]--;
+                }
+
+                chosen[bestTo]++;
+                total += bestDelta;
+                improved = true;
+            }
+        }
+
+        return steps;
+    }
+}
@@ -0,0 +1,264 @@
+package infection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Reusable breadth-first traversal of clusters that allocates nothing per
+ * call.
+ *
+ * Visited vertices are stamped with the current epoch instead of being set
+ * in a boolean array, so reset() forgets every visited vertex in constant
+ * time. Members are written into a caller-supplied buffer, which doubles as
+ * the traversal queue: every vertex is stamped when it is queued, so the
+ * queue never holds a vertex twice and a buffer of numVertices() ints always
+ * fits a cluster.
+ *
+ * A traversal is not thread-safe; give every thread its own.
+ *
+ * @author David Bell
+ */
+public class Traversal {
+
+    private final int[] stamps; // Epoch at which every vertex was last visited
+    private int epoch; // Stamp of the current search; epoch + 1 is the other side's
+    private int[] otherQueue; // Queue of the second search of separate()
+
+    /**
+     * Constructor.
+     *
+     * @param numVertices number of vertices of the graphs to traverse
+     */
+    public Traversal(int numVertices) {
+
+        this.stamps = new int[numVertices];
+        this.epoch = 1;
+    }
+
+    /**
+     * Get the number of vertices this traversal can visit
+     * @return
+     */
+    public int numVertices() {
+        return stamps.length;
+    }
+
+    /**
+     * Forget every visited vertex
+     */
+    public void reset() {
+
+        epoch += 2;
+
+        // Stamps only wrap after about a billion resets
+        if (epoch >= Integer.MAX_VALUE - 1) {
+            Arrays.fill(stamps, 0);
+            epoch = 1;
+        }
+    }
+
+    /**
+     * Check whether a vertex has been visited since the last reset
+     * @param vertexID
+     * @return
+     */
+    public boolean isVisited(int vertexID) {
+        return stamps[vertexID] == epoch;
+    }
+
+    /**
+     * Visit every vertex of a compact graph connected to a root vertex.
+     * Vertices visited since the last reset are not visited again, so
+     * traversing from every vertex after a single reset finds every cluster
+     * once.
+     *
+     * @param graph compact graph containing the vertex
+     * @param rootID root member of the cluster
+     * @param members output, the IDs of the vertices visited; numVertices()
+     * ints always fit
+     * @return number of vertices visited, 0 if the root was already visited
+     */
+    public int cluster(CompactGraph graph, int rootID, int[] members) {
+
+        if (stamps[rootID] == epoch) {
+            return 0;
+        }
+
+        stamps[rootID] = epoch;
+        members[0] = rootID;
+        int head = 0;
+        int tail = 1;
+        int maxDepth = 1;
+
+        while (head < tail) {
+
+            int vertexID = members[head++];
+
+            for (int i = 0; i < graph.coachesRelationSize(vertexID); i++) {
+
+                int student = graph.coachesRelation(vertexID, i);
+
+                if (stamps[student] != epoch) {
+                    stamps[student] = epoch;
+                    members[tail++] = student;
+                }
+            }
+
+            for (int i = 0; i < graph.coachedByRelationSize(vertexID); i++) {
+
+                int coach = graph.coachedByRelation(vertexID, i);
+
+                if (stamps[coach] != epoch) {
+                    stamps[coach] = epoch;
+                    members[tail++] = coach;
+                }
+            }
+
+            maxDepth = Math.max(maxDepth, tail - head);
+        }
+
+        Clusters.recordTraversal(tail, maxDepth);
+
+        return tail;
+    }
+
+    /**
+     * Visit every vertex connected to a root vertex. Vertices visited since
+     * the last reset are not visited again.
+     *
+     * @param vertices array containing all vertices, indexed by ID
+     * @param rootID root member of the cluster
+     * @param members output, the IDs of the vertices visited; numVertices()
+     * ints always fit
+     * @return number of vertices visited, 0 if the root was already visited
+     */
+    public int cluster(ClusterVertex[] vertices, int rootID, int[] members) {
+
+        if (stamps[rootID] == epoch) {
+            return 0;
+        }
+
+        stamps[rootID] = epoch;
+        members[0] = rootID;
+        int head = 0;
+        int tail = 1;
+        int maxDepth = 1;
+
+        while (head < tail) {
+
+            ArrayList<ClusterVertex> edges = vertices[members[head++]].edges();
+
+            for (int i = 0; i < edges.size(); i++) {
+
+                int neighborID = edges.get(i).id();
+
+                if (stamps[neighborID] != epoch) {
+                    stamps[neighborID] = epoch;
+                    members[tail++] = neighborID;
+                }
+            }
+
+            maxDepth = Math.max(maxDepth, tail - head);
+        }
+
+        Clusters.recordTraversal(tail, maxDepth);
+
+        return tail;
+    }
+
+    /**
+     * Check whether two vertices are still connected after an edge between
+     * them was removed. Searches outward from both vertices in alternating
+     * steps, and stops as soon as one search reaches a vertex found by the
+     * other, or runs out of vertices. Resets the traversal first.
+     *
+     * @param vertices array containing all vertices, indexed by ID
+     * @param a vertex ID at one end of the removed edge
+     * @param b vertex ID at the other end of the removed edge
+     * @param separated output, the IDs of the smaller side if the vertices
+     * are no longer connected; numVertices() ints always fit
+     * @return number of vertices on the smaller side, or -1 if the vertices
+     * are still connected
+     */
+    public int separate(ClusterVertex[] vertices, int a, int b, int[] separated) {
+
+        reset();
+
+        if (otherQueue == null) {
+            otherQueue = new int[stamps.length];
+        }
+
+        int stampA = epoch;
+        int stampB = epoch + 1;
+        int[] queueA = separated;
+        int[] queueB = otherQueue;
+
+        stamps[a] = stampA;
+        stamps[b] = stampB;
+        queueA[0] = a;
+        queueB[0] = b;
+        int headA = 0;
+        int tailA = 1;
+        int headB = 0;
+        int tailB = 1;
+
+        while (true) {
+
+            tailA = expand(vertices, queueA, headA++, tailA, stampA, stampB);
+
+            if (tailA < 0) {
+                return -1;
+            }
+
+            if (headA == tailA) {
+                return tailA;
+            }
+
+            tailB = expand(vertices, queueB, headB++, tailB, stampB, stampA);
+
+            if (tailB < 0) {
+                return -1;
+            }
+
+            if (headB == tailB) {
+                System.arraycopy(queueB, 0, separated, 0, tailB);
+                return tailB;
+            }
+        }
+    }
+
+    /**
+     * Expand one vertex of a search started by separate()
+     *
+     * @param vertices array containing all vertices, indexed by ID
+     * @param queue vertices found by this search
+     * @param head position of the vertex to expand
+     * @param tail end of the queue
+     * @param stamp stamp of this search
+     * @param otherStamp stamp of the search from the other end
+     * @return new end of the queue, or -1 if this search reached a vertex
+     * found by the other one
+     */
+    private int expand(
+            ClusterVertex[] vertices, int[] queue, int head, int tail,
+            int stamp, int otherStamp) {
+
+        ArrayList<ClusterVertex> edges = vertices[queue[head]].edges();
+
+        for (int i = 0; i < edges.size(); i++) {
+
+            int neighborID = edges.get(i).id();
+
+            if (stamps[neighborID] == otherStamp) {
+                return -1;
+            }
+
+            if (stamps[neighborID] != stamp) {
+                stamps[neighborID] = stamp;
+                queue[tail++] = neighborID;
+            }
+        }
+
+        return tail;
+    }
+}
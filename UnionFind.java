@@ -0,0 +1,203 @@
+package infection;
+
+import java.util.Arrays;
+
+/**
+ * Disjoint-set forest for clustering a graph from its edges alone. Edges can
+ * be added in any order, so the clusters can be built straight from an edge
+ * stream without materializing any vertex objects.
+ *
+ * Uses union by size and path compression, so each edge costs nearly
+ * constant time.
+ *
+ * @author David Bell
+ */
+public class UnionFind {
+
+    private final int[] parent; // Parent of every vertex, roots are their own parent
+    private final int[] setSize; // Size of the set rooted at every root vertex
+    private int numSets; // Number of disjoint sets
+
+    /**
+     * Constructor. Every vertex starts in a set of its own.
+     *
+     * @param numVertices number of vertices in the graph
+     */
+    public UnionFind(int numVertices) {
+
+        parent = new int[numVertices];
+        setSize = new int[numVertices];
+        numSets = numVertices;
+
+        for (int i = 0; i < numVertices; i++) {
+            parent[i] = i;
+            setSize[i] = 1;
+        }
+    }
+
+    /**
+     * Cluster every vertex by union-find over the vertices' edge lists.
+     *
+     * @param vertices array containing all vertices
+     * @return union-find containing every edge of the vertices
+     */
+    public static UnionFind fromVertices(ClusterVertex[] vertices) {
+
+        UnionFind unionFind = new UnionFind(vertices.length);
+
+        for (ClusterVertex vertex : vertices) {
+            for (ClusterVertex neighbor : vertex.edges()) {
+                unionFind.union(vertex.id(), neighbor.id());
+            }
+        }
+
+        return unionFind;
+    }
+
+    /**
+     * Cluster every vertex of a compact graph by union-find.
+     *
+     * @param graph compact graph containing all vertices
+     * @return union-find containing every edge of the graph
+     */
+    public static UnionFind fromGraph(CompactGraph graph) {
+
+        UnionFind unionFind = new UnionFind(graph.numVertices());
+
+        // Every edge is stored in both directions, so the students are enough
+        for (int vertexID = 0; vertexID < graph.numVertices(); vertexID++) {
+
+            int numStudents = graph.coachesRelationSize(vertexID);
+
+            for (int i = 0; i < numStudents; i++) {
+                unionFind.union(vertexID, graph.coachesRelation(vertexID, i));
+            }
+        }
+
+        return unionFind;
+    }
+
+    /**
+     * Find the root of the set containing a vertex, pointing every vertex on
+     * the path directly at the root.
+     *
+     * @param vertexID
+     * @return root vertex of the set
+     */
+    public int find(int vertexID) {
+
+        int root = vertexID;
+
+        while (parent[root] != root) {
+            root = parent[root];
+        }
+
+        // Compress the path
+        while (parent[vertexID] != root) {
+            int next = parent[vertexID];
+            parent[vertexID] = root;
+            vertexID = next;
+        }
+
+        return root;
+    }
+
+    /**
+     * Merge the sets containing two vertices, hanging the smaller set under
+     * the root of the larger one.
+     *
+     * @param a
+     * @param b
+     * @return true if the vertices were in different sets
+     */
+    public boolean union(int a, int b) {
+
+        int rootA = find(a);
+        int rootB = find(b);
+
+        if (rootA == rootB) {
+            return false;
+        }
+
+        if (setSize[rootA] < setSize[rootB]) {
+            int swap = rootA;
+            rootA = rootB;
+            rootB = swap;
+        }
+
+        parent[rootB] = rootA;
+        setSize[rootA] += setSize[rootB];
+        numSets--;
+
+        return true;
+    }
+
+    /**
+     * Add a batch of edges. Edge i connects coachIDs[i] and studentIDs[i].
+     *
+     * @param coachIDs coach vertex of every edge
+     * @param studentIDs student vertex of every edge
+     * @param numEdges number of edges to read from the arrays
+     */
+    public void addEdges(int[] coachIDs, int[] studentIDs, int numEdges) {
+
+        for (int i = 0; i < numEdges; i++) {
+            union(coachIDs[i], studentIDs[i]);
+        }
+    }
+
+    /**
+     * Get the number of vertices
+     * @return
+     */
+    public int numVertices() {
+        return parent.length;
+    }
+
+    /**
+     * Get the number of clusters
+     * @return
+     */
+    public int numClusters() {
+        return numSets;
+    }
+
+    /**
+     * Get the size of the cluster containing a vertex
+     * @param vertexID
+     * @return
+     */
+    public int sizeOfCluster(int vertexID) {
+        return setSize[find(vertexID)];
+    }
+
+    /**
+     * Label every vertex with its cluster. Clusters are numbered in order of
+     * their smallest vertex ID, matching the TRAVERSAL method.
+     *
+     * @return array mapping vertex IDs to cluster labels
+     */
+    public int[] labels() {
+
+        int[] labels = new int[parent.length];
+
+        // Label assigned to every root, or -1 if not assigned yet
+        int[] rootLabels = new int[parent.length];
+        Arrays.fill(rootLabels, -1);
+
+        int nextLabel = 0;
+
+        for (int vertexID = 0; vertexID < parent.length; vertexID++) {
+
+            int root = find(vertexID);
+
+            if (rootLabels[root] < 0) {
+                rootLabels[root] = nextLabel++;
+            }
+
+            labels[vertexID] = rootLabels[root];
+        }
+
+        return labels;
+    }
+}
@@ -15,6 +15,7 @@ public class User extends ClusterVertex {
     private final ArrayList<ClusterVertex> edges; // Users connected to this user
     private int clusterLabel;   // Cluster this user is a member of
     private int websiteVersion;    // Version of the website this user sees
+    private final UserColumns columns; // Store holding the two fields above, or null
     
     /**
      * Constructor
@@ -25,6 +26,21 @@ public class User extends ClusterVertex {
         userID = newID;
         websiteVersion = webVersion;
         clusterLabel = -1;
+        columns = null;
+        coachedBy = new ArrayList<>();
+        coaches = new ArrayList<>();
+        edges = new ArrayList<>();
+    }
+    
+    /**
+     * Constructor for a user whose website version and cluster label are
+     * kept in a columnar store rather than in this object.
+     * @param newID unique user identification, also the index into columns
+     * @param columns store holding this user's attributes
+     */
+    public User(int newID, UserColumns columns) {
+        userID = newID;
+        this.columns = columns;
         coachedBy = new ArrayList<>();
         coaches = new ArrayList<>();
         edges = new ArrayList<>();
@@ -42,12 +58,17 @@ public class User extends ClusterVertex {
 
     @Override
     public int getClusterLabel() {
-        return clusterLabel;
+        return columns != null ? columns.clusterLabel(userID) : clusterLabel;
     }
 
     @Override
     public void setClusterLabel(int label) {
-        clusterLabel = label;
+        
+        if (columns != null) {
+            columns.setClusterLabel(userID, label);
+        } else {
+            clusterLabel = label;
+        }
     }
     
     /**
@@ -55,7 +76,12 @@ public class User extends ClusterVertex {
      * @param webVersion 
      */
     public void updateWebsiteVersion(int webVersion) {
-        websiteVersion = webVersion;
+        
+        if (columns != null) {
+            columns.setVersion(userID, webVersion);
+        } else {
+            websiteVersion = webVersion;
+        }
     }
     
     /**
@@ -76,12 +102,38 @@ public class User extends ClusterVertex {
         edges.add(user);
     }
     
+    /**
+     * Remove a user that this user is coached by
+     * @param user 
+     */
+    public void removeCoachedByRelation(User user) {
+        coachedBy.remove(user);
+        edges.remove(user);
+    }
+    
+    /**
+     * Remove a user that this user coaches
+     * @param user 
+     */
+    public void removeCoachesRelation(User user) {
+        coaches.remove(user);
+        edges.remove(user);
+    }
+    
     /**
      * Get this user's website version 
      * @return 
      */
     public int websiteVersion() {
-        return websiteVersion;
+        return columns != null ? columns.version(userID) : websiteVersion;
+    }
+    
+    /**
+     * Get the columnar store holding this user's attributes
+     * @return store or null if the attributes are kept in this object
+     */
+    public UserColumns columns() {
+        return columns;
     }
     
     /**
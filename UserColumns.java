@@ -0,0 +1,515 @@
+package infection;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Columnar store for user attributes. Website versions and cluster labels
+ * live in primitive arrays indexed by user ID instead of in fields of each
+ * User, so applying a version to many users is a tight array write.
+ *
+ * Versions are dictionary encoded: each distinct version gets a code, and
+ * the codes are stored in a byte array while at most 256 versions have been
+ * stored, widening to a short array and then an int array as more versions
+ * appear. Codes are never reclaimed, so the column stays wide after the
+ * versions that widened it are retired; codeBytes() reports the width.
+ *
+ * There must be a single writer at a time, such as the flusher of a
+ * ConcurrentRollout. Readers may run alongside it: a reader racing a
+ * widening always sees one complete code column, and a new version's
+ * dictionary entry is published before any column stores its code.
+ *
+ * Every write also updates a VersionIndex, so the users on a version can be
+ * counted or listed without scanning the column.
+ *
+ * @author David Bell
+ */
+public class UserColumns {
+
+    private volatile byte[] byteCodes; // Version codes while there are <= 256 versions
+    private volatile short[] shortCodes; // Version codes while there are <= 65536 versions
+    private int[] intCodes; // Version codes beyond that
+    private volatile int[] dictionary; // Version for every code
+    private final HashMap<Integer, Integer> codes; // Code for every version
+    private final int[] clusterLabels; // Cluster label of every user
+    private final VersionIndex versionIndex; // Users on every version code
+
+    /**
+     * Constructor. Every user starts on version 0 with no cluster.
+     *
+     * @param numUsers number of users in the store
+     */
+    public UserColumns(int numUsers) {
+
+        byteCodes = new byte[numUsers];
+        dictionary = new int[] { 0 };
+        codes = new HashMap<>();
+        codes.put(0, 0);
+
+        clusterLabels = new int[numUsers];
+        Arrays.fill(clusterLabels, -1);
+
+        versionIndex = new VersionIndex(numUsers);
+    }
+
+    /**
+     * Get the number of users in the store
+     * @return
+     */
+    public int size() {
+        return clusterLabels.length;
+    }
+
+    /**
+     * Get the number of distinct versions that have been stored
+     * @return
+     */
+    public int numVersions() {
+        return codes.size();
+    }
+
+    /**
+     * Get the width of a version code
+     * @return bytes per user in the code column: 1, 2 or 4
+     */
+    public int codeBytes() {
+        return byteCodes != null ? 1 : shortCodes != null ? 2 : 4;
+    }
+
+    /**
+     * Get the version of the website a user sees
+     * @param userID
+     * @return
+     */
+    public int version(int userID) {
+
+        // Read the code before the dictionary, which is published first
+        int code = code(userID);
+
+        return dictionary[code];
+    }
+
+    /**
+     * Set the version of the website a user sees
+     * @param userID
+     * @param version
+     */
+    public void setVersion(int userID, int version) {
+
+        int code = codeFor(version);
+        int oldCode = code(userID);
+
+        if (oldCode == code) {
+            return;
+        }
+
+        versionIndex.move(userID, oldCode, code);
+
+        if (byteCodes != null) {
+            byteCodes[userID] = (byte) code;
+        } else if (shortCodes != null) {
+            shortCodes[userID] = (short) code;
+        } else {
+            intCodes[userID] = code;
+        }
+    }
+
+    /**
+     * Set the version for a slice of an array of user IDs
+     *
+     * @param userIDs array of user IDs
+     * @param from first index of the slice
+     * @param to index after the last index of the slice
+     * @param version
+     */
+    public void setVersion(int[] userIDs, int from, int to, int version) {
+
+        int code = codeFor(version);
+
+        VersionIndex index = versionIndex;
+        boolean tracking = index.isTracking();
+        int runCode = code; // Old code of the users being counted
+        int runLength = 0; // Users moved off runCode not yet counted
+        int numMoved = 0;
+
+        // One loop per encoding keeps each loop a plain array load and store
+        if (byteCodes != null) {
+
+            byte[] column = byteCodes;
+            byte value = (byte) code;
+
+            for (int i = from; i < to; i++) {
+
+                int userID = userIDs[i];
+                int oldCode = column[userID] & 0xFF;
+
+                if (oldCode != code) {
+
+                    // Count runs of the same old code locally
+                    if (oldCode != runCode) {
+                        index.adjust(runCode, -runLength);
+                        runCode = oldCode;
+                        runLength = 0;
+                    }
+
+                    runLength++;
+                    numMoved++;
+
+                    if (tracking) {
+                        index.moveBit(userID, oldCode, code);
+                    }
+
+                    column[userID] = value;
+                }
+            }
+        } else if (shortCodes != null) {
+
+            short[] column = shortCodes;
+            short value = (short) code;
+
+            for (int i = from; i < to; i++) {
+
+                int userID = userIDs[i];
+                int oldCode = column[userID] & 0xFFFF;
+
+                if (oldCode != code) {
+
+                    // Count runs of the same old code locally
+                    if (oldCode != runCode) {
+                        index.adjust(runCode, -runLength);
+                        runCode = oldCode;
+                        runLength = 0;
+                    }
+
+                    runLength++;
+                    numMoved++;
+
+                    if (tracking) {
+                        index.moveBit(userID, oldCode, code);
+                    }
+
+                    column[userID] = value;
+                }
+            }
+        } else {
+
+            int[] column = intCodes;
+
+            for (int i = from; i < to; i++) {
+
+                int userID = userIDs[i];
+                int oldCode = column[userID];
+
+                if (oldCode != code) {
+
+                    // Count runs of the same old code locally
+                    if (oldCode != runCode) {
+                        index.adjust(runCode, -runLength);
+                        runCode = oldCode;
+                        runLength = 0;
+                    }
+
+                    runLength++;
+                    numMoved++;
+
+                    if (tracking) {
+                        index.moveBit(userID, oldCode, code);
+                    }
+
+                    column[userID] = code;
+                }
+            }
+        }
+
+        index.adjust(runCode, -runLength);
+        index.adjust(code, numMoved);
+    }
+
+    /**
+     * Set the version for a contiguous range of user IDs
+     *
+     * @param fromID first user ID
+     * @param toID user ID after the last user ID
+     * @param version
+     */
+    public void fillVersion(int fromID, int toID, int version) {
+
+        int code = codeFor(version);
+
+        VersionIndex index = versionIndex;
+        int runCode = code; // Old code of the run of users being read
+        int runStart = fromID; // First user ID of the run
+        int numMoved = 0;
+
+        // Take every run of users sharing an old version off it, then fill
+        // the range at once
+        if (byteCodes != null) {
+
+            byte[] column = byteCodes;
+
+            for (int userID = fromID; userID < toID; userID++) {
+
+                int oldCode = column[userID] & 0xFF;
+
+                if (oldCode != runCode) {
+
+                    if (runCode != code) {
+                        index.removeRange(runStart, userID, runCode);
+                        numMoved += userID - runStart;
+                    }
+
+                    runCode = oldCode;
+                    runStart = userID;
+                }
+            }
+
+            Arrays.fill(column, fromID, toID, (byte) code);
+        } else if (shortCodes != null) {
+
+            short[] column = shortCodes;
+
+            for (int userID = fromID; userID < toID; userID++) {
+
+                int oldCode = column[userID] & 0xFFFF;
+
+                if (oldCode != runCode) {
+
+                    if (runCode != code) {
+                        index.removeRange(runStart, userID, runCode);
+                        numMoved += userID - runStart;
+                    }
+
+                    runCode = oldCode;
+                    runStart = userID;
+                }
+            }
+
+            Arrays.fill(column, fromID, toID, (short) code);
+        } else {
+
+            int[] column = intCodes;
+
+            for (int userID = fromID; userID < toID; userID++) {
+
+                int oldCode = column[userID];
+
+                if (oldCode != runCode) {
+
+                    if (runCode != code) {
+                        index.removeRange(runStart, userID, runCode);
+                        numMoved += userID - runStart;
+                    }
+
+                    runCode = oldCode;
+                    runStart = userID;
+                }
+            }
+
+            Arrays.fill(column, fromID, toID, code);
+        }
+
+        if (runCode != code) {
+            index.removeRange(runStart, toID, runCode);
+            numMoved += toID - runStart;
+        }
+
+        index.addRange(fromID, toID, code, numMoved);
+    }
+
+    /**
+     * Set the version for every member of a cluster. Clusters of a
+     * cluster-contiguous graph are written as a single range.
+     *
+     * @param index cluster index over the same user IDs
+     * @param label cluster label
+     * @param version
+     */
+    public void setVersionForCluster(ClusterIndex index, int label, int version) {
+
+        int start = index.start(label);
+
+        if (index.isContiguous()) {
+            int fromID = index.members()[start];
+            fillVersion(fromID, fromID + index.size(label), version);
+        } else {
+            setVersion(index.members(), start, start + index.size(label), version);
+        }
+    }
+
+    /**
+     * Set the version for every member of a list of clusters
+     *
+     * @param index cluster index over the same user IDs
+     * @param labels cluster labels
+     * @param count number of labels to read from the array
+     * @param version
+     */
+    public void setVersionForClusters(
+            ClusterIndex index, int[] labels, int count, int version) {
+
+        for (int i = 0; i < count; i++) {
+            setVersionForCluster(index, labels[i], version);
+        }
+    }
+
+    /**
+     * Copy this store into the internal ID order of a vertex ordering
+     *
+     * @param ordering ordering of the users, whose external IDs are the IDs
+     * of this store
+     * @return store of the same attributes indexed by internal ID
+     */
+    public UserColumns reorder(VertexOrdering ordering) {
+
+        UserColumns reordered = new UserColumns(size());
+
+        for (int internalID = 0; internalID < size(); internalID++) {
+
+            int externalID = ordering.externalID(internalID);
+            reordered.setVersion(internalID, version(externalID));
+            reordered.setClusterLabel(internalID, clusterLabels[externalID]);
+        }
+
+        return reordered;
+    }
+
+    /**
+     * Get the number of users on a version, in constant time
+     * @param version
+     * @return
+     */
+    public int countOnVersion(int version) {
+
+        Integer code = codes.get(version);
+
+        return code != null ? versionIndex.count(code) : 0;
+    }
+
+    /**
+     * Get the IDs of the users on a version, in ascending order. The first
+     * call scans the column once to start tracking membership; later calls
+     * only read the version's members.
+     *
+     * @param version
+     * @return
+     */
+    public int[] usersOnVersion(int version) {
+
+        Integer code = codes.get(version);
+
+        if (code == null) {
+            return new int[0];
+        }
+
+        if (!versionIndex.isTracking()) {
+            versionIndex.track(this::code);
+        }
+
+        return versionIndex.members(code);
+    }
+
+    /**
+     * Get the index of the users on every version
+     * @return
+     */
+    public VersionIndex versionIndex() {
+        return versionIndex;
+    }
+
+    /**
+     * Get the cluster label of a user
+     * @param userID
+     * @return
+     */
+    public int clusterLabel(int userID) {
+        return clusterLabels[userID];
+    }
+
+    /**
+     * Set the cluster label of a user
+     * @param userID
+     * @param label
+     */
+    public void setClusterLabel(int userID, int label) {
+        clusterLabels[userID] = label;
+    }
+
+    /**
+     * Get the dictionary code of a user's version
+     * @param userID
+     * @return
+     */
+    private int code(int userID) {
+
+        // Each column is read once; widening fills the wider column first
+        byte[] bytes = byteCodes;
+
+        if (bytes != null) {
+            return bytes[userID] & 0xFF;
+        }
+
+        short[] shorts = shortCodes;
+
+        if (shorts != null) {
+            return shorts[userID] & 0xFFFF;
+        }
+
+        return intCodes[userID];
+    }
+
+    /**
+     * Get the dictionary code for a version, adding it to the dictionary and
+     * widening the code column if needed.
+     *
+     * @param version
+     * @return
+     */
+    private int codeFor(int version) {
+
+        Integer code = codes.get(version);
+
+        if (code != null) {
+            return code;
+        }
+
+        int newCode = codes.size();
+
+        if (newCode == 256 && byteCodes != null) {
+
+            byte[] bytes = byteCodes;
+            short[] shorts = new short[bytes.length];
+
+            for (int i = 0; i < bytes.length; i++) {
+                shorts[i] = (short) (bytes[i] & 0xFF);
+            }
+
+            shortCodes = shorts;
+            byteCodes = null;
+        } else if (newCode == 65536 && shortCodes != null) {
+
+            short[] shorts = shortCodes;
+            int[] ints = new int[shorts.length];
+
+            for (int i = 0; i < shorts.length; i++) {
+                ints[i] = shorts[i] & 0xFFFF;
+            }
+
+            intCodes = ints;
+            shortCodes = null;
+        }
+
+        int[] versions = dictionary;
+
+        if (newCode == versions.length) {
+            versions = Arrays.copyOf(versions, newCode * 2);
+        }
+
+        // Publish the entry before any column can hold the new code
+        versions[newCode] = version;
+        dictionary = versions;
+        codes.put(version, newCode);
+        versionIndex.addCode(newCode);
+
+        return newCode;
+    }
+}
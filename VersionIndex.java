@@ -0,0 +1,233 @@
+package infection;
+
+import java.util.Arrays;
+
+/**
+ * Inverted index from website version codes to the users on them, kept up
+ * to date by UserColumns on every write.
+ *
+ * The number of users on every version is always kept, so counts are O(1).
+ * Membership is kept as one compressed bitmap of users per version, but only
+ * once it has been asked for: the first membership query builds the bitmaps
+ * from the version column, and every later write updates them. Each write
+ * costs a counter update and, once tracked, a remove and an add; ranges are
+ * added as runs. A version rolled out to a few contiguous clusters takes a
+ * few bytes per 65536 users instead of a bit per user.
+ *
+ * @author David Bell
+ */
+public class VersionIndex {
+
+    private final int numUsers; // Number of users indexed
+    private int[] counts; // Users on every version code
+    private CompressedBitmap[] bitmaps; // Users on every version code, null until tracked
+
+    /**
+     * Constructor. Every user starts on code 0.
+     *
+     * @param numUsers number of users indexed
+     */
+    VersionIndex(int numUsers) {
+
+        this.numUsers = numUsers;
+        this.counts = new int[] { numUsers };
+    }
+
+    /**
+     * Get the number of users on a version code
+     * @param code
+     * @return
+     */
+    public int count(int code) {
+        return code < counts.length ? counts[code] : 0;
+    }
+
+    /**
+     * Check whether membership bitmaps are being kept
+     * @return
+     */
+    public boolean isTracking() {
+        return bitmaps != null;
+    }
+
+    /**
+     * Get the IDs of the users on a version code, in ascending order.
+     * Membership must be tracked.
+     *
+     * @param code
+     * @return
+     */
+    public int[] members(int code) {
+
+        CompressedBitmap bitmap = code < bitmaps.length ? bitmaps[code] : null;
+
+        return bitmap != null ? bitmap.toArray() : new int[0];
+    }
+
+    /**
+     * Start keeping membership bitmaps
+     * @param codes version code of every user
+     */
+    void track(IntColumn codes) {
+
+        bitmaps = new CompressedBitmap[counts.length];
+
+        // Runs of users on the same code are added as ranges
+        int runStart = 0;
+        int runCode = numUsers > 0 ? codes.get(0) : 0;
+
+        for (int userID = 1; userID <= numUsers; userID++) {
+
+            int code = userID < numUsers ? codes.get(userID) : -1;
+
+            if (code != runCode) {
+                bitmap(runCode).addRange(runStart, userID);
+                runStart = userID;
+                runCode = code;
+            }
+        }
+    }
+
+    /**
+     * Make room for a new version code
+     * @param code
+     */
+    void addCode(int code) {
+
+        if (code >= counts.length) {
+            counts = Arrays.copyOf(counts, Math.max(code + 1, counts.length * 2));
+        }
+    }
+
+    /**
+     * Move a user from one version code to another
+     *
+     * @param userID
+     * @param fromCode code the user was on
+     * @param toCode code the user is moving to
+     */
+    void move(int userID, int fromCode, int toCode) {
+
+        if (bitmaps != null) {
+            moveBit(userID, fromCode, toCode);
+        }
+
+        adjust(fromCode, -1);
+        adjust(toCode, 1);
+    }
+
+    /**
+     * Move a user's membership bit from one version code to another, without
+     * counting the move. Membership must be tracked.
+     *
+     * @param userID
+     * @param fromCode code the user was on
+     * @param toCode code the user is moving to
+     */
+    void moveBit(int userID, int fromCode, int toCode) {
+
+        bitmaps[fromCode].remove(userID);
+        bitmap(toCode).add(userID);
+    }
+
+    /**
+     * Take a range of users off a version code they are all on, ahead of
+     * addRange
+     *
+     * @param fromID first user ID
+     * @param toID user ID after the last user ID
+     * @param code code the users were on
+     */
+    void removeRange(int fromID, int toID, int code) {
+
+        if (bitmaps != null) {
+            bitmaps[code].removeRange(fromID, toID);
+        }
+
+        adjust(code, fromID - toID);
+    }
+
+    /**
+     * Change the number of users on a version code. Bulk writes count the
+     * users they move and adjust once per run of the same code, instead of
+     * once per user.
+     *
+     * @param code
+     * @param delta
+     */
+    void adjust(int code, int delta) {
+
+        counts[code] += delta;
+
+        // Versions nobody is on any more give their bitmap back
+        if (counts[code] == 0 && bitmaps != null && code < bitmaps.length) {
+            bitmaps[code] = null;
+        }
+    }
+
+    /**
+     * Add a range of users to a version code. The users that were not
+     * already on it must have been taken off their old code.
+     *
+     * @param fromID first user ID
+     * @param toID user ID after the last user ID
+     * @param code
+     * @param numAdded number of users in the range not already on the code
+     */
+    void addRange(int fromID, int toID, int code, int numAdded) {
+
+        adjust(code, numAdded);
+
+        if (bitmaps != null && fromID < toID) {
+            bitmap(code).addRange(fromID, toID);
+        }
+    }
+
+    /**
+     * Estimate the memory used by the index
+     * @return bytes
+     */
+    public long memoryBytes() {
+
+        long bytes = 4L * counts.length;
+
+        if (bitmaps != null) {
+            for (CompressedBitmap bitmap : bitmaps) {
+                bytes += bitmap != null ? bitmap.memoryBytes() : 0;
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Get the bitmap of a version code, creating it if needed
+     * @param code
+     * @return
+     */
+    private CompressedBitmap bitmap(int code) {
+
+        if (code >= bitmaps.length) {
+            bitmaps = Arrays.copyOf(bitmaps, Math.max(code + 1, counts.length));
+        }
+
+        if (bitmaps[code] == null) {
+            bitmaps[code] = new CompressedBitmap();
+        }
+
+        return bitmaps[code];
+    }
+
+    /**
+     * Read access to a column of version codes
+     */
+    interface IntColumn {
+
+        /**
+         * Get the code of a user
+         * @param userID
+         * @return
+         */
+        int get(int userID);
+    }
+}
@@ -0,0 +1,199 @@
+package infection;
+
+/**
+ * Permutation of the vertex IDs of a graph, together with its inverse.
+ *
+ * User IDs are handed out in generation order, so the members of a cluster
+ * are scattered across every per-vertex array. A cluster-contiguous ordering
+ * gives every cluster a contiguous range of internal IDs, with the members
+ * of each cluster in breadth first order, so traversals walk neighboring
+ * memory and infecting a cluster is a single range write. External user IDs
+ * stay stable: the ordering maps between the two numberings.
+ *
+ * @author David Bell
+ */
+public class VertexOrdering {
+
+    private final int[] externalIDs; // External ID of every internal ID
+    private final int[] internalIDs; // Internal ID of every external ID
+
+    /**
+     * Constructor. The array becomes part of the ordering.
+     *
+     * @param externalIDs external ID of every internal ID; must be a
+     * permutation of 0 to length - 1
+     */
+    public VertexOrdering(int[] externalIDs) {
+
+        this.externalIDs = externalIDs;
+        this.internalIDs = new int[externalIDs.length];
+
+        for (int internalID = 0; internalID < externalIDs.length; internalID++) {
+            internalIDs[externalIDs[internalID]] = internalID;
+        }
+    }
+
+    /**
+     * Order the vertices of a graph cluster by cluster, in label order, with
+     * each cluster's members in breadth first order from its smallest member.
+     *
+     * @param graph compact graph containing all vertices
+     * @param index clusters of the graph
+     * @return cluster-contiguous ordering of the graph's vertices
+     */
+    public static VertexOrdering clusterContiguous(CompactGraph graph, ClusterIndex index) {
+
+        int numVertices = graph.numVertices();
+
+        // The output doubles as the breadth first queue
+        int[] order = new int[numVertices];
+        boolean[] queued = new boolean[numVertices];
+        int tail = 0;
+
+        for (int label = 0; label < index.labelLimit(); label++) {
+
+            if (index.size(label) == 0) {
+                continue;
+            }
+
+            int root = smallestMember(index, label);
+            int head = tail;
+            order[tail++] = root;
+            queued[root] = true;
+
+            while (head < tail) {
+
+                int vertexID = order[head++];
+                int degree = graph.degree(vertexID);
+
+                for (int i = 0; i < degree; i++) {
+
+                    int neighborID = graph.neighbor(vertexID, i);
+
+                    if (!queued[neighborID]) {
+                        queued[neighborID] = true;
+                        order[tail++] = neighborID;
+                    }
+                }
+            }
+        }
+
+        return new VertexOrdering(order);
+    }
+
+    /**
+     * Get the number of vertices in the ordering
+     * @return
+     */
+    public int numVertices() {
+        return externalIDs.length;
+    }
+
+    /**
+     * Get the internal ID of a vertex
+     * @param externalID
+     * @return
+     */
+    public int internalID(int externalID) {
+        return internalIDs[externalID];
+    }
+
+    /**
+     * Get the external ID of a vertex
+     * @param internalID
+     * @return
+     */
+    public int externalID(int internalID) {
+        return externalIDs[internalID];
+    }
+
+    /**
+     * Reorder a column indexed by external ID into internal ID order
+     *
+     * @param column value of every vertex, indexed by external ID
+     * @return value of every vertex, indexed by internal ID
+     */
+    public int[] toInternal(int[] column) {
+
+        int[] permuted = new int[column.length];
+
+        for (int internalID = 0; internalID < permuted.length; internalID++) {
+            permuted[internalID] = column[externalIDs[internalID]];
+        }
+
+        return permuted;
+    }
+
+    /**
+     * Reorder a column indexed by internal ID into external ID order
+     *
+     * @param column value of every vertex, indexed by internal ID
+     * @return value of every vertex, indexed by external ID
+     */
+    public int[] toExternal(int[] column) {
+
+        int[] permuted = new int[column.length];
+
+        for (int externalID = 0; externalID < permuted.length; externalID++) {
+            permuted[externalID] = column[internalIDs[externalID]];
+        }
+
+        return permuted;
+    }
+
+    /**
+     * Relabel every vertex of a graph with its internal ID
+     *
+     * @param graph compact graph numbered by external ID
+     * @return the same graph numbered by internal ID
+     */
+    public CompactGraph permute(CompactGraph graph) {
+
+        int numEdges = graph.numEdges();
+        int[] coachIDs = new int[numEdges];
+        int[] studentIDs = new int[numEdges];
+        int edge = 0;
+
+        // Visit coaches in internal order so the neighbor arrays are too
+        for (int internalID = 0; internalID < externalIDs.length; internalID++) {
+
+            int externalID = externalIDs[internalID];
+            int numStudents = graph.coachesRelationSize(externalID);
+
+            for (int i = 0; i < numStudents; i++) {
+                coachIDs[edge] = internalID;
+                studentIDs[edge] = internalIDs[graph.coachesRelation(externalID, i)];
+                edge++;
+            }
+        }
+
+        return CompactGraph.fromEdges(externalIDs.length, coachIDs, studentIDs, numEdges);
+    }
+
+    /**
+     * Approximate heap footprint of this ordering in bytes
+     * @return
+     */
+    public long memoryBytes() {
+        return 16 + 2 * 4 + 2 * (16 + 4L * externalIDs.length);
+    }
+
+    /**
+     * Get the smallest member of a cluster
+     * @param index
+     * @param label
+     * @return
+     */
+    private static int smallestMember(ClusterIndex index, int label) {
+
+        int[] members = index.members();
+        int start = index.start(label);
+        int smallest = Integer.MAX_VALUE;
+
+        for (int i = start; i < start + index.size(label); i++) {
+            smallest = Math.min(smallest, members[i]);
+        }
+
+        return smallest;
+    }
+}